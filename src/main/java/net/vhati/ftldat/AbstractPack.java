@@ -1,11 +1,16 @@
 package net.vhati.ftldat;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
 
+import net.vhati.ftldat.ExtentJournal;
+import net.vhati.ftldat.PackChecksums;
+
 
 public abstract class AbstractPack {
 
@@ -37,6 +42,21 @@ public abstract class AbstractPack {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * Adds bytes from a ContentWriter to the pack, as innerPath.
+	 *
+	 * Packs that can will have the writer write directly into them, rather
+	 * than into memory first. If the writer throws an exception, nothing is
+	 * added.
+	 *
+	 * This implementation collects the bytes in memory, then calls add().
+	 */
+	public void addFrom( String innerPath, ContentWriter writer ) throws IOException {
+		ByteArrayOutputStream tmpData = new ByteArrayOutputStream();
+		writer.writeTo( tmpData );
+		add( innerPath, new ByteArrayInputStream( tmpData.toByteArray() ) );
+	}
+
 	/**
 	 * Writes the contents of the file with innerPath to dstFile.
 	 */
@@ -75,6 +95,57 @@ public abstract class AbstractPack {
 	public void close() throws IOException {
 	}
 
+	/**
+	 * Sets checksums to keep up to date as innerFiles are added or removed.
+	 *
+	 * @param checksums an existing set of checksums, or null to stop tracking
+	 */
+	public void setChecksums( PackChecksums checksums ) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Returns the checksums being tracked, or null.
+	 */
+	public PackChecksums getChecksums() {
+		return null;
+	}
+
+	/**
+	 * Calculates checksums for every innerFile, reading several at once.
+	 */
+	public PackChecksums calculateChecksums() throws IOException {
+		return PackChecksums.calculate( this, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Compares every innerFile against checksums, reading several at once.
+	 *
+	 * @return a sorted list of innerPaths that were missing, unexpected, or corrupt
+	 */
+	public List<String> verify( PackChecksums checksums ) throws IOException {
+		return PackChecksums.verify( this, checksums, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Sets a journal to record byte ranges subsequently modified in the dat.
+	 *
+	 * @param journal a journal, or null to stop recording
+	 */
+	public void setExtentJournal( ExtentJournal journal ) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Sets an offset below which repack() won't move data.
+	 *
+	 * Gaps below the floor will remain, at the cost of a larger dat. Data at
+	 * or beyond it is still compacted, toward the floor. The default, 0,
+	 * compacts everything. Packs that never leave gaps ignore this.
+	 */
+	public void setRepackFloor( long offset ) {
+	}
+
 	/**
 	 * Tidies up the dat before closing (possibly mandatory).
 	 *
@@ -86,6 +157,19 @@ public abstract class AbstractPack {
 
 
 
+	/**
+	 * Something that produces an innerFile's bytes, for addFrom().
+	 */
+	public static interface ContentWriter {
+
+		/**
+		 * Writes bytes to a stream, which should be left open.
+		 */
+		public void writeTo( OutputStream os ) throws IOException;
+	}
+
+
+
 	/**
 	 * A holder for (innerPath + size) results from listSizes().
 	 */
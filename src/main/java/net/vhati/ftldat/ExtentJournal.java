@@ -0,0 +1,383 @@
+package net.vhati.ftldat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.vhati.ftldat.PackUtilities;
+
+
+/**
+ * A record of byte ranges modified in a file, relative to an original copy.
+ *
+ * Reverting copies only those ranges back from the original and truncates,
+ * which is far cheaper than copying a large file when little has changed.
+ *
+ * Writes at or beyond the original length aren't recorded, since reverting
+ * truncates them away. Shrinking the file below the original length marks
+ * the lost tail as modified.
+ *
+ * Journal file structure (big-endian):
+ *   Magic int, then srcLength, srcModified, dstLength, dstModified longs.
+ *   An int count of extents, then {start, end} long pairs.
+ *
+ * Delta file structure (big-endian):
+ *   Magic int, then originalLength and dstLength longs.
+ *   An int count of extents, then {start, end} long pairs, each followed
+ *   by its bytes. The last extent covers anything beyond originalLength.
+ */
+public class ExtentJournal {
+
+	private static final int MAGIC = 0x534D4A31;  // "SMJ1"
+	private static final int DELTA_MAGIC = 0x534D4431;  // "SMD1"
+
+	private long originalLength;
+
+	// Non-overlapping, non-adjacent ranges: start -> end (exclusive).
+	private TreeMap<Long, Long> extentMap = new TreeMap<Long, Long>();
+
+	private long srcLength = -1;
+	private long srcModified = -1;
+	private long dstLength = -1;
+	private long dstModified = -1;
+
+
+	/**
+	 * Constructs an empty journal.
+	 *
+	 * @param originalLength the length of the file when it was identical to the original
+	 */
+	public ExtentJournal( long originalLength ) {
+		this.originalLength = originalLength;
+	}
+
+	public long getOriginalLength() {
+		return originalLength;
+	}
+
+	/**
+	 * Records that bytes in a range were modified.
+	 */
+	public synchronized void mark( long offset, long length ) {
+		long start = offset;
+		long end = Math.min( offset + length, originalLength );
+		if ( length <= 0 || start >= end ) return;
+
+		// Absorb an earlier extent that touches this one.
+		Map.Entry<Long, Long> floor = extentMap.floorEntry( start );
+		if ( floor != null && floor.getValue().longValue() >= start ) {
+			start = floor.getKey().longValue();
+			end = Math.max( end, floor.getValue().longValue() );
+		}
+
+		// Absorb later extents that touch this one.
+		Map.Entry<Long, Long> next = extentMap.ceilingEntry( start );
+		while ( next != null && next.getKey().longValue() <= end ) {
+			end = Math.max( end, next.getValue().longValue() );
+			extentMap.remove( next.getKey() );
+			next = extentMap.ceilingEntry( start );
+		}
+
+		extentMap.put( start, end );
+	}
+
+	/**
+	 * Records that the file's length changed.
+	 */
+	public synchronized void markLength( long newLength ) {
+		if ( newLength < originalLength ) {
+			mark( newLength, originalLength - newLength );
+		}
+	}
+
+	/**
+	 * Returns a list of modified {start, end} ranges, in order.
+	 */
+	public synchronized List<long[]> getExtents() {
+		List<long[]> result = new ArrayList<long[]>( extentMap.size() );
+		for ( Map.Entry<Long, Long> entry : extentMap.entrySet() ) {
+			result.add( new long[] {entry.getKey().longValue(), entry.getValue().longValue()} );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the total byte count of modified ranges.
+	 */
+	public synchronized long getDirtyByteCount() {
+		long result = 0;
+		for ( Map.Entry<Long, Long> entry : extentMap.entrySet() ) {
+			result += entry.getValue().longValue() - entry.getKey().longValue();
+		}
+		return result;
+	}
+
+
+	/**
+	 * Returns true if this journal was saved against these exact files.
+	 *
+	 * Sizes and mtimes are compared, so a dst file modified since the save
+	 * (or a replaced src) will invalidate the journal.
+	 */
+	public boolean isValidFor( File srcFile, File dstFile ) {
+		return ( srcFile.exists() && dstFile.exists() &&
+		         srcLength == srcFile.length() && srcModified == srcFile.lastModified() &&
+		         dstLength == dstFile.length() && dstModified == dstFile.lastModified() &&
+		         originalLength == srcLength );
+	}
+
+	/**
+	 * Copies modified ranges from srcFile into dstFile, then truncates dstFile.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public long revert( File srcFile, File dstFile ) throws IOException {
+		long bytesCopied = 0;
+
+		FileInputStream is = null;
+		RandomAccessFile dstRaf = null;
+		try {
+			is = new FileInputStream( srcFile );
+			dstRaf = new RandomAccessFile( dstFile, "rw" );
+			FileChannel srcChannel = is.getChannel();
+			FileChannel dstChannel = dstRaf.getChannel();
+
+			for ( long[] extent : getExtents() ) {
+				long position = extent[0];
+				while ( position < extent[1] ) {
+					dstChannel.position( position );
+					long len = srcChannel.transferTo( position, extent[1] - position, dstChannel );
+					if ( len <= 0 ) {
+						throw new IOException( String.format( "Reverting stalled at byte %d: %s", position, dstFile.getName() ) );
+					}
+					position += len;
+					bytesCopied += len;
+				}
+			}
+			dstRaf.setLength( originalLength );
+			dstChannel.force( false );
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+
+			try {if ( dstRaf != null ) dstRaf.close();}
+			catch ( IOException e ) {}
+		}
+
+		return bytesCopied;
+	}
+
+
+	/**
+	 * Writes a delta file, holding dstFile's content where it differs from the original.
+	 *
+	 * Together with a copy of the original, that's enough to recreate
+	 * dstFile exactly, at a fraction of the size.
+	 *
+	 * @see #applyDelta(File, File)
+	 */
+	public void saveDelta( File dstFile, File deltaFile ) throws IOException {
+		File tmpFile = new File( deltaFile.getAbsoluteFile().getParentFile(), deltaFile.getName() +".tmp" );
+
+		List<long[]> extents = getExtents();
+
+		FileInputStream is = null;
+		FileOutputStream os = null;
+		try {
+			is = new FileInputStream( dstFile );
+			FileChannel srcChannel = is.getChannel();
+			long dstLength = srcChannel.size();
+			if ( dstLength > originalLength ) {
+				extents.add( new long[] {originalLength, dstLength} );
+			}
+
+			os = new FileOutputStream( tmpFile );
+			DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( os ) );
+			dos.writeInt( DELTA_MAGIC );
+			dos.writeLong( originalLength );
+			dos.writeLong( dstLength );
+			dos.writeInt( extents.size() );
+			dos.flush();
+
+			FileChannel dstChannel = os.getChannel();
+			for ( long[] extent : extents ) {
+				long start = Math.min( extent[0], dstLength );
+				long end = Math.min( extent[1], dstLength );
+				dos.writeLong( start );
+				dos.writeLong( end );
+				dos.flush();
+
+				long position = start;
+				while ( position < end ) {
+					long len = srcChannel.transferTo( position, end - position, dstChannel );
+					if ( len <= 0 ) {
+						throw new IOException( String.format( "Saving delta stalled at byte %d: %s", position, dstFile.getName() ) );
+					}
+					position += len;
+				}
+			}
+			dstChannel.force( false );
+		}
+		catch ( IOException e ) {
+			try {if ( os != null ) os.close();}
+			catch ( IOException f ) {}
+
+			tmpFile.delete();
+			throw e;
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+
+			try {if ( os != null ) os.close();}
+			catch ( IOException e ) {}
+		}
+
+		PackUtilities.replaceFile( tmpFile, deltaFile );
+	}
+
+	/**
+	 * Writes a delta file's content into dstFile, marking this journal.
+	 *
+	 * The dstFile must match the original the delta was saved against.
+	 *
+	 * @return the number of bytes written
+	 * @see #saveDelta(File, File)
+	 */
+	public long applyDelta( File deltaFile, File dstFile ) throws IOException {
+		long bytesWritten = 0;
+
+		FileInputStream is = null;
+		RandomAccessFile dstRaf = null;
+		try {
+			is = new FileInputStream( deltaFile );
+			DataInputStream dis = new DataInputStream( is );
+			if ( dis.readInt() != DELTA_MAGIC ) {
+				throw new IOException( String.format( "Unexpected signature in delta file: %s", deltaFile.getName() ) );
+			}
+			long deltaOriginalLength = dis.readLong();
+			long dstLength = dis.readLong();
+			int count = dis.readInt();
+
+			dstRaf = new RandomAccessFile( dstFile, "rw" );
+			if ( deltaOriginalLength != originalLength || dstRaf.length() != originalLength ) {
+				throw new IOException( String.format( "Delta file \"%s\" doesn't apply to \"%s\"", deltaFile.getName(), dstFile.getName() ) );
+			}
+			FileChannel srcChannel = is.getChannel();
+			FileChannel dstChannel = dstRaf.getChannel();
+
+			markLength( dstLength );
+			dstRaf.setLength( dstLength );
+
+			for ( int i=0; i < count; i++ ) {
+				long start = dis.readLong();
+				long end = dis.readLong();
+				if ( start < 0 || end < start || end > dstLength ) {
+					throw new IOException( String.format( "Malformed extent in delta file: %s", deltaFile.getName() ) );
+				}
+				mark( start, end - start );
+
+				// Nothing is buffered by dis, so the channel continues where it left off.
+				long position = start;
+				while ( position < end ) {
+					long len = dstChannel.transferFrom( srcChannel, position, end - position );
+					if ( len <= 0 ) {
+						throw new IOException( String.format( "Delta file is truncated: %s", deltaFile.getName() ) );
+					}
+					position += len;
+					bytesWritten += len;
+				}
+			}
+			dstChannel.force( false );
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+
+			try {if ( dstRaf != null ) dstRaf.close();}
+			catch ( IOException e ) {}
+		}
+
+		return bytesWritten;
+	}
+
+
+	/**
+	 * Writes a journal file, noting the current state of srcFile and dstFile.
+	 *
+	 * Call this after dstFile has been closed, so its mtime is final.
+	 */
+	public void save( File f, File srcFile, File dstFile ) throws IOException {
+		File tmpFile = new File( f.getAbsoluteFile().getParentFile(), f.getName() +".tmp" );
+
+		List<long[]> extents = getExtents();
+
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ) ) );
+			dos.writeInt( MAGIC );
+			dos.writeLong( srcFile.length() );
+			dos.writeLong( srcFile.lastModified() );
+			dos.writeLong( dstFile.length() );
+			dos.writeLong( dstFile.lastModified() );
+			dos.writeInt( extents.size() );
+			for ( long[] extent : extents ) {
+				dos.writeLong( extent[0] );
+				dos.writeLong( extent[1] );
+			}
+		}
+		finally {
+			try {if ( dos != null ) dos.close();}
+			catch ( IOException e ) {}
+		}
+
+		PackUtilities.replaceFile( tmpFile, f );
+	}
+
+	/**
+	 * Reads a journal file.
+	 */
+	public static ExtentJournal load( File f ) throws IOException {
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream( new BufferedInputStream( new FileInputStream( f ) ) );
+			if ( dis.readInt() != MAGIC ) {
+				throw new IOException( String.format( "Unexpected signature in journal file: %s", f.getName() ) );
+			}
+			long srcLength = dis.readLong();
+			long srcModified = dis.readLong();
+			long dstLength = dis.readLong();
+			long dstModified = dis.readLong();
+
+			ExtentJournal result = new ExtentJournal( srcLength );
+			result.srcLength = srcLength;
+			result.srcModified = srcModified;
+			result.dstLength = dstLength;
+			result.dstModified = dstModified;
+
+			int count = dis.readInt();
+			for ( int i=0; i < count; i++ ) {
+				long start = dis.readLong();
+				long end = dis.readLong();
+				result.mark( start, end - start );
+			}
+			return result;
+		}
+		finally {
+			try {if ( dis != null ) dis.close();}
+			catch ( IOException e ) {}
+		}
+	}
+}
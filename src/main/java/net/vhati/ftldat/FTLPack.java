@@ -18,11 +18,18 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.AbstractPack.ContentWriter;
 import net.vhati.ftldat.AbstractPack.PathAndSize;
 import net.vhati.ftldat.AbstractPack.RepackResult;
+import net.vhati.ftldat.ExtentJournal;
 import net.vhati.ftldat.FileChannelRegionInputStream;
+import net.vhati.ftldat.JournalingRandomAccessFile;
+import net.vhati.ftldat.PackChecksums;
+import net.vhati.ftldat.RandomAccessFileOutputStream;
 
 
 /**
@@ -41,6 +48,8 @@ public class FTLPack extends AbstractPack {
 	private RandomAccessFile raf = null;
 	private List<DatEntry> entryList = null;
 	private Map<String, Integer> pathToIndexMap = null;
+	private PackChecksums checksums = null;
+	private long repackFloor = 0;
 
 
 	/**
@@ -83,12 +92,12 @@ public class FTLPack extends AbstractPack {
 				throw new FileNotFoundException( String.format( "The datFile was not found: %s", datFile.getPath() ) );
 
 			this.datFile = datFile;
-			raf = new RandomAccessFile( datFile, "rw" );
+			raf = new JournalingRandomAccessFile( datFile, "rw" );
 			readIndex();
 		}
 		else if ( mode.equals( "w+" ) ) {
 			this.datFile = datFile;
-			raf = new RandomAccessFile( datFile, "rw" );
+			raf = new JournalingRandomAccessFile( datFile, "rw" );
 			createIndex( indexSize );
 		}
 		else {
@@ -322,7 +331,27 @@ public class FTLPack extends AbstractPack {
 	}
 
 	@Override
-	public void add( String innerPath, InputStream is ) throws IOException {
+	public void add( String innerPath, final InputStream is ) throws IOException {
+		addFrom( innerPath, new ContentWriter() {
+			@Override
+			public void writeTo( OutputStream os ) throws IOException {
+				byte[] buf = new byte[4096];
+				int len;
+				while ( (len = is.read( buf )) >= 0 ) {
+					os.write( buf, 0, len );
+				}
+			}
+		});
+	}
+
+	/**
+	 * Adds bytes from a ContentWriter to the pack, as innerPath.
+	 *
+	 * The bytes are written directly into the dat. If the writer throws an
+	 * exception, the partial entry is truncated away.
+	 */
+	@Override
+	public void addFrom( String innerPath, ContentWriter writer ) throws IOException {
 		if ( innerPath.contains( "\\" ) ) {
 			throw new IllegalArgumentException( "InnerPath contains backslashes: "+ innerPath );
 		}
@@ -345,18 +374,26 @@ public class FTLPack extends AbstractPack {
 		entry.innerPath = innerPath;
 		entry.dataSize = 0;  // Write this later.
 
-		raf.seek( getHeaderIndexPosition( entryIndex ) );
-		writeLittleUInt( entry.entryOffset );
-
 		raf.seek( entry.entryOffset );
 		writeLittleUInt( entry.dataSize );
 		writeLittleUString( entry.innerPath );
 		entry.dataOffset = raf.getChannel().position();
 
-		byte[] buf = new byte[4096];
-		int len;
-		while ( (len = is.read( buf )) >= 0 ) {
-			raf.write( buf, 0, len );
+		OutputStream dataStream = new RandomAccessFileOutputStream( raf );
+
+		CheckedOutputStream srcCheckedStream = null;
+		if ( checksums != null ) {
+			dataStream = srcCheckedStream = new CheckedOutputStream( dataStream, new CRC32() );
+		}
+
+		boolean written = false;
+		try {
+			writer.writeTo( dataStream );
+			dataStream.flush();
+			written = true;
+		}
+		finally {
+			if ( !written ) raf.setLength( entry.entryOffset );
 		}
 
 		// Go back and fill in the dataSize.
@@ -364,8 +401,16 @@ public class FTLPack extends AbstractPack {
 		raf.seek( entry.entryOffset );
 		writeLittleUInt( entry.dataSize );
 
+		// Only point the index at the entry once it's complete.
+		raf.seek( getHeaderIndexPosition( entryIndex ) );
+		writeLittleUInt( entry.entryOffset );
+
 		entryList.set( entryIndex, entry );
 		pathToIndexMap.put( innerPath, entryIndex );
+
+		if ( srcCheckedStream != null ) {
+			checksums.put( innerPath, entry.dataSize, srcCheckedStream.getChecksum().getValue() );
+		}
 	}
 
 	@Override
@@ -409,6 +454,8 @@ public class FTLPack extends AbstractPack {
 		pathToIndexMap.remove( innerPath );
 		DatEntry removedEntry = entryList.set( entryIndex, null );
 
+		if ( checksums != null ) checksums.remove( innerPath );
+
 		raf.seek( getHeaderIndexPosition( entryIndex ) );
 		writeLittleUInt( 0 );
 
@@ -453,6 +500,29 @@ public class FTLPack extends AbstractPack {
 		return stream;
 	}
 
+	@Override
+	public void setRepackFloor( long offset ) {
+		repackFloor = offset;
+	}
+
+	@Override
+	public void setChecksums( PackChecksums checksums ) {
+		this.checksums = checksums;
+	}
+
+	@Override
+	public PackChecksums getChecksums() {
+		return checksums;
+	}
+
+	@Override
+	public void setExtentJournal( ExtentJournal journal ) {
+		if ( !(raf instanceof JournalingRandomAccessFile) ) {
+			throw new UnsupportedOperationException( "Journals can't be set on read-only dats" );
+		}
+		((JournalingRandomAccessFile)raf).setJournal( journal );
+	}
+
 	@Override
 	public void close() throws IOException {
 		raf.close();
@@ -503,6 +573,14 @@ public class FTLPack extends AbstractPack {
 			DatEntry entry = tmpEntries.get ( i );
 			pathToIndexMap.put( entry.innerPath, i );
 
+			// Leave entries below the floor where they are.
+			// The index only shrinks, so it won't collide with them.
+			if ( entry.entryOffset < repackFloor ) {
+				pendingEntryOffset = Math.max( pendingEntryOffset, entry.entryOffset );
+			} else {
+				pendingEntryOffset = Math.max( pendingEntryOffset, repackFloor );
+			}
+
 			// Write the header index.
 			raf.seek( getHeaderIndexPosition( i ) );
 			writeLittleUInt( pendingEntryOffset );
@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Stack;
 
 import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.AbstractPack.ContentWriter;
 import net.vhati.ftldat.AbstractPack.PathAndSize;
 import net.vhati.ftldat.PackUtilities;
 
@@ -77,25 +78,45 @@ public class FolderPack extends AbstractPack {
 	}
 
 	@Override
-	public void add( String innerPath, InputStream is ) throws IOException {
+	public void add( String innerPath, final InputStream is ) throws IOException {
+		addFrom( innerPath, new ContentWriter() {
+			@Override
+			public void writeTo( OutputStream os ) throws IOException {
+				byte[] buf = new byte[4096];
+				int len;
+				while ( (len = is.read( buf )) >= 0 ) {
+					os.write( buf, 0, len );
+				}
+			}
+		});
+	}
+
+	/**
+	 * Adds bytes from a ContentWriter to the pack, as innerPath.
+	 *
+	 * The bytes are written directly into the file. If the writer throws an
+	 * exception, the partial file is deleted.
+	 */
+	@Override
+	public void addFrom( String innerPath, ContentWriter writer ) throws IOException {
 		File dstFile = getFile( innerPath );
 		if ( dstFile.exists() ) throw new IOException( "InnerPath already exists: "+ innerPath );
 
 		dstFile.getParentFile().mkdirs();
 
 		FileOutputStream os = null;
+		boolean written = false;
 		try {
 			os = new FileOutputStream( dstFile );
-
-			byte[] buf = new byte[4096];
-			int len;
-			while ( (len = is.read( buf )) >= 0 ) {
-				os.write( buf, 0, len );
-			}
+			writer.writeTo( os );
+			os.close();
+			written = true;
 		}
 		finally {
 			try {if ( os != null ) os.close();}
 			catch ( IOException e ) {}
+
+			if ( !written ) dstFile.delete();
 		}
 	}
 
@@ -0,0 +1,63 @@
+package net.vhati.ftldat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import net.vhati.ftldat.ExtentJournal;
+
+
+/**
+ * A RandomAccessFile that notes every write and resize in an ExtentJournal.
+ *
+ * Ranges are marked before writing, so a failed write is still recorded.
+ * Writes made via getChannel() are NOT journaled.
+ */
+public class JournalingRandomAccessFile extends RandomAccessFile {
+
+	private volatile ExtentJournal journal = null;
+
+
+	public JournalingRandomAccessFile( File file, String mode ) throws IOException {
+		super( file, mode );
+	}
+
+	/**
+	 * Sets a journal to record subsequent writes, or null to stop.
+	 */
+	public void setJournal( ExtentJournal journal ) {
+		this.journal = journal;
+	}
+
+	public ExtentJournal getJournal() {
+		return journal;
+	}
+
+	@Override
+	public void write( int b ) throws IOException {
+		ExtentJournal j = journal;
+		if ( j != null ) j.mark( getFilePointer(), 1 );
+		super.write( b );
+	}
+
+	@Override
+	public void write( byte[] b ) throws IOException {
+		ExtentJournal j = journal;
+		if ( j != null ) j.mark( getFilePointer(), b.length );
+		super.write( b, 0, b.length );
+	}
+
+	@Override
+	public void write( byte[] b, int off, int len ) throws IOException {
+		ExtentJournal j = journal;
+		if ( j != null ) j.mark( getFilePointer(), len );
+		super.write( b, off, len );
+	}
+
+	@Override
+	public void setLength( long newLength ) throws IOException {
+		ExtentJournal j = journal;
+		if ( j != null ) j.markLength( newLength );
+		super.setLength( newLength );
+	}
+}
@@ -0,0 +1,38 @@
+package net.vhati.ftldat;
+
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+
+
+/**
+ * An OutputStream that counts bytes that flow through it.
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+
+	long count = 0;
+
+
+	public MeteredOutputStream( OutputStream out ) {
+		super( out );
+	}
+
+	/**
+	 * Returns the number of bytes seen so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public void write( int b ) throws IOException {
+		out.write( b );
+		count++;
+	}
+
+	@Override
+	public void write( byte[] b, int off, int len ) throws IOException {
+		out.write( b, off, len );
+		count += len;
+	}
+}
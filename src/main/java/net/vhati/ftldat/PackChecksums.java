@@ -0,0 +1,312 @@
+package net.vhati.ftldat;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.PackUtilities;
+
+
+/**
+ * Per-entry checksums of a pack's innerFiles, storable as a sidecar file.
+ *
+ * Checksums cover each innerFile's content (what getInputStream() returns),
+ * so they remain valid after repacking.
+ *
+ * Sidecar structure (UTF-8 text):
+ *   A header line.
+ *   One "crc32 size innerPath" line per entry, with the crc in hex.
+ */
+public class PackChecksums {
+
+	private static final String HEADER = "# Slipstream pack checksums v1";
+
+	private Map<String, EntryChecksum> checksumMap = new HashMap<String, EntryChecksum>();
+
+
+	public PackChecksums() {
+	}
+
+	/**
+	 * Constructs a copy of another set of checksums.
+	 */
+	public PackChecksums( PackChecksums other ) {
+		synchronized ( other ) {
+			for ( Map.Entry<String, EntryChecksum> entry : other.checksumMap.entrySet() ) {
+				EntryChecksum c = entry.getValue();
+				checksumMap.put( entry.getKey(), new EntryChecksum( c.size, c.crc ) );
+			}
+		}
+	}
+
+	public synchronized void put( String innerPath, long size, long crc ) {
+		checksumMap.put( innerPath, new EntryChecksum( size, crc ) );
+	}
+
+	/**
+	 * Returns the checksum for an innerPath, or null.
+	 */
+	public synchronized EntryChecksum get( String innerPath ) {
+		return checksumMap.get( innerPath );
+	}
+
+	public synchronized void remove( String innerPath ) {
+		checksumMap.remove( innerPath );
+	}
+
+	/**
+	 * Returns a list of all innerPaths with checksums.
+	 */
+	public synchronized List<String> list() {
+		return new ArrayList<String>( checksumMap.keySet() );
+	}
+
+
+	/**
+	 * Writes a sidecar file.
+	 *
+	 * The content is written to a temporary file first, then renamed, so an
+	 * interrupted save won't leave a partial sidecar behind.
+	 */
+	public void save( File f ) throws IOException {
+		File tmpFile = new File( f.getParentFile(), f.getName() +".tmp" );
+
+		BufferedWriter bw = null;
+		try {
+			bw = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( tmpFile ), "UTF-8" ) );
+			write( bw );
+		}
+		finally {
+			try {if ( bw != null ) bw.close();}
+			catch ( IOException e ) {}
+		}
+
+		PackUtilities.replaceFile( tmpFile, f );
+	}
+
+	/**
+	 * Returns an MD5 of these checksums, as lowercase hex.
+	 *
+	 * Equal sets of checksums have equal digests, the same as a saved
+	 * sidecar's MD5.
+	 */
+	public String calcDigest() throws IOException {
+		StringWriter sw = new StringWriter();
+		write( sw );
+
+		try {
+			return PackUtilities.calcStreamMD5( new ByteArrayInputStream( sw.toString().getBytes( "UTF-8" ) ) );
+		}
+		catch ( NoSuchAlgorithmException e ) {
+			throw new IOException( "MD5 is unavailable", e );
+		}
+	}
+
+	/**
+	 * Writes sidecar content, sorted by innerPath.
+	 */
+	private void write( Writer w ) throws IOException {
+		List<String> innerPaths = list();
+		Collections.sort( innerPaths );
+
+		w.write( HEADER );
+		w.write( "\n" );
+		for ( String innerPath : innerPaths ) {
+			EntryChecksum c = get( innerPath );
+			w.write( String.format( "%08x %d %s\n", c.crc, c.size, innerPath ) );
+		}
+	}
+
+	/**
+	 * Reads a sidecar file.
+	 */
+	public static PackChecksums load( File f ) throws IOException {
+		PackChecksums result = new PackChecksums();
+
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader( new InputStreamReader( new FileInputStream( f ), "UTF-8" ) );
+
+			String line = br.readLine();
+			if ( !HEADER.equals( line ) ) {
+				throw new IOException( String.format( "Unexpected header in checksums file: %s", f.getName() ) );
+			}
+
+			while ( (line = br.readLine()) != null ) {
+				if ( line.length() == 0 ) continue;
+
+				String[] chunks = line.split( " ", 3 );
+				if ( chunks.length != 3 ) {
+					throw new IOException( String.format( "Malformed line in checksums file (%s): %s", f.getName(), line ) );
+				}
+				try {
+					long crc = Long.parseLong( chunks[0], 16 );
+					long size = Long.parseLong( chunks[1] );
+					result.put( chunks[2], size, crc );
+				}
+				catch ( NumberFormatException e ) {
+					throw new IOException( String.format( "Malformed line in checksums file (%s): %s", f.getName(), line ), e );
+				}
+			}
+		}
+		finally {
+			try {if ( br != null ) br.close();}
+			catch ( IOException e ) {}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Calculates checksums for every innerFile in a pack, in parallel.
+	 *
+	 * The pack must not be modified until this returns.
+	 *
+	 * @param threadCount number of innerFiles to read at once
+	 */
+	public static PackChecksums calculate( AbstractPack pack, int threadCount ) throws IOException {
+		PackChecksums result = new PackChecksums();
+
+		Map<String, EntryChecksum> actualMap = calculateAll( pack, pack.list(), threadCount, true );
+		for ( Map.Entry<String, EntryChecksum> entry : actualMap.entrySet() ) {
+			result.checksumMap.put( entry.getKey(), entry.getValue() );
+		}
+		return result;
+	}
+
+	/**
+	 * Compares every innerFile in a pack against expected checksums, in parallel.
+	 *
+	 * The pack must not be modified until this returns.
+	 *
+	 * @param threadCount number of innerFiles to read at once
+	 * @return a sorted list of innerPaths that were missing, unexpected, or had mismatched content
+	 */
+	public static List<String> verify( AbstractPack pack, PackChecksums expected, int threadCount ) throws IOException {
+		List<String> result = new ArrayList<String>();
+
+		List<String> innerPaths = pack.list();
+		Map<String, EntryChecksum> actualMap = calculateAll( pack, innerPaths, threadCount, false );
+
+		for ( String innerPath : innerPaths ) {
+			EntryChecksum e = expected.get( innerPath );
+			EntryChecksum a = actualMap.get( innerPath );
+			if ( e == null || a == null || e.size != a.size || e.crc != a.crc ) {
+				result.add( innerPath );
+			}
+		}
+		for ( String innerPath : expected.list() ) {
+			if ( !pack.contains( innerPath ) ) result.add( innerPath );
+		}
+
+		Collections.sort( result );
+		return result;
+	}
+
+	/**
+	 * Reads innerFiles concurrently and returns their checksums.
+	 *
+	 * Positional reads let worker threads share the pack's channel without
+	 * contending over a file pointer.
+	 *
+	 * @param failFast true to throw on unreadable innerFiles, false to omit them from the result
+	 */
+	private static Map<String, EntryChecksum> calculateAll( final AbstractPack pack, List<String> innerPaths, int threadCount, boolean failFast ) throws IOException {
+		Map<String, EntryChecksum> result = new HashMap<String, EntryChecksum>( innerPaths.size() );
+
+		ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, threadCount ) );
+		try {
+			Map<String, Future<EntryChecksum>> futureMap = new HashMap<String, Future<EntryChecksum>>( innerPaths.size() );
+			for ( final String innerPath : innerPaths ) {
+				futureMap.put( innerPath, executor.submit( new Callable<EntryChecksum>() {
+					@Override
+					public EntryChecksum call() throws IOException {
+						return calcEntryChecksum( pack, innerPath );
+					}
+				}) );
+			}
+
+			for ( Map.Entry<String, Future<EntryChecksum>> entry : futureMap.entrySet() ) {
+				try {
+					result.put( entry.getKey(), entry.getValue().get() );
+				}
+				catch ( ExecutionException e ) {
+					if ( failFast ) {
+						throw new IOException( String.format( "Could not read innerPath: %s", entry.getKey() ), e.getCause() );
+					}
+					// Otherwise, treat unreadable data (truncated, bad deflate stream, etc) as a mismatch.
+				}
+				catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					throw new IOException( "Interrupted while calculating checksums", e );
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		return result;
+	}
+
+	private static EntryChecksum calcEntryChecksum( AbstractPack pack, String innerPath ) throws IOException {
+		CRC32 crc = new CRC32();
+		long size = 0;
+
+		InputStream is = null;
+		try {
+			is = pack.getInputStream( innerPath );
+
+			byte[] buf = new byte[65536];
+			int len;
+			while ( (len = is.read( buf )) >= 0 ) {
+				crc.update( buf, 0, len );
+				size += len;
+			}
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+		}
+
+		return new EntryChecksum( size, crc.getValue() );
+	}
+
+
+
+	/**
+	 * A holder for an innerFile's (size + crc32).
+	 */
+	public static class EntryChecksum {
+		public long size = 0;
+		public long crc = 0;
+
+		public EntryChecksum( long size, long crc ) {
+			this.size = size;
+			this.crc = crc;
+		}
+	}
+}
@@ -7,12 +7,24 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
 
 
 public class PackUtilities {
 
+	/** Byte count to transfer per call when copying files. */
+	private static final long COPY_CHUNK_SIZE = 8 * 1024 * 1024;
+
+	/** Byte count of each sample hashed by calcFileFingerprint(). */
+	private static final int FINGERPRINT_SAMPLE_SIZE = 64 * 1024;
+
 	/**
 	 * Returns segments of a path string, split by each "/" occurrence.
 	 */
@@ -56,27 +68,188 @@ public class PackUtilities {
 
 	/**
 	 * Copies all bytes from one file to another.
+	 *
+	 * Bytes are written to a temporary file beside dstFile, which then
+	 * replaces it. An interrupted copy won't leave a partial dstFile.
 	 */
 	public static void copyFile( File srcFile, File dstFile ) throws IOException {
+		File tmpFile = new File( dstFile.getAbsoluteFile().getParentFile(), dstFile.getName() +".tmp" );
+
 		FileInputStream is = null;
 		FileOutputStream os = null;
 		try {
 			is = new FileInputStream( srcFile );
-			os = new FileOutputStream( dstFile );
+			os = new FileOutputStream( tmpFile );
+
+			FileChannel srcChannel = is.getChannel();
+			FileChannel dstChannel = os.getChannel();
+			long totalBytes = srcChannel.size();
+			long position = 0;
+			while ( position < totalBytes ) {
+				long len = srcChannel.transferTo( position, Math.min( COPY_CHUNK_SIZE, totalBytes - position ), dstChannel );
+				if ( len <= 0 ) {
+					throw new IOException( String.format( "Copying stalled at byte %d of %d: %s", position, totalBytes, srcFile.getName() ) );
+				}
+				position += len;
+			}
+			dstChannel.force( false );
+		}
+		catch ( IOException e ) {
+			try {if ( os != null ) os.close();}
+			catch ( IOException f ) {}
+
+			tmpFile.delete();
+			throw e;
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+
+			try {if ( os != null ) os.close();}
+			catch ( IOException e ) {}
+		}
+
+		replaceFile( tmpFile, dstFile );
+	}
 
-			byte[] buf = new byte[4096];
-			int len;
-			while ( (len = is.read( buf )) >= 0 ) {
-				os.write( buf, 0, len );
+	/**
+	 * Copies srcFile over dstFile, unless dstFile is known to be a copy already.
+	 *
+	 * After copying, a stamp file records srcFile's size and mtime, dstFile's
+	 * mtime, and a fingerprint. Later calls skip the copy if all of those
+	 * still match. Delete the stamp before modifying dstFile by other means,
+	 * in case the filesystem's mtime resolution is too coarse to notice.
+	 *
+	 * @return true if bytes were copied, false if dstFile was already up to date
+	 * @see #calcFileFingerprint(File)
+	 */
+	public static boolean syncFile( File srcFile, File dstFile, File stampFile ) throws IOException {
+		Properties stamp = null;
+		if ( stampFile.exists() ) {
+			try {
+				stamp = loadStamp( stampFile );
+			}
+			catch ( IOException e ) {
+				stamp = null;  // Unreadable, just copy.
+			}
+		}
+
+		if ( stamp != null && dstFile.exists() ) {
+			String srcLength = Long.toString( srcFile.length() );
+			String srcModified = Long.toString( srcFile.lastModified() );
+			String dstModified = Long.toString( dstFile.lastModified() );
+
+			if ( srcLength.equals( stamp.getProperty( "srcLength" ) ) &&
+			     srcModified.equals( stamp.getProperty( "srcModified" ) ) &&
+			     srcLength.equals( Long.toString( dstFile.length() ) ) &&
+			     dstModified.equals( stamp.getProperty( "dstModified" ) ) ) {
+
+				// Cheap checks passed. Sample dstFile's content to be sure.
+				String fingerprint = stamp.getProperty( "fingerprint" );
+				if ( fingerprint != null && fingerprint.equals( calcFileFingerprint( dstFile ) ) ) {
+					return false;
+				}
 			}
 		}
+
+		stampFile.delete();
+		copyFile( srcFile, dstFile );
+
+		stamp = new Properties();
+		stamp.setProperty( "srcLength", Long.toString( srcFile.length() ) );
+		stamp.setProperty( "srcModified", Long.toString( srcFile.lastModified() ) );
+		stamp.setProperty( "dstModified", Long.toString( dstFile.lastModified() ) );
+		stamp.setProperty( "fingerprint", calcFileFingerprint( srcFile ) );
+		saveStamp( stamp, stampFile );
+
+		return true;
+	}
+
+	private static Properties loadStamp( File stampFile ) throws IOException {
+		Properties result = new Properties();
+		InputStream is = null;
+		try {
+			is = new FileInputStream( stampFile );
+			result.load( is );
+		}
 		finally {
 			try {if ( is != null ) is.close();}
 			catch ( IOException e ) {}
+		}
+		return result;
+	}
 
+	private static void saveStamp( Properties stamp, File stampFile ) throws IOException {
+		File tmpFile = new File( stampFile.getAbsoluteFile().getParentFile(), stampFile.getName() +".tmp" );
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream( tmpFile );
+			stamp.store( os, "Slipstream copy stamp" );
+		}
+		finally {
 			try {if ( os != null ) os.close();}
 			catch ( IOException e ) {}
 		}
+		replaceFile( tmpFile, stampFile );
+	}
+
+	/**
+	 * Returns a cheap hash identifying a file's content, as lowercase hex.
+	 *
+	 * Rather than reading everything, this hashes the length and a few
+	 * samples from the head, middle, and tail.
+	 */
+	public static String calcFileFingerprint( File f ) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance( "MD5" );
+		}
+		catch ( NoSuchAlgorithmException e ) {
+			throw new IOException( "MD5 is unavailable", e );
+		}
+
+		FileInputStream is = null;
+		try {
+			is = new FileInputStream( f );
+			FileChannel channel = is.getChannel();
+			long totalBytes = channel.size();
+
+			ByteBuffer lengthBuf = ByteBuffer.allocate( 8 );
+			lengthBuf.putLong( 0, totalBytes );
+			md.update( lengthBuf.array() );
+
+			ByteBuffer buf = ByteBuffer.allocate( FINGERPRINT_SAMPLE_SIZE );
+			long[] sampleOffsets = new long[] {0, totalBytes/2 - FINGERPRINT_SAMPLE_SIZE/2, totalBytes - FINGERPRINT_SAMPLE_SIZE};
+			for ( long offset : sampleOffsets ) {
+				offset = Math.max( 0, offset );
+				buf.clear();
+				while ( buf.hasRemaining() && channel.read( buf, offset + buf.position() ) > 0 );
+				md.update( buf.array(), 0, buf.position() );
+			}
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+		}
+
+		byte[] hashBytes = md.digest();
+		StringBuilder hashStringBuf = new StringBuilder();
+		for ( byte b : hashBytes ) {
+			hashStringBuf.append( Integer.toString( (b & 0xff) + 0x100, 16 ).substring( 1 ) );
+		}
+		return hashStringBuf.toString();
+	}
+
+	/**
+	 * Moves srcFile over dstFile, atomically if the filesystem allows it.
+	 */
+	public static void replaceFile( File srcFile, File dstFile ) throws IOException {
+		try {
+			Files.move( srcFile.toPath(), dstFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch ( AtomicMoveNotSupportedException e ) {
+			Files.move( srcFile.toPath(), dstFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
 	}
 
 	/**
@@ -19,14 +19,21 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.DeflaterInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 
 import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.AbstractPack.ContentWriter;
 import net.vhati.ftldat.AbstractPack.PathAndSize;
 import net.vhati.ftldat.AbstractPack.RepackResult;
+import net.vhati.ftldat.ExtentJournal;
 import net.vhati.ftldat.FileChannelRegionInputStream;
-import net.vhati.ftldat.MeteredInputStream;
+import net.vhati.ftldat.JournalingRandomAccessFile;
+import net.vhati.ftldat.MeteredOutputStream;
+import net.vhati.ftldat.PackChecksums;
+import net.vhati.ftldat.RandomAccessFileOutputStream;
 
 
 /**
@@ -77,6 +84,8 @@ public class PkgPack extends AbstractPack {
 
 	private int pathsRegionSize = 0;
 	private boolean compressNewAdditions = false;
+	private long repackFloor = 0;
+	private PackChecksums checksums = null;
 
 
 	/**
@@ -120,12 +129,12 @@ public class PkgPack extends AbstractPack {
 				throw new FileNotFoundException( String.format( "The datFile was not found: %s", datFile.getPath() ) );
 
 			this.datFile = datFile;
-			raf = new RandomAccessFile( datFile, "rw" );
+			raf = new JournalingRandomAccessFile( datFile, "rw" );
 			readIndex();
 		}
 		else if ( mode.equals( "w+" ) ) {
 			this.datFile = datFile;
-			raf = new RandomAccessFile( datFile, "rw" );
+			raf = new JournalingRandomAccessFile( datFile, "rw" );
 			createIndex( entryCount );
 		}
 		else {
@@ -140,6 +149,11 @@ public class PkgPack extends AbstractPack {
 		compressNewAdditions = b;
 	}
 
+	@Override
+	public void setRepackFloor( long offset ) {
+		repackFloor = offset;
+	}
+
 	/**
 	 * Calculates a PKG hash of a path.
 	 *
@@ -520,8 +534,9 @@ public class PkgPack extends AbstractPack {
 		recycleBigByteBuffer( neededPathsRegionSize );
 		bigByteBuf.limit( neededPathsRegionSize );
 
+		raf.seek( firstGrowthEntryOffset );  // The old paths region.
 		raf.readFully( bigByteBuf.array(), 0, pathsRegionSize );
-		Arrays.fill( bigByteBuf.array(), pathsRegionSize+1, neededPathsRegionSize, (byte)0 );
+		Arrays.fill( bigByteBuf.array(), pathsRegionSize, neededPathsRegionSize, (byte)0 );
 		bigByteBuf.rewind();  // The backing array was modified directly, so this is a NOP.
 
 		raf.seek( neededPathsRegionOffset );  // Seeking past EOF is okay; write() will grow the file.
@@ -571,7 +586,27 @@ public class PkgPack extends AbstractPack {
 	 * Adds bytes read from an InputStream to the pack, as innerPath.
 	 */
 	@Override
-	public void add( String innerPath, InputStream is ) throws IOException {
+	public void add( String innerPath, final InputStream is ) throws IOException {
+		addFrom( innerPath, new ContentWriter() {
+			@Override
+			public void writeTo( OutputStream os ) throws IOException {
+				byte[] buf = new byte[4096];
+				int len;
+				while ( (len = is.read( buf )) >= 0 ) {
+					os.write( buf, 0, len );
+				}
+			}
+		});
+	}
+
+	/**
+	 * Adds bytes from a ContentWriter to the pack, as innerPath.
+	 *
+	 * The bytes are written directly into the dat. If the writer throws an
+	 * exception, the partial data is truncated away.
+	 */
+	@Override
+	public void addFrom( String innerPath, ContentWriter writer ) throws IOException {
 		if ( innerPath.contains( "\\" ) ) {
 			throw new IllegalArgumentException( "InnerPath contains backslashes: "+ innerPath );
 		}
@@ -604,36 +639,45 @@ public class PkgPack extends AbstractPack {
 		entry.unpackedSize = 0;     // Write this later.
 		entry.dataDeflated = compressNewAdditions;
 
-		MeteredInputStream srcMeterStream = new MeteredInputStream( is );
-		InputStream dataStream = srcMeterStream;
+		// Write data.
+		raf.seek( entry.dataOffset );
+		OutputStream dataStream = new RandomAccessFileOutputStream( raf );
 
+		DeflaterOutputStream deflaterStream = null;
 		if ( compressNewAdditions ) {
-			dataStream = new DeflaterInputStream( dataStream );
+			dataStream = deflaterStream = new DeflaterOutputStream( dataStream );
 		}
 
-		// Write data.
-		raf.seek( entry.dataOffset );
-		byte[] buf = new byte[4096];
-		int len;
-		while ( (len = dataStream.read( buf )) >= 0 ) {
-			raf.write( buf, 0, len );
-		}
+		MeteredOutputStream srcMeterStream = new MeteredOutputStream( dataStream );
+		OutputStream srcStream = srcMeterStream;
 
-		// Attempting to close the wrapper streams would cause an exception if
-		// the original stream was a ZipInputStream, which would need closeEntry().
+		CheckedOutputStream srcCheckedStream = null;
+		if ( checksums != null ) {
+			srcStream = srcCheckedStream = new CheckedOutputStream( srcStream, new CRC32() );
+		}
 
-		// TODO: Test if compression works without closing the wrapper.
+		boolean written = false;
+		try {
+			writer.writeTo( srcStream );
+			srcStream.flush();
+			if ( deflaterStream != null ) deflaterStream.close();  // Finishes, and leaves raf open.
+			written = true;
+		}
+		finally {
+			if ( !written ) raf.setLength( entry.dataOffset );
+		}
 
 		// Go back and fill in the dataSize.
 		entry.dataSize = raf.getChannel().position() - entry.dataOffset;
 		entry.unpackedSize = srcMeterStream.getCount();
 
 		// Write the innerPath string.
+		entry.innerPathOffset = innerPathOffset;
 		recycleBigByteBuffer( innerPath.length() + 1 );
 		bigByteBuf.limit( innerPath.length() + 1 );
 		writeNullTerminatedString( bigByteBuf, innerPath );
 		bigByteBuf.rewind();
-		raf.seek( innerPathOffset );
+		raf.seek( HEADER_SIZE + entryList.size() * ENTRY_SIZE + innerPathOffset );
 		raf.write( bigByteBuf.array(), bigByteBuf.position(), bigByteBuf.limit() );
 
 		entryList.set( entryIndex, entry );
@@ -642,6 +686,10 @@ public class PkgPack extends AbstractPack {
 		// Write the entry itself.
 		raf.seek( HEADER_SIZE + entryIndex * ENTRY_SIZE );
 		writePkgEntry( entry );
+
+		if ( srcCheckedStream != null ) {
+			checksums.put( innerPath, entry.unpackedSize, srcCheckedStream.getChecksum().getValue() );
+		}
 	}
 
 	@Override
@@ -676,6 +724,8 @@ public class PkgPack extends AbstractPack {
 		pathToIndexMap.remove( innerPath );
 		PkgEntry removedEntry = entryList.set( entryIndex, null );
 
+		if ( checksums != null ) checksums.remove( innerPath );
+
 		raf.seek( HEADER_SIZE + entryIndex * ENTRY_SIZE );
 		writePkgEntry( null );
 
@@ -716,6 +766,24 @@ public class PkgPack extends AbstractPack {
 		return stream;
 	}
 
+	@Override
+	public void setChecksums( PackChecksums checksums ) {
+		this.checksums = checksums;
+	}
+
+	@Override
+	public PackChecksums getChecksums() {
+		return checksums;
+	}
+
+	@Override
+	public void setExtentJournal( ExtentJournal journal ) {
+		if ( !(raf instanceof JournalingRandomAccessFile) ) {
+			throw new UnsupportedOperationException( "Journals can't be set on read-only dats" );
+		}
+		((JournalingRandomAccessFile)raf).setJournal( journal );
+	}
+
 	@Override
 	public void close() throws IOException {
 		raf.close();
@@ -803,11 +871,18 @@ public class PkgPack extends AbstractPack {
 
 		pathsRegionSize = neededPathsRegionSize;
 
-		// Move data toward the top.
+		// Move data toward the top, except below the floor.
 		long pendingDataOffset = neededMinDataOffset;
 
 		for ( PkgEntry entry : tmpEntries ) {
 
+			if ( entry.dataOffset < repackFloor ) {
+				pendingDataOffset = Math.max( pendingDataOffset, entry.dataOffset );
+			}
+			else {
+				pendingDataOffset = Math.max( pendingDataOffset, repackFloor );
+			}
+
 			if ( pendingDataOffset != entry.dataOffset ) {
 				long totalBytes = entry.dataSize;
 				long bytesRemaining = totalBytes;
@@ -0,0 +1,31 @@
+package net.vhati.ftldat;
+
+import java.io.OutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+
+/**
+ * An OutputStream that writes to a RandomAccessFile, at its file pointer.
+ *
+ * Closing this stream leaves the file open.
+ */
+public class RandomAccessFileOutputStream extends OutputStream {
+
+	private RandomAccessFile raf;
+
+
+	public RandomAccessFileOutputStream( RandomAccessFile raf ) {
+		this.raf = raf;
+	}
+
+	@Override
+	public void write( int b ) throws IOException {
+		raf.write( b );
+	}
+
+	@Override
+	public void write( byte[] b, int off, int len ) throws IOException {
+		raf.write( b, off, len );
+	}
+}
@@ -123,6 +123,7 @@ public class FTLModManager {
 			props.setProperty( SlipstreamConfig.UPDATE_APP, "" );          // Prompt.
 			props.setProperty( SlipstreamConfig.USE_DEFAULT_UI, "false" );
 			props.setProperty( SlipstreamConfig.REMEMBER_GEOMETRY, "true" );
+			props.setProperty( SlipstreamConfig.PATCH_CACHE_SIZE, "256" );
 			// "manager_geometry" doesn't have a default.
 
 			// Read the config file.
@@ -30,11 +30,13 @@ import net.vhati.ftldat.AbstractPack;
 import net.vhati.ftldat.FolderPack;
 import net.vhati.ftldat.PkgPack;
 import net.vhati.ftldat.FTLPack;
+import net.vhati.ftldat.PackChecksums;
 import net.vhati.modmanager.FTLModManager;
 import net.vhati.modmanager.core.DelayedDeleteHook;
 import net.vhati.modmanager.core.FTLUtilities;
 import net.vhati.modmanager.core.ModPatchObserver;
 import net.vhati.modmanager.core.ModPatchThread;
+import net.vhati.modmanager.core.ModPatchThread.BackedUpDat;
 import net.vhati.modmanager.core.ModUtilities;
 import net.vhati.modmanager.core.Report;
 import net.vhati.modmanager.core.Report.ReportFormatter;
@@ -159,11 +161,32 @@ public class SlipstreamCLI {
 
 		File datsDir = null;
 		if ( slipstreamCmd.extractDatsDir != null ||
+		     slipstreamCmd.verifyDats ||
 		     slipstreamCmd.patch ||
 		     slipstreamCmd.runftl ) {
 			datsDir = getDatsDir( appConfig );
 		}
 
+		if ( slipstreamCmd.verifyDats ) {  // Exits (0/1).
+			log.info( "Verifying dats..." );
+
+			boolean anyCorrupt = false;
+			try {
+				for ( BackedUpDat bud : ModPatchThread.getBackedUpDats( datsDir, backupDir ) ) {
+					if ( bud.bakFile.exists() ) {
+						if ( !verifyDat( bud, bud.bakFile, bud.bakChecksumsFile ) ) anyCorrupt = true;
+					}
+					if ( !verifyDat( bud, bud.datFile, bud.datChecksumsFile ) ) anyCorrupt = true;
+				}
+			}
+			catch ( IOException e ) {
+				log.error( "Error verifying dats", e );
+				System.exit( 1 );
+			}
+
+			System.exit( anyCorrupt ? 1 : 0 );
+		}
+
 		if ( slipstreamCmd.extractDatsDir != null ) {  // Exits (0/1).
 			log.info( "Extracting dats..." );
 
@@ -257,6 +280,7 @@ public class SlipstreamCLI {
 
 			SilentPatchObserver patchObserver = new SilentPatchObserver();
 			ModPatchThread patchThread = new ModPatchThread( modFiles, datsDir, backupDir, globalPanic, patchObserver );
+			patchThread.setPatchCacheSize( appConfig.getPropertyAsInt( SlipstreamConfig.PATCH_CACHE_SIZE, 256 ) * 1024L * 1024L );
 			patchThread.setDefaultUncaughtExceptionHandler( exceptionHandler );
 			deleteHook.addWatchedThread( patchThread );
 
@@ -344,6 +368,7 @@ public class SlipstreamCLI {
 		props.setProperty( SlipstreamConfig.NEVER_RUN_FTL, "false" );
 		props.setProperty( SlipstreamConfig.USE_DEFAULT_UI, "false" );
 		props.setProperty( SlipstreamConfig.REMEMBER_GEOMETRY, "true" );
+		props.setProperty( SlipstreamConfig.PATCH_CACHE_SIZE, "256" );
 		// "update_catalog" doesn't have a default.
 		// "update_app" doesn't have a default.
 		// "manager_geometry" doesn't have a default.
@@ -398,6 +423,43 @@ public class SlipstreamCLI {
 	}
 
 
+	/**
+	 * Checks a dat or backup against a checksums sidecar, logging the outcome.
+	 *
+	 * A missing sidecar is not treated as corruption.
+	 *
+	 * @return false if any innerFiles failed verification, true otherwise
+	 */
+	private static boolean verifyDat( BackedUpDat bud, File f, File checksumsFile ) throws IOException {
+		if ( !checksumsFile.exists() ) {
+			log.warn( String.format( "No checksums recorded for \"%s\" (they'll be recorded when patching)", f.getName() ) );
+			return true;
+		}
+
+		PackChecksums checksums = PackChecksums.load( checksumsFile );
+
+		AbstractPack pack = null;
+		try {
+			pack = bud.openPack( f, "r" );
+			List<String> badPaths = pack.verify( checksums );
+
+			for ( String innerPath : badPaths ) {
+				log.error( String.format( "Corrupt innerFile in \"%s\": %s", f.getName(), innerPath ) );
+			}
+			if ( badPaths.isEmpty() ) {
+				log.info( String.format( "\"%s\" is intact", f.getName() ) );
+			} else {
+				log.error( String.format( "\"%s\" failed verification (%d innerFiles)", f.getName(), badPaths.size() ) );
+			}
+			return badPaths.isEmpty();
+		}
+		finally {
+			try {if ( pack != null ) pack.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+
 	/**
 	 * Returns a temporary zip made from a directory.
 	 *
@@ -465,6 +527,9 @@ public class SlipstreamCLI {
 		@Option(names = "--extract-dats", paramLabel = "DIR", description = "extract FTL resources into a dir")
 		File extractDatsDir;
 
+		@Option(names = "--verify-dats", description = "check dats and backups against recorded checksums")
+		boolean verifyDats;
+
 		@Option(names = "--global-panic", description = "patch as if advanced find tags had panic='true'")
 		boolean globalPanic;
 
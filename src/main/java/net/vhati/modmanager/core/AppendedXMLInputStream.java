@@ -0,0 +1,455 @@
+package net.vhati.modmanager.core;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A stream of one XML text appended to another, as raw text.
+ *
+ * Any XML declarations and FTL root tags are stripped from both texts,
+ * just as the regex "(<[?]xml [^>]*?[?]>\n*)|(</?FTL>)" would remove them
+ * after decoding. A new declaration is prepended. If the main text had
+ * FTL tags, new ones enclose everything. Line endings will be CR-LF.
+ *
+ * Both texts' bytes are read up front, since a main text's innerPath is
+ * usually replaced by the result, and its encoding must be known before
+ * anything can be written. Then the texts are decoded, stripped, and
+ * reencoded a buffer at a time as this stream is read, never holding
+ * either one as chars.
+ *
+ * Unmappable chars cause an UnmappableCharacterException, thrown while
+ * reading.
+ *
+ * @see net.vhati.modmanager.core.ModUtilities#appendXMLFile(InputStream, InputStream, String, String, String)
+ */
+public class AppendedXMLInputStream extends InputStream {
+
+	private static final byte[] BOM_UTF8 = new byte[] {(byte)0xEF,(byte)0xBB,(byte)0xBF};
+	private static final byte[] BOM_UTF16LE = new byte[] {(byte)0xFF,(byte)0xFE};
+	private static final byte[] BOM_UTF16BE = new byte[] {(byte)0xFE,(byte)0xFF};
+
+	private static final String DECL_START = "<?xml ";
+	private static final String ROOT_START = "<FTL>";
+	private static final String ROOT_END = "</FTL>";
+
+	private final CharsetEncoder encoder;
+	private final Object[] segments;  // Strings to copy, or SourceTexts to strip.
+	private int segmentIndex = 0;
+
+	private Stripper stripper = null;
+	private CharsetDecoder decoder = null;
+	private ByteBuffer srcBytes = null;
+	private final CharBuffer srcChars = CharBuffer.allocate( 4096 );
+
+	private CharBuffer outChars = CharBuffer.allocate( 8192*2 );
+	private final ByteBuffer outBytes = ByteBuffer.allocate( 8192 );
+	private boolean finished = false;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param mainStream a stream to read the main text from, which will not be closed
+	 * @param appendStream a stream to read the appended text from, which will not be closed
+	 * @param encoding the encoding to write
+	 * @param mainDescription how error messages should refer to the main stream, or null
+	 * @param appendDescription how error messages should refer to the appended stream, or null
+	 * @throws IOException if reading or decoding either stream failed
+	 */
+	public AppendedXMLInputStream( InputStream mainStream, InputStream appendStream, String encoding, String mainDescription, String appendDescription ) throws IOException {
+		SourceText main = scan( mainStream, mainDescription );
+		SourceText append = scan( appendStream, appendDescription );
+
+		String decl = "<?xml version=\"1.0\" encoding=\""+ encoding +"\"?>\n";
+		if ( main.hadRootTags ) {
+			segments = new Object[] {decl +"<FTL>\n", main, "\n\n<!-- Appended by Slipstream -->\n\n", append, "\n</FTL>\n"};
+		} else {
+			segments = new Object[] {decl, main, "\n\n<!-- Appended by Slipstream -->\n\n", append, "\n"};
+		}
+
+		encoder = Charset.forName( encoding ).newEncoder();
+		outChars.flip();  // Empty, ready to be encoded.
+		outBytes.flip();  // Empty, ready to be read.
+	}
+
+
+	@Override
+	public int read() throws IOException {
+		if ( !fill() ) return -1;
+		return outBytes.get() & 0xff;
+	}
+
+	@Override
+	public int read( byte[] b, int off, int len ) throws IOException {
+		if ( len == 0 ) return 0;
+		if ( !fill() ) return -1;
+
+		int n = Math.min( len, outBytes.remaining() );
+		outBytes.get( b, off, n );
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return outBytes.remaining();
+	}
+
+	/**
+	 * Encodes chars until there are bytes to read.
+	 *
+	 * @return false if there are none left
+	 */
+	private boolean fill() throws IOException {
+		while ( !outBytes.hasRemaining() && !finished ) {
+			outBytes.clear();
+			while ( true ) {
+				// Like the writer appendXMLFile() used to use, never end input.
+				CoderResult cr = encoder.encode( outChars, outBytes, false );
+				if ( cr.isError() ) cr.throwException();
+				if ( cr.isOverflow() ) break;
+
+				outChars.compact();  // Keep any high surrogate awaiting the rest of its pair.
+				boolean produced = produce();
+				outChars.flip();
+				if ( !produced ) {
+					finished = true;
+					break;
+				}
+			}
+			outBytes.flip();
+		}
+		return outBytes.hasRemaining();
+	}
+
+	/**
+	 * Adds chars from the current segment to outChars, which must be in write mode.
+	 *
+	 * @return false if all segments are done
+	 */
+	private boolean produce() throws IOException {
+		while ( segmentIndex < segments.length ) {
+			Object segment = segments[segmentIndex];
+
+			if ( segment instanceof String ) {
+				emitAll( (String)segment );
+				segmentIndex++;
+				return true;
+			}
+
+			SourceText text = (SourceText)segment;
+			if ( stripper == null ) {
+				stripper = new Stripper( this );
+				decoder = Charset.forName( text.encoding ).newDecoder();
+				srcBytes = ByteBuffer.wrap( text.data, text.offset, text.length );
+			}
+
+			int startPos = outChars.position();
+			boolean more = decodeChunk( decoder, srcBytes, srcChars, stripper );
+			if ( !more ) {
+				stripper = null;
+				decoder = null;
+				srcBytes = null;
+				segmentIndex++;
+			}
+			if ( outChars.position() > startPos ) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Buffers a string, with CR-LF line endings.
+	 */
+	private void emitAll( String s ) {
+		for ( int i=0; i < s.length(); i++ ) {
+			emit( s.charAt( i ) );
+		}
+	}
+
+	/**
+	 * Buffers a char that has been through the stripper, with CR-LF line endings.
+	 */
+	private void emit( char c ) {
+		if ( outChars.remaining() < 2 ) {
+			CharBuffer bigger = CharBuffer.allocate( outChars.capacity()*2 );
+			outChars.flip();
+			bigger.put( outChars );
+			outChars = bigger;
+		}
+		if ( c == '\n' ) outChars.put( '\r' );
+		outChars.put( c );
+	}
+
+
+	/**
+	 * Decodes a chunk of bytes, feeding LF-normalized chars to a Stripper.
+	 *
+	 * @return false if all bytes have been decoded (and the stripper finished)
+	 */
+	private static boolean decodeChunk( CharsetDecoder decoder, ByteBuffer in, CharBuffer chars, Stripper stripper ) throws CharacterCodingException {
+		chars.clear();
+		CoderResult cr = decoder.decode( in, chars, true );
+		if ( cr.isError() ) cr.throwException();
+
+		boolean more = true;
+		if ( cr.isUnderflow() ) {
+			cr = decoder.flush( chars );
+			if ( cr.isError() ) cr.throwException();
+			if ( cr.isUnderflow() ) more = false;
+		}
+		chars.flip();
+
+		while ( chars.hasRemaining() ) {
+			stripper.feedRaw( chars.get() );
+		}
+		if ( !more ) stripper.finish();
+		return more;
+	}
+
+	/**
+	 * Reads all bytes from a stream and determines their encoding.
+	 *
+	 * This has the same BOM detection, and guesses, as
+	 * ModUtilities.decodeText(). Decoding also notes whether FTL root tags
+	 * were present.
+	 */
+	private static SourceText scan( InputStream is, String description ) throws IOException {
+		byte[] data = new byte[Math.max( is.available()+1, 4096 )];
+		int dataLen = 0;
+		int len;
+		while ( (len = is.read( data, dataLen, data.length-dataLen )) >= 0 ) {
+			dataLen += len;
+			if ( dataLen == data.length ) data = Arrays.copyOf( data, data.length*2 );
+		}
+
+		String encoding = null;
+		byte[] bom = null;
+
+		if ( startsWith( data, dataLen, BOM_UTF8 ) ) {
+			encoding = "UTF-8";
+			bom = BOM_UTF8;
+		}
+		else if ( startsWith( data, dataLen, BOM_UTF16LE ) ) {
+			encoding = "UTF-16LE";
+			bom = BOM_UTF16LE;
+		}
+		else if ( startsWith( data, dataLen, BOM_UTF16BE ) ) {
+			encoding = "UTF-16BE";
+			bom = BOM_UTF16BE;
+		}
+
+		CharBuffer chars = CharBuffer.allocate( 4096 );
+
+		if ( encoding != null ) {
+			// This may throw CharacterCodingException.
+			SourceText text = new SourceText( data, bom.length, dataLen-bom.length, encoding );
+			text.hadRootTags = scanChars( text, chars );
+			return text;
+		}
+
+		Map<String,Exception> errorMap = new LinkedHashMap<String,Exception>();
+		for ( String guess : new String[] {"UTF-8", "windows-1252"} ) {
+			try {
+				SourceText text = new SourceText( data, 0, dataLen, guess );
+				text.hadRootTags = scanChars( text, chars );
+				return text;
+			}
+			catch ( CharacterCodingException e ) {
+				errorMap.put( guess, e );
+			}
+		}
+
+		// All guesses failed!?
+		String msg = String.format( "Could not guess encoding for %s.", (description!=null ? "\""+description+"\"" : "a file") );
+		for ( Map.Entry<String,Exception> entry : errorMap.entrySet() ) {
+			msg += String.format( "\nFailed to decode as %s: %s", entry.getKey(), entry.getValue() );
+		}
+		throw new IOException( msg );
+	}
+
+	/**
+	 * Decodes a text, discarding the chars, to check for errors and FTL root tags.
+	 *
+	 * @return true if FTL root tags were stripped
+	 */
+	private static boolean scanChars( SourceText text, CharBuffer chars ) throws CharacterCodingException {
+		CharsetDecoder decoder = Charset.forName( text.encoding ).newDecoder();
+		ByteBuffer in = ByteBuffer.wrap( text.data, text.offset, text.length );
+		Stripper stripper = new Stripper( null );
+
+		while ( decodeChunk( decoder, in, chars, stripper ) );
+		return stripper.strippedRootTags;
+	}
+
+	private static boolean startsWith( byte[] data, int dataLen, byte[] prefix ) {
+		if ( dataLen < prefix.length ) return false;
+		for ( int i=0; i < prefix.length; i++ ) {
+			if ( data[i] != prefix[i] ) return false;
+		}
+		return true;
+	}
+
+
+
+	/**
+	 * A text's bytes, and how to decode them.
+	 */
+	private static class SourceText {
+		public final byte[] data;
+		public final int offset;
+		public final int length;
+		public final String encoding;
+		public boolean hadRootTags = false;
+
+		public SourceText( byte[] data, int offset, int length, String encoding ) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+			this.encoding = encoding;
+		}
+	}
+
+
+
+	/**
+	 * Removes XML declarations and FTL root tags from a text, fed one char at a time.
+	 *
+	 * This finds the same matches, in the same order, as
+	 * Matcher.find() would with "(<[?]xml [^>]*?[?]>\n*)|(</?FTL>)".
+	 * A possible match is held back until it's complete or ruled out.
+	 */
+	private static class Stripper {
+		private final AppendedXMLInputStream dst;
+		private final StringBuilder pending = new StringBuilder();
+		private boolean sawCR = false;
+		private boolean skippingLF = false;
+
+		public boolean strippedRootTags = false;
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param dst a stream to emit kept chars to, or null to discard them
+		 */
+		public Stripper( AppendedXMLInputStream dst ) {
+			this.dst = dst;
+		}
+
+		/**
+		 * Feeds a decoded char, normalizing CR-LF and CR to LF.
+		 */
+		public void feedRaw( char c ) {
+			if ( c == '\r' ) {
+				feed( '\n' );
+				sawCR = true;
+			}
+			else if ( c == '\n' ) {
+				if ( !sawCR ) feed( '\n' );
+				sawCR = false;
+			}
+			else {
+				feed( c );
+				sawCR = false;
+			}
+		}
+
+		private void feed( char c ) {
+			if ( skippingLF ) {
+				if ( c == '\n' ) return;
+				skippingLF = false;
+			}
+
+			if ( pending.length() == 0 ) {
+				if ( c == '<' ) {
+					pending.append( c );
+				} else {
+					keep( c );
+				}
+				return;
+			}
+
+			pending.append( c );
+			int len = pending.length();
+
+			if ( len > DECL_START.length() && startsWithDecl() ) {
+				// In the declaration's body, which ends at the first '>'.
+				if ( c != '>' ) return;
+				if ( pending.charAt( len-2 ) == '?' ) {
+					pending.setLength( 0 );
+					skippingLF = true;
+					return;
+				}
+				rejectFirst();
+				return;
+			}
+
+			if ( isPrefix( DECL_START ) || isPrefix( ROOT_START ) || isPrefix( ROOT_END ) ) {
+				if ( equalsPending( ROOT_START ) || equalsPending( ROOT_END ) ) {
+					pending.setLength( 0 );
+					strippedRootTags = true;
+				}
+				return;
+			}
+
+			rejectFirst();
+		}
+
+		/**
+		 * Rules out a match at the first pending char, keeping it.
+		 *
+		 * The rest are fed again, since a match may begin among them.
+		 */
+		private void rejectFirst() {
+			keep( pending.charAt( 0 ) );
+			String rest = pending.substring( 1 );
+			pending.setLength( 0 );
+			for ( int i=0; i < rest.length(); i++ ) {
+				feed( rest.charAt( i ) );
+			}
+		}
+
+		/**
+		 * Rules out any incomplete match at the end of the text.
+		 */
+		public void finish() {
+			while ( pending.length() > 0 ) {
+				rejectFirst();
+			}
+		}
+
+		private boolean startsWithDecl() {
+			for ( int i=0; i < DECL_START.length(); i++ ) {
+				if ( pending.charAt( i ) != DECL_START.charAt( i ) ) return false;
+			}
+			return true;
+		}
+
+		private boolean isPrefix( String s ) {
+			int len = pending.length();
+			if ( len > s.length() ) return false;
+			for ( int i=0; i < len; i++ ) {
+				if ( pending.charAt( i ) != s.charAt( i ) ) return false;
+			}
+			return true;
+		}
+
+		private boolean equalsPending( String s ) {
+			return ( pending.length() == s.length() && isPrefix( s ) );
+		}
+
+		private void keep( char c ) {
+			if ( dst != null ) dst.emit( c );
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package net.vhati.modmanager.core;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom2.Content;
+import org.jdom2.Element;
+import org.jdom2.filter.Filter;
+
+
+/**
+ * Lookups of an element's children by tag name and attribute values.
+ *
+ * Finding children by scanning them all is slow when an element has
+ * thousands, and mods may search for thousands of them. An element's
+ * index is built the first time it's searched, then kept up to date as
+ * children are added and removed, so long as the caller reports every
+ * change here. Changes that would be awkward to apply simply cause an
+ * element's index to be discarded, to be rebuilt when next needed.
+ *
+ * Each child is given a position, in document order, and every tag name
+ * and attribute value maps to a set of positions. A search intersects
+ * the sets for its criteria, then checks the remaining candidates. Since
+ * everything is checked, the sets only need to contain every match, not
+ * only matches. Removed children just leave their position empty.
+ *
+ * Attributes are only indexed by name once they've been searched for.
+ * Children's own children can be indexed too, to find children that
+ * have a child like something.
+ *
+ * Elements with only a few children aren't indexed, just scanned.
+ */
+public class ChildIndex {
+
+	private static final int MIN_INDEXED_CHILDREN = 16;
+
+	private Map<Element, Entry> entryMap = new IdentityHashMap<Element, Entry>();
+
+
+	public ChildIndex() {
+	}
+
+	/**
+	 * Returns children like a description, in document order.
+	 *
+	 * The list is a new one, which the caller may modify.
+	 *
+	 * @param type a tag name, or null for any
+	 * @param attrMap attributes (without namespaces) and their exact values
+	 * @param filter an additional test for each child, or null
+	 */
+	public List<Element> getChildren( Element parent, String type, Map<String,String> attrMap, Filter<Element> filter ) {
+		List<Element> result = new ArrayList<Element>();
+
+		Entry entry = getEntry( parent );
+		if ( entry == null ) {
+			for ( Element child : parent.getChildren() ) {
+				if ( isLike( child, type, attrMap ) && (filter == null || filter.matches( child )) ) {
+					result.add( child );
+				}
+			}
+			return result;
+		}
+
+		BitSet candidates = entry.getAllBits();
+		if ( type != null ) {
+			candidates.and( entry.getTypeBits( type ) );
+		}
+		for ( Map.Entry<String,String> attr : attrMap.entrySet() ) {
+			candidates.and( entry.getAttrBits( attr.getKey(), attr.getValue() ) );
+		}
+
+		for ( int i=candidates.nextSetBit( 0 ); i >= 0; i=candidates.nextSetBit( i+1 ) ) {
+			Element child = entry.positions.get( i );
+			if ( child != null && isLike( child, type, attrMap ) && (filter == null || filter.matches( child )) ) {
+				result.add( child );
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns children that have a child like a description, in document order.
+	 *
+	 * The list is a new one, which the caller may modify.
+	 *
+	 * @param type a tag name, or null for any
+	 * @param childType a tag name for the child, or null for any
+	 * @param childAttrMap attributes (without namespaces) and their exact values, for the child
+	 * @param filter the complete test for each child, which the rest only narrows down
+	 */
+	public List<Element> getChildrenWithChild( Element parent, String type, String childType, Map<String,String> childAttrMap, Filter<Element> filter ) {
+		List<Element> result = new ArrayList<Element>();
+
+		Entry entry = getEntry( parent );
+		if ( entry == null ) {
+			for ( Element child : parent.getChildren() ) {
+				if ( filter.matches( child ) ) result.add( child );
+			}
+			return result;
+		}
+
+		BitSet candidates = entry.getAllBits();
+		if ( type != null ) {
+			candidates.and( entry.getTypeBits( type ) );
+		}
+		if ( childType != null ) {
+			candidates.and( entry.getChildTypeBits( childType ) );
+		}
+		for ( Map.Entry<String,String> attr : childAttrMap.entrySet() ) {
+			candidates.and( entry.getChildAttrBits( attr.getKey(), attr.getValue() ) );
+		}
+
+		for ( int i=candidates.nextSetBit( 0 ); i >= 0; i=candidates.nextSetBit( i+1 ) ) {
+			Element child = entry.positions.get( i );
+			if ( child != null && filter.matches( child ) ) {
+				result.add( child );
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the first child with a tag name, in any namespace, or null.
+	 */
+	public Element getFirstChild( Element parent, String type ) {
+		Entry entry = getEntry( parent );
+		if ( entry == null ) return parent.getChild( type, null );
+
+		BitSet candidates = entry.getTypeBits( type );
+		for ( int i=candidates.nextSetBit( 0 ); i >= 0; i=candidates.nextSetBit( i+1 ) ) {
+			Element child = entry.positions.get( i );
+			if ( child != null ) return child;
+		}
+		return null;
+	}
+
+	/**
+	 * Notes that content was added to an element.
+	 */
+	public void added( Element parent, Content child ) {
+		if ( !(child instanceof Element) ) return;
+
+		Entry entry = entryMap.get( parent );
+		if ( entry != null ) {
+			// Appending is common (and cheap to index). Anything else is not.
+			int size = parent.getContentSize();
+			if ( parent.getContent( size-1 ) == child ) {
+				entry.add( (Element)child );
+			} else {
+				entryMap.remove( parent );
+			}
+		}
+
+		Entry parentEntry = getParentEntry( parent );
+		if ( parentEntry != null ) {
+			parentEntry.addGrandchild( parent, (Element)child );
+		}
+	}
+
+	/**
+	 * Notes that content was removed from an element.
+	 */
+	public void removed( Element parent, Content child ) {
+		if ( !(child instanceof Element) ) return;
+		entryMap.remove( child );
+
+		Entry entry = entryMap.get( parent );
+		if ( entry != null ) entry.remove( (Element)child );
+	}
+
+	/**
+	 * Notes that an element's attribute (without a namespace) was set or removed.
+	 *
+	 * @param value the new value, or null if removed
+	 */
+	public void attributeChanged( Element node, String attrName, String value ) {
+		if ( value == null ) return;  // Positions may linger where they no longer match.
+
+		Element parent = node.getParentElement();
+		if ( parent == null ) return;
+
+		Entry entry = entryMap.get( parent );
+		if ( entry != null ) entry.setAttr( node, attrName, value );
+
+		Entry parentEntry = getParentEntry( parent );
+		if ( parentEntry != null ) parentEntry.setGrandchildAttr( parent, attrName, value );
+	}
+
+	/**
+	 * Notes that all of an element's content was replaced.
+	 */
+	public void contentReplaced( Element parent ) {
+		entryMap.remove( parent );
+	}
+
+	/**
+	 * Discards every index, as if nothing had been searched yet.
+	 */
+	public void clear() {
+		entryMap.clear();
+	}
+
+	/**
+	 * Returns an element's index, building it if necessary, or null if it has few children.
+	 */
+	private Entry getEntry( Element parent ) {
+		Entry entry = entryMap.get( parent );
+		if ( entry != null ) return entry;
+
+		List<Element> children = parent.getChildren();
+		if ( children.size() < MIN_INDEXED_CHILDREN ) return null;
+
+		entry = new Entry();
+		for ( Element child : children ) {
+			entry.add( child );
+		}
+		entryMap.put( parent, entry );
+		return entry;
+	}
+
+	/**
+	 * Returns the index of an element's parent, if it has been built.
+	 */
+	private Entry getParentEntry( Element node ) {
+		Element parent = node.getParentElement();
+		return ( parent != null ? entryMap.get( parent ) : null );
+	}
+
+	private static boolean isLike( Element node, String type, Map<String,String> attrMap ) {
+		if ( type != null && !type.equals( node.getName() ) ) return false;
+
+		for ( Map.Entry<String,String> attr : attrMap.entrySet() ) {
+			if ( !attr.getValue().equals( node.getAttributeValue( attr.getKey() ) ) ) return false;
+		}
+		return true;
+	}
+
+
+
+	private static class Entry {
+		public List<Element> positions = new ArrayList<Element>();
+		public Map<Element, Integer> positionMap = new IdentityHashMap<Element, Integer>();
+
+		public Map<String, BitSet> typeMap = new HashMap<String, BitSet>();
+
+		/** Attribute names, mapped to values, mapped to positions. */
+		public Map<String, Map<String, BitSet>> attrMap = new HashMap<String, Map<String, BitSet>>();
+
+		/** The same for children's children, or null until needed. */
+		public Map<String, BitSet> childTypeMap = null;
+		public Map<String, Map<String, BitSet>> childAttrMap = new HashMap<String, Map<String, BitSet>>();
+
+
+		public BitSet getAllBits() {
+			BitSet result = new BitSet( positions.size() );
+			result.set( 0, positions.size() );
+			return result;
+		}
+
+		public BitSet getTypeBits( String type ) {
+			BitSet result = typeMap.get( type );
+			return ( result != null ? result : new BitSet() );
+		}
+
+		public BitSet getAttrBits( String attrName, String value ) {
+			Map<String, BitSet> valueMap = attrMap.get( attrName );
+			if ( valueMap == null ) {
+				valueMap = new HashMap<String, BitSet>();
+				for ( int i=0; i < positions.size(); i++ ) {
+					Element child = positions.get( i );
+					if ( child != null ) setBit( valueMap, child.getAttributeValue( attrName ), i );
+				}
+				attrMap.put( attrName, valueMap );
+			}
+			BitSet result = valueMap.get( value );
+			return ( result != null ? result : new BitSet() );
+		}
+
+		public BitSet getChildTypeBits( String type ) {
+			if ( childTypeMap == null ) {
+				childTypeMap = new HashMap<String, BitSet>();
+				for ( int i=0; i < positions.size(); i++ ) {
+					Element child = positions.get( i );
+					if ( child == null ) continue;
+
+					for ( Element grandchild : child.getChildren() ) {
+						setBit( childTypeMap, grandchild.getName(), i );
+					}
+				}
+			}
+			BitSet result = childTypeMap.get( type );
+			return ( result != null ? result : new BitSet() );
+		}
+
+		public BitSet getChildAttrBits( String attrName, String value ) {
+			Map<String, BitSet> valueMap = childAttrMap.get( attrName );
+			if ( valueMap == null ) {
+				valueMap = new HashMap<String, BitSet>();
+				for ( int i=0; i < positions.size(); i++ ) {
+					Element child = positions.get( i );
+					if ( child == null ) continue;
+
+					for ( Element grandchild : child.getChildren() ) {
+						setBit( valueMap, grandchild.getAttributeValue( attrName ), i );
+					}
+				}
+				childAttrMap.put( attrName, valueMap );
+			}
+			BitSet result = valueMap.get( value );
+			return ( result != null ? result : new BitSet() );
+		}
+
+		public void add( Element child ) {
+			int pos = positions.size();
+			positions.add( child );
+			positionMap.put( child, pos );
+
+			setBit( typeMap, child.getName(), pos );
+			for ( Map.Entry<String, Map<String, BitSet>> entry : attrMap.entrySet() ) {
+				setBit( entry.getValue(), child.getAttributeValue( entry.getKey() ), pos );
+			}
+			for ( Element grandchild : child.getChildren() ) {
+				addGrandchild( pos, grandchild );
+			}
+		}
+
+		public void remove( Element child ) {
+			Integer pos = positionMap.remove( child );
+			if ( pos != null ) positions.set( pos, null );
+		}
+
+		public void setAttr( Element child, String attrName, String value ) {
+			Integer pos = positionMap.get( child );
+			Map<String, BitSet> valueMap = attrMap.get( attrName );
+			if ( pos != null && valueMap != null ) setBit( valueMap, value, pos );
+		}
+
+		public void addGrandchild( Element child, Element grandchild ) {
+			Integer pos = positionMap.get( child );
+			if ( pos != null ) addGrandchild( pos, grandchild );
+		}
+
+		private void addGrandchild( int pos, Element grandchild ) {
+			if ( childTypeMap != null ) setBit( childTypeMap, grandchild.getName(), pos );
+			for ( Map.Entry<String, Map<String, BitSet>> entry : childAttrMap.entrySet() ) {
+				setBit( entry.getValue(), grandchild.getAttributeValue( entry.getKey() ), pos );
+			}
+		}
+
+		public void setGrandchildAttr( Element child, String attrName, String value ) {
+			Integer pos = positionMap.get( child );
+			Map<String, BitSet> valueMap = childAttrMap.get( attrName );
+			if ( pos != null && valueMap != null ) setBit( valueMap, value, pos );
+		}
+
+		private static void setBit( Map<String, BitSet> map, String key, int pos ) {
+			if ( key == null ) return;
+
+			BitSet bits = map.get( key );
+			if ( bits == null ) {
+				bits = new BitSet();
+				map.put( key, bits );
+			}
+			bits.set( pos );
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package net.vhati.modmanager.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom2.Attribute;
+import org.jdom2.AttributeType;
+import org.jdom2.CDATA;
+import org.jdom2.Comment;
+import org.jdom2.Content;
+import org.jdom2.DocType;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.EntityRef;
+import org.jdom2.JDOMFactory;
+import org.jdom2.Namespace;
+import org.jdom2.ProcessingInstruction;
+import org.jdom2.Text;
+import org.jdom2.UncheckedJDOMFactory;
+
+import net.vhati.modmanager.core.ModUtilities.WrappedDocument;
+
+
+/**
+ * A compact binary form of a parsed document, which loads without parsing.
+ *
+ * Every distinct string (names, namespaces, values, text) is written
+ * once, to a table. Then nodes are written in document order, as an
+ * array of kinds and an array of ints (mostly string table indexes).
+ * An element's content follows it, ending with an END kind. Ints are
+ * written in as few bytes as their magnitude allows.
+ *
+ * Content is reproduced exactly, including empty and adjacent text
+ * nodes, which matter to SloppyXMLOutputProcessor. Loading doesn't
+ * check names, since the document was already accepted once.
+ *
+ * Strings that UTF-8 can't represent (unpaired surrogates) can't be
+ * written. Callers should simply not keep a snapshot in that case.
+ */
+public class DocumentSnapshot {
+
+	private static final int MAGIC = 0x534D4453;  // "SMDS"
+	private static final int VERSION = 1;
+
+	private static final byte END = 0;
+	private static final byte ELEMENT = 1;
+	private static final byte TEXT = 2;
+	private static final byte CDATA_TEXT = 3;
+	private static final byte COMMENT = 4;
+	private static final byte PROCESSING_INSTRUCTION = 5;
+	private static final byte ENTITY_REF = 6;
+	private static final byte DOCTYPE = 7;
+
+	/** Added to an attribute's type if it was not specified (defaulted). */
+	private static final int UNSPECIFIED_FLAG = 0x100;
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+
+	private DocumentSnapshot() {
+	}
+
+	/**
+	 * Writes a wrapped document.
+	 *
+	 * The stream will be flushed but not closed.
+	 *
+	 * @throws CharacterCodingException if a string can't be encoded
+	 */
+	public static void write( WrappedDocument wrappedDoc, OutputStream os ) throws IOException {
+		Writer writer = new Writer();
+		for ( Content c : wrappedDoc.doc.getContent() ) {
+			writer.addContent( c );
+		}
+
+		DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( os ) );
+		dos.writeInt( MAGIC );
+		dos.writeInt( VERSION );
+		dos.writeBoolean( wrappedDoc.hadRootTags );
+
+		writeVarInt( dos, writer.stringList.size() );
+		for ( String s : writer.stringList ) {
+			ByteBuffer encoded = UTF8.newEncoder().encode( CharBuffer.wrap( s ) );
+			writeVarInt( dos, encoded.remaining() );
+			dos.write( encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining() );
+		}
+
+		writeVarInt( dos, writer.kindCount );
+		dos.write( writer.kinds, 0, writer.kindCount );
+
+		writeVarInt( dos, writer.dataCount );
+		for ( int i=0; i < writer.dataCount; i++ ) {
+			writeVarInt( dos, writer.data[i] + 1 );  // Null strings are -1.
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Reads a wrapped document.
+	 *
+	 * The stream will not be closed.
+	 *
+	 * @throws IOException if the snapshot is incomplete or malformed
+	 */
+	public static WrappedDocument read( InputStream is ) throws IOException {
+		DataInputStream dis = new DataInputStream( new BufferedInputStream( is ) );
+		if ( dis.readInt() != MAGIC ) throw new IOException( "Not a document snapshot" );
+
+		int version = dis.readInt();
+		if ( version != VERSION ) {
+			throw new IOException( String.format( "Unsupported document snapshot version: %d", version ) );
+		}
+		boolean hadRootTags = dis.readBoolean();
+
+		String[] strings = new String[readCount( dis )];
+		for ( int i=0; i < strings.length; i++ ) {
+			byte[] encoded = new byte[readCount( dis )];
+			dis.readFully( encoded );
+			strings[i] = UTF8.newDecoder().decode( ByteBuffer.wrap( encoded ) ).toString();
+		}
+
+		byte[] kinds = new byte[readCount( dis )];
+		dis.readFully( kinds );
+
+		int[] data = new int[readCount( dis )];
+		for ( int i=0; i < data.length; i++ ) {
+			data[i] = readVarInt( dis ) - 1;
+		}
+
+		Reader reader = new Reader( strings, kinds, data );
+		try {
+			Document doc = reader.factory.document( null );
+			while ( reader.kindPos < kinds.length ) {
+				reader.factory.addContent( doc, reader.readContent( kinds[reader.kindPos++] ) );
+			}
+			return new WrappedDocument( doc, hadRootTags );
+		}
+		catch ( RuntimeException e ) {
+			// Out of bounds indexes, or content where a document can't hold it.
+			throw new IOException( "Malformed document snapshot", e );
+		}
+	}
+
+	private static int readCount( DataInputStream dis ) throws IOException {
+		int count = readVarInt( dis );
+		if ( count < 0 ) throw new IOException( "Malformed document snapshot" );
+		return count;
+	}
+
+	/**
+	 * Writes a non-negative int, seven bits per byte, low bits first.
+	 */
+	private static void writeVarInt( DataOutputStream dos, int n ) throws IOException {
+		while ( (n & ~0x7F) != 0 ) {
+			dos.writeByte( (n & 0x7F) | 0x80 );
+			n >>>= 7;
+		}
+		dos.writeByte( n );
+	}
+
+	private static int readVarInt( DataInputStream dis ) throws IOException {
+		int result = 0;
+		for ( int shift=0; shift < 35; shift += 7 ) {
+			int b = dis.readUnsignedByte();
+			result |= (b & 0x7F) << shift;
+			if ( (b & 0x80) == 0 ) return result;
+		}
+		throw new IOException( "Malformed document snapshot" );
+	}
+
+
+
+	private static class Writer {
+		public List<String> stringList = new ArrayList<String>();
+		public Map<String, Integer> stringMap = new HashMap<String, Integer>();
+
+		public byte[] kinds = new byte[1024];
+		public int kindCount = 0;
+
+		public int[] data = new int[4096];
+		public int dataCount = 0;
+
+
+		public void addContent( Content c ) {
+			if ( c instanceof Element ) {
+				Element node = (Element)c;
+				addKind( ELEMENT );
+				addString( node.getName() );
+				addNamespace( node.getNamespace() );
+
+				List<Namespace> additionalNamespaces = node.getAdditionalNamespaces();
+				addInt( additionalNamespaces.size() );
+				for ( Namespace ns : additionalNamespaces ) {
+					addNamespace( ns );
+				}
+
+				List<Attribute> attributes = node.getAttributes();
+				addInt( attributes.size() );
+				for ( Attribute attr : attributes ) {
+					addString( attr.getName() );
+					addNamespace( attr.getNamespace() );
+					addString( attr.getValue() );
+					addInt( attr.getAttributeType().ordinal() | (attr.isSpecified() ? 0 : UNSPECIFIED_FLAG) );
+				}
+
+				for ( Content child : node.getContent() ) {
+					addContent( child );
+				}
+				addKind( END );
+			}
+			else if ( c instanceof CDATA ) {  // Check before Text, its superclass.
+				addKind( CDATA_TEXT );
+				addString( ((CDATA)c).getText() );
+			}
+			else if ( c instanceof Text ) {
+				addKind( TEXT );
+				addString( ((Text)c).getText() );
+			}
+			else if ( c instanceof Comment ) {
+				addKind( COMMENT );
+				addString( ((Comment)c).getText() );
+			}
+			else if ( c instanceof ProcessingInstruction ) {
+				ProcessingInstruction pi = (ProcessingInstruction)c;
+				addKind( PROCESSING_INSTRUCTION );
+				addString( pi.getTarget() );
+				addString( pi.getData() );
+			}
+			else if ( c instanceof EntityRef ) {
+				EntityRef ref = (EntityRef)c;
+				addKind( ENTITY_REF );
+				addString( ref.getName() );
+				addString( ref.getPublicID() );
+				addString( ref.getSystemID() );
+			}
+			else if ( c instanceof DocType ) {
+				DocType docType = (DocType)c;
+				addKind( DOCTYPE );
+				addString( docType.getElementName() );
+				addString( docType.getPublicID() );
+				addString( docType.getSystemID() );
+				addString( docType.getInternalSubset() );
+			}
+			else {
+				throw new IllegalArgumentException( String.format( "Unexpected content: %s", c.getClass().getName() ) );
+			}
+		}
+
+		private void addNamespace( Namespace ns ) {
+			addString( ns.getPrefix() );
+			addString( ns.getURI() );
+		}
+
+		private void addString( String s ) {
+			if ( s == null ) {
+				addInt( -1 );
+				return;
+			}
+			Integer index = stringMap.get( s );
+			if ( index == null ) {
+				index = stringList.size();
+				stringList.add( s );
+				stringMap.put( s, index );
+			}
+			addInt( index );
+		}
+
+		private void addKind( byte kind ) {
+			if ( kindCount == kinds.length ) {
+				byte[] tmp = new byte[kinds.length * 2];
+				System.arraycopy( kinds, 0, tmp, 0, kindCount );
+				kinds = tmp;
+			}
+			kinds[kindCount++] = kind;
+		}
+
+		private void addInt( int n ) {
+			if ( dataCount == data.length ) {
+				int[] tmp = new int[data.length * 2];
+				System.arraycopy( data, 0, tmp, 0, dataCount );
+				data = tmp;
+			}
+			data[dataCount++] = n;
+		}
+	}
+
+
+
+	private static class Reader {
+		public final JDOMFactory factory = new UncheckedJDOMFactory();
+		public final String[] strings;
+		public final byte[] kinds;
+		public final int[] data;
+		public int kindPos = 0;
+		public int dataPos = 0;
+
+		public Reader( String[] strings, byte[] kinds, int[] data ) {
+			this.strings = strings;
+			this.kinds = kinds;
+			this.data = data;
+		}
+
+
+		public Content readContent( byte kind ) throws IOException {
+			if ( kind == ELEMENT ) {
+				String name = nextString();
+				Element node = factory.element( name, nextNamespace() );
+
+				int nsCount = nextInt();
+				for ( int i=0; i < nsCount; i++ ) {
+					factory.addNamespaceDeclaration( node, nextNamespace() );
+				}
+
+				int attrCount = nextInt();
+				for ( int i=0; i < attrCount; i++ ) {
+					String attrName = nextString();
+					Namespace attrNS = nextNamespace();
+					String attrValue = nextString();
+					int typeBits = nextInt();
+
+					Attribute attr = factory.attribute( attrName, attrValue, AttributeType.values()[typeBits & ~UNSPECIFIED_FLAG], attrNS );
+					attr.setSpecified( (typeBits & UNSPECIFIED_FLAG) == 0 );
+					factory.setAttribute( node, attr );
+				}
+
+				byte childKind;
+				while ( (childKind = kinds[kindPos++]) != END ) {
+					factory.addContent( node, readContent( childKind ) );
+				}
+				return node;
+			}
+			else if ( kind == CDATA_TEXT ) {
+				return factory.cdata( nextString() );
+			}
+			else if ( kind == TEXT ) {
+				return factory.text( nextString() );
+			}
+			else if ( kind == COMMENT ) {
+				return factory.comment( nextString() );
+			}
+			else if ( kind == PROCESSING_INSTRUCTION ) {
+				String target = nextString();
+				return factory.processingInstruction( target, nextString() );
+			}
+			else if ( kind == ENTITY_REF ) {
+				String name = nextString();
+				String publicID = nextString();
+				return factory.entityRef( name, publicID, nextString() );
+			}
+			else if ( kind == DOCTYPE ) {
+				String elementName = nextString();
+				String publicID = nextString();
+				String systemID = nextString();
+				DocType docType = factory.docType( elementName, publicID, systemID );
+				docType.setInternalSubset( nextString() );
+				return docType;
+			}
+			else {
+				throw new IOException( String.format( "Unexpected node kind in document snapshot: %d", kind ) );
+			}
+		}
+
+		private Namespace nextNamespace() {
+			String prefix = nextString();
+			return Namespace.getNamespace( prefix, nextString() );
+		}
+
+		private String nextString() {
+			int index = data[dataPos++];
+			return ( index == -1 ? null : strings[index] );
+		}
+
+		private int nextInt() {
+			return data[dataPos++];
+		}
+	}
+}
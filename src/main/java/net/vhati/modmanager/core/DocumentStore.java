@@ -0,0 +1,209 @@
+package net.vhati.modmanager.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.vhati.ftldat.PackUtilities;
+import net.vhati.modmanager.core.DocumentSnapshot;
+import net.vhati.modmanager.core.ModUtilities.WrappedDocument;
+
+
+/**
+ * A size-bounded store of parsed documents, as snapshot files.
+ *
+ * Each document is named by a key derived from whatever it was parsed
+ * from. Keys also include the app version, since parsing may differ
+ * between versions. When the total size exceeds a limit, the least
+ * recently used snapshots are deleted.
+ *
+ * This is only a shortcut. Snapshots that can't be written or read are
+ * skipped (and deleted), so the caller will parse as usual.
+ *
+ * This class is thread-safe.
+ *
+ * @see DocumentSnapshot
+ */
+public class DocumentStore {
+
+	private static final Logger log = LoggerFactory.getLogger( DocumentStore.class );
+
+	private static final String SNAPSHOT_SUFFIX = ".snapshot";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private File storeDir;
+	private long maxBytes;
+	private String appVersion;
+
+	private final Object countLock = new Object();
+	private int hitCount = 0;
+	private int missCount = 0;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param storeDir a directory to hold snapshots (created as needed)
+	 * @param maxBytes the total size to keep snapshots within
+	 * @param appVersion the version of the app doing the parsing
+	 */
+	public DocumentStore( File storeDir, long maxBytes, String appVersion ) {
+		this.storeDir = storeDir;
+		this.maxBytes = maxBytes;
+		this.appVersion = appVersion;
+	}
+
+	/**
+	 * Returns a key identifying a document, as lowercase hex.
+	 *
+	 * @param parts strings that together determine the document
+	 */
+	public String calcKey( String... parts ) throws IOException {
+		StringBuilder buf = new StringBuilder();
+		buf.append( "version " ).append( appVersion ).append( "\n" );
+		for ( String part : parts ) {
+			buf.append( part ).append( "\n" );
+		}
+
+		try {
+			return PackUtilities.calcStreamMD5( new ByteArrayInputStream( buf.toString().getBytes( "UTF-8" ) ) );
+		}
+		catch ( NoSuchAlgorithmException e ) {
+			throw new IOException( "MD5 is unavailable", e );
+		}
+	}
+
+	/**
+	 * Returns a new copy of a stored document, or null.
+	 *
+	 * The snapshot will be marked as recently used.
+	 */
+	public WrappedDocument get( String key ) {
+		File snapshotFile = new File( storeDir, key + SNAPSHOT_SUFFIX );
+
+		WrappedDocument result = null;
+		if ( snapshotFile.isFile() ) {
+			FileInputStream is = null;
+			try {
+				is = new FileInputStream( snapshotFile );
+				result = DocumentSnapshot.read( is );
+			}
+			catch ( IOException e ) {
+				log.debug( String.format( "Discarding unreadable document snapshot: %s", snapshotFile.getName() ), e );
+			}
+			finally {
+				try {if ( is != null ) is.close();}
+				catch ( IOException e ) {}
+			}
+
+			if ( result != null ) {
+				snapshotFile.setLastModified( System.currentTimeMillis() );
+			} else {
+				snapshotFile.delete();
+			}
+		}
+
+		synchronized ( countLock ) {
+			if ( result != null ) hitCount++; else missCount++;
+		}
+		return result;
+	}
+
+	/**
+	 * Stores a document, replacing any with the same key.
+	 *
+	 * The document itself is left as it was.
+	 */
+	public void put( String key, WrappedDocument wrappedDoc ) {
+		File snapshotFile = new File( storeDir, key + SNAPSHOT_SUFFIX );
+		File tmpFile = null;
+		FileOutputStream os = null;
+		try {
+			if ( !storeDir.exists() ) storeDir.mkdirs();
+
+			tmpFile = File.createTempFile( key, TMP_SUFFIX, storeDir );
+			os = new FileOutputStream( tmpFile );
+			DocumentSnapshot.write( wrappedDoc, os );
+			os.close();
+			os = null;
+
+			if ( snapshotFile.exists() ) snapshotFile.delete();
+			if ( !tmpFile.renameTo( snapshotFile ) ) {
+				throw new IOException( String.format( "Could not rename document snapshot: %s", tmpFile.getName() ) );
+			}
+			tmpFile = null;
+		}
+		catch ( IOException e ) {
+			log.debug( String.format( "Could not store document snapshot: %s", snapshotFile.getName() ), e );
+		}
+		finally {
+			try {if ( os != null ) os.close();}
+			catch ( IOException e ) {}
+
+			if ( tmpFile != null ) tmpFile.delete();
+		}
+	}
+
+	public int getHitCount() {
+		synchronized ( countLock ) {
+			return hitCount;
+		}
+	}
+
+	public int getMissCount() {
+		synchronized ( countLock ) {
+			return missCount;
+		}
+	}
+
+	/**
+	 * Deletes least recently used snapshots until the store fits its limit.
+	 *
+	 * Leftover temporary files are deleted as well. This should not be
+	 * called while documents are being stored.
+	 */
+	public void evict() {
+		File[] files = storeDir.listFiles();
+		if ( files == null ) return;
+
+		List<File> snapshotFiles = new ArrayList<File>( files.length );
+		for ( File f : files ) {
+			if ( !f.isFile() ) continue;
+
+			if ( f.getName().endsWith( TMP_SUFFIX ) ) {
+				f.delete();
+			} else if ( f.getName().endsWith( SNAPSHOT_SUFFIX ) ) {
+				snapshotFiles.add( f );
+			}
+		}
+
+		// Newest first.
+		Collections.sort( snapshotFiles, new Comparator<File>() {
+			@Override
+			public int compare( File a, File b ) {
+				long aModified = a.lastModified();
+				long bModified = b.lastModified();
+				return ( aModified > bModified ? -1 : (aModified < bModified ? 1 : 0) );
+			}
+		});
+
+		long totalBytes = 0;
+		for ( File snapshotFile : snapshotFiles ) {
+			totalBytes += snapshotFile.length();
+			if ( totalBytes > maxBytes ) {
+				log.debug( String.format( "Evicting document snapshot: %s", snapshotFile.getName() ) );
+				snapshotFile.delete();
+			}
+		}
+	}
+}
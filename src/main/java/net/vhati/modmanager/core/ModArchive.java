@@ -0,0 +1,200 @@
+package net.vhati.modmanager.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+
+import net.vhati.modmanager.core.PatchPlan.OpType;
+
+
+/**
+ * A mod file, opened for random access, with its entries classified.
+ *
+ * The zip's central directory is read once, when constructed. Each
+ * entry's data is read on demand, by any number of threads. Stylesheets
+ * are used twice (copied, then applied), so their bytes are kept after
+ * the first read.
+ */
+public class ModArchive {
+
+	// Group1: parentPath/, Group2: root/, Group3: fileName.
+	private static final Pattern pathPtn = Pattern.compile( "^(?:(([^/]+/)(?:.*/)?))?([^/]+)$" );
+
+	private File modFile;
+	private ZipFile zipFile;
+	private List<ModEntry> entryList = new ArrayList<ModEntry>();
+	private List<ModEntry> transformList = new ArrayList<ModEntry>();
+	private Map<ModEntry, byte[]> stylesheetMap = new HashMap<ModEntry, byte[]>();
+
+
+	public ModArchive( File modFile ) throws IOException {
+		this.modFile = modFile;
+		zipFile = new ZipFile( modFile );
+
+		try {
+			Enumeration<? extends ZipEntry> items = zipFile.entries();
+			while ( items.hasMoreElements() ) {
+				ZipEntry item = items.nextElement();
+				if ( item.isDirectory() ) continue;
+
+				ModEntry modEntry = new ModEntry( item );
+				entryList.add( modEntry );
+
+				if ( modEntry.type == OpType.STYLESHEET ) {
+					ModEntry transformEntry = new ModEntry( item );
+					transformEntry.type = OpType.TRANSFORM;
+					transformEntry.targetPath = modEntry.parentPath + modEntry.fileName.replaceAll( "[.]xsl$", ".xml" );
+					transformEntry.stylesheetEntry = modEntry;
+					transformList.add( transformEntry );
+				}
+			}
+		}
+		catch ( RuntimeException e ) {
+			try {zipFile.close();}
+			catch ( IOException f ) {}
+			throw e;
+		}
+	}
+
+	public File getFile() {
+		return modFile;
+	}
+
+	/**
+	 * Returns every non-directory entry, in the order they were zipped.
+	 */
+	public List<ModEntry> getEntries() {
+		return Collections.unmodifiableList( entryList );
+	}
+
+	/**
+	 * Returns an entry for each stylesheet, to transform an XML file after
+	 * all other entries have been installed.
+	 */
+	public List<ModEntry> getTransforms() {
+		return Collections.unmodifiableList( transformList );
+	}
+
+	/**
+	 * Returns a description of an entry, for messages.
+	 */
+	public String describe( ModEntry modEntry ) {
+		return modFile.getName() +":"+ modEntry.parentPath + modEntry.fileName;
+	}
+
+	/**
+	 * Returns an InputStream to get bytes from an entry.
+	 */
+	public InputStream getInputStream( ModEntry modEntry ) throws IOException {
+		ModEntry stylesheetEntry = ( modEntry.stylesheetEntry != null ? modEntry.stylesheetEntry : modEntry );
+		if ( stylesheetEntry.type != OpType.STYLESHEET ) {
+			return zipFile.getInputStream( modEntry.zipEntry );
+		}
+
+		synchronized ( stylesheetMap ) {
+			byte[] data = stylesheetMap.get( stylesheetEntry );
+			if ( data == null ) {
+				InputStream is = null;
+				try {
+					is = zipFile.getInputStream( stylesheetEntry.zipEntry );
+					data = IOUtils.toByteArray( is );
+				}
+				finally {
+					try {if ( is != null ) is.close();}
+					catch ( IOException e ) {}
+				}
+				stylesheetMap.put( stylesheetEntry, data );
+			}
+			return new ByteArrayInputStream( data );
+		}
+	}
+
+	public void close() throws IOException {
+		zipFile.close();
+	}
+
+
+
+	/**
+	 * A zip entry, and what installing it would do.
+	 */
+	public static class ModEntry {
+		public ZipEntry zipEntry = null;
+
+		/** The entry's name, with forward slashes. */
+		public String path = null;
+
+		/** Parts of the path, or null if it was unexpected (fileName is never null otherwise). */
+		public String parentPath = null;
+		public String root = null;
+		public String fileName = null;
+
+		public OpType type = null;
+
+		/** The innerPath this entry would modify, before case-correction. */
+		public String targetPath = null;
+
+		/** For transforms, the stylesheet entry. */
+		public ModEntry stylesheetEntry = null;
+
+		private ModEntry( ZipEntry zipEntry ) {
+			this.zipEntry = zipEntry;
+
+			path = zipEntry.getName();
+			path = path.replace( '\\', '/' );  // Non-standard zips.
+
+			Matcher m = pathPtn.matcher( path );
+			if ( !m.matches() ) return;
+
+			parentPath = m.group( 1 );
+			root = m.group( 2 );
+			fileName = m.group( 3 );
+
+			targetPath = path;
+			if ( fileName.endsWith( ".xml.append" ) || fileName.endsWith( ".append.xml" ) ) {
+				targetPath = parentPath + fileName.replaceAll( "[.](?:xml[.]append|append[.]xml)$", ".xml" );
+				type = OpType.APPEND;
+			}
+			else if ( fileName.endsWith( ".xml.rawappend" ) || fileName.endsWith( ".rawappend.xml" ) ) {
+				targetPath = parentPath + fileName.replaceAll( "[.](?:xml[.]rawappend|rawappend[.]xml)$", ".xml" );
+				type = OpType.RAWAPPEND;
+			}
+			else if ( fileName.endsWith( ".xml.rawclobber" ) || fileName.endsWith( ".rawclobber.xml" ) ) {
+				targetPath = parentPath + fileName.replaceAll( "[.](?:xml[.]rawclobber|rawclobber[.]xml)$", ".xml" );
+				type = OpType.RAWCLOBBER;
+			}
+			else if ( fileName.endsWith( ".xml" ) ) {
+				type = OpType.XML;
+			}
+			else if ( fileName.endsWith( ".xsl" ) ) {
+				type = OpType.STYLESHEET;
+			}
+			else if ( fileName.endsWith( ".txt" ) ) {
+				type = OpType.TXT;
+			}
+			else {
+				type = OpType.OTHER;
+			}
+		}
+
+		/**
+		 * Returns true if the entry's path could be parsed.
+		 */
+		public boolean isExpected() {
+			return ( fileName != null );
+		}
+	}
+}
@@ -1,31 +1,64 @@
 package net.vhati.modmanager.core;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom2.Document;
 import org.jdom2.JDOMException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.AbstractPack.ContentWriter;
+import net.vhati.ftldat.ExtentJournal;
 import net.vhati.ftldat.FTLPack;
 import net.vhati.ftldat.PkgPack;
+import net.vhati.ftldat.PackChecksums;
+import net.vhati.ftldat.PackChecksums.EntryChecksum;
 import net.vhati.ftldat.PackContainer;
 import net.vhati.ftldat.PackUtilities;
+import net.vhati.modmanager.FTLModManager;
+import net.vhati.modmanager.core.DocumentStore;
+import net.vhati.modmanager.core.ModArchive;
+import net.vhati.modmanager.core.ModArchive.ModEntry;
+import net.vhati.modmanager.core.ModUtilities.WrappedDocument;
+import net.vhati.modmanager.core.PatchCache;
+import net.vhati.modmanager.core.PatchCheckpoint;
+import net.vhati.modmanager.core.PatchPlan;
+import net.vhati.modmanager.core.PatchPlan.OpType;
+import net.vhati.modmanager.core.PatchPlan.PatchChain;
+import net.vhati.modmanager.core.PatchPlan.PatchOp;
+import net.vhati.modmanager.core.PatchPlan.PatchStage;
+import net.vhati.modmanager.core.PatchPrefetcher;
+import net.vhati.modmanager.core.PatternCache;
+import net.vhati.modmanager.core.StagedPack;
+import net.vhati.modmanager.core.StylesheetCache;
+import net.vhati.modmanager.core.TextTranscodingInputStream;
+import net.vhati.modmanager.core.TextTranscodingInputStream.GuessRevokedException;
+import net.vhati.modmanager.core.XMLDocumentCache;
+import net.vhati.modmanager.core.XMLDocumentCache.PackOrigin;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.IOUtils;
 
 
 public class ModPatchThread extends Thread {
@@ -34,6 +67,21 @@ public class ModPatchThread extends Thread {
 
 	private static final String slipstreamIdentifierResource = "slipstream-identifier.xml";
 
+	// Most memory to spend on mod entries decoded ahead of time.
+	private static final long PREFETCH_BUDGET_MAX = 64L * 1024 * 1024;
+
+	// Distinct regexes to keep compiled, from mods' find tags.
+	private static final int PATTERN_CACHE_MAX = 1024;
+
+	// Distinct XSL stylesheets to keep compiled, and libraries to keep read.
+	private static final int STYLESHEET_CACHE_MAX = 64;
+
+	// Most disk to spend on parsed append files, kept between patches.
+	private static final long APPEND_STORE_MAX = 32L * 1024 * 1024;
+
+	// Most disk to spend on parsed vanilla files, kept between patches.
+	private static final long VANILLA_STORE_MAX = 32L * 1024 * 1024;
+
 	// Other threads can check or set this.
 	public volatile boolean keepRunning = true;
 
@@ -44,6 +92,7 @@ public class ModPatchThread extends Thread {
 	private File backupDir = null;
 	private boolean globalPanic = false;
 	private ModPatchObserver observer = null;
+	private long patchCacheSize = 0;
 
 	private final int progMax = 100;
 	private final int progBackupMax = 25;
@@ -62,6 +111,18 @@ public class ModPatchThread extends Thread {
 	}
 
 
+	/**
+	 * Sets how many bytes of patch results may be cached in the backup dir.
+	 *
+	 * Reinstalling a cached mod list only requires restoring the dats and
+	 * copying in the bytes that mods changed. The default of 0 disables
+	 * caching.
+	 */
+	public void setPatchCacheSize( long patchCacheSize ) {
+		this.patchCacheSize = patchCacheSize;
+	}
+
+
 	public void run() {
 		boolean result;
 		Exception exception = null;
@@ -109,27 +170,64 @@ public class ModPatchThread extends Thread {
 		observer.patchingProgress( 0, progMax );
 
 		PackContainer packContainer = null;
+		List<BackedUpDat> backedUpDats = null;
+		List<BackedUpDat> journaledDats = new ArrayList<BackedUpDat>( 2 );
+
+		File checkpointFile = new File( backupDir, "patch-checkpoint.txt" );
+		PatchCheckpoint checkpoint = null;
+		boolean patched = false;
+
+		PatchCache patchCache = null;
+		String cacheKey = null;
+
+		File selfMetadataMod = null;
+		PatchPrefetcher prefetcher = null;
+		DocumentStore appendStore = null;
+		DocumentStore vanillaStore = null;
 
 		try {
 			int backupsCreated = 0;
 			int datsClobbered = 0;
-			int modsInstalled = 0;
 			int datsRepacked = 0;
 
 			File ftlDatFile = new File( datsDir, "ftl.dat" );
 			File dataDatFile = new File( datsDir, "data.dat" );
 			File resourceDatFile = new File( datsDir, "resource.dat" );
 
-			List<BackedUpDat> backedUpDats = new ArrayList<BackedUpDat>( 2 );
-			for ( File datFile : new File[] {ftlDatFile, dataDatFile, resourceDatFile} ) {
-				if ( !datFile.exists() ) continue;
+			String ultimateEncoding = ( ftlDatFile.exists() ? "UTF-8" : "windows-1252" );
+
+			if ( !modFiles.isEmpty() ) {
+				String metadataFilename = "self-metadata.ftl";
+				if ( !ftlDatFile.exists() ) metadataFilename = "self-metadata-legacy.ftl";
 
-				BackedUpDat bud = new BackedUpDat();
-				bud.datFile = datFile;
-				bud.bakFile = new File( backupDir, datFile.getName() +".bak" );
-				backedUpDats.add( bud );
+				InputStream metadataStream = getClass().getResourceAsStream( "/" + metadataFilename );
+				if ( metadataStream == null ) {
+					warnLogMetadataNotFound();
+				}
+				else {
+					try {
+						selfMetadataMod = File.createTempFile( "SMM-", ".ftl" );
+						FileUtils.copyInputStreamToFile( metadataStream, selfMetadataMod );
+					}
+					finally {
+						try {metadataStream.close();}
+						catch ( IOException e ) {}
+					}
+					modFiles.add( 0, selfMetadataMod );
+				}
+
+				// Mods don't depend on the dats, so start reading them while
+				// the dats are backed up and restored.
+				long prefetchBudget = Math.min( PREFETCH_BUDGET_MAX, Runtime.getRuntime().maxMemory() / 8 );
+				appendStore = new DocumentStore( new File( backupDir, "append_cache" ), APPEND_STORE_MAX, FTLModManager.APP_VERSION.toString() );
+
+				prefetcher = new PatchPrefetcher( modFiles, prefetchBudget, ultimateEncoding );
+				prefetcher.setAppendStore( appendStore );
+				prefetcher.start();
 			}
 
+			backedUpDats = getBackedUpDats( datsDir, backupDir );
+
 			// Don't let dats be read-only.
 			for ( BackedUpDat bud : backedUpDats ) {
 				if ( bud.datFile.exists() ) bud.datFile.setWritable( true );
@@ -142,6 +240,8 @@ public class ModPatchThread extends Thread {
 					observer.patchingStatus( String.format( "Backing up \"%s\".", bud.datFile.getName() ) );
 
 					PackUtilities.copyFile( bud.datFile, bud.bakFile );
+					bud.bakChecksums = recordChecksums( bud );
+					new ExtentJournal( bud.bakFile.length() ).save( bud.journalFile, bud.bakFile, bud.datFile );
 					backupsCreated++;
 					observer.patchingProgress( progMilestone + progBackupMax/backedUpDats.size()*backupsCreated, progMax );
 
@@ -152,15 +252,69 @@ public class ModPatchThread extends Thread {
 			observer.patchingProgress( progMilestone, progMax );
 			observer.patchingStatus( null );
 
-			if ( backupsCreated != backedUpDats.size() ) {
+			// Identify mods in the order they'll be installed, metadata first.
+			List<String> modHashes = new ArrayList<String>( modFiles.size() );
+			for ( int i=0; i < modFiles.size(); i++ ) {
+				modHashes.add( prefetcher.getModHash( i ) );
+			}
+			checkpoint = new PatchCheckpoint( FTLModManager.APP_VERSION.toString(), globalPanic, modHashes );
+
+			if ( patchCacheSize > 0 && !modFiles.isEmpty() ) {
+				List<String> vanillaDigests = new ArrayList<String>( backedUpDats.size() );
+				for ( BackedUpDat bud : backedUpDats ) {
+					bud.bakChecksumsDigest = getBackupChecksums( bud ).calcDigest();
+					vanillaDigests.add( bud.bakFile.getName() +" "+ bud.bakChecksumsDigest );
+				}
+				patchCache = new PatchCache( new File( backupDir, "patch_cache" ), patchCacheSize );
+				cacheKey = PatchCache.calcKey( vanillaDigests, modHashes, globalPanic, checkpoint.getAppVersion() );
+			}
+
+			// If the mod list begins like the last one did, build on that patch.
+			ResumePlan resumePlan = null;
+			if ( backupsCreated == 0 && !modFiles.isEmpty() ) {
+				resumePlan = planResume( checkpointFile, checkpoint, (selfMetadataMod != null ? 1 : 0), backedUpDats );
+			}
+			boolean upToDate = ( resumePlan != null && resumePlan.sharedCount == modHashes.size() && resumePlan.rewindPaths.isEmpty() );
+
+			File cacheEntryDir = null;
+			if ( patchCache != null && !upToDate ) {
+				cacheEntryDir = patchCache.get( cacheKey );
+			}
+
+			// Whatever happens next, the dats won't match the checkpoint.
+			checkpointFile.delete();
+
+			if ( cacheEntryDir != null ) {
+				if ( restoreCachedPatch( cacheEntryDir, backedUpDats, checkpointFile ) ) {
+					observer.patchingStatus( null );
+					observer.patchingProgress( progMax, progMax );
+					return true;
+				}
+				patchCache.remove( cacheKey );
+				resumePlan = null;  // The dats were modified, patch from scratch.
+			}
+
+			if ( resumePlan != null ) {
+				checkpoint.copyRecords( resumePlan.lastCheckpoint, resumePlan.sharedCount );
+				log.info( String.format( "Resuming the last patch: keeping %d mods, undoing %d innerPaths, reapplying %d mods in part.", resumePlan.sharedCount, resumePlan.rewindPaths.size(), resumePlan.replayIndices.size() ) );
+			}
+			else if ( backupsCreated != backedUpDats.size() ) {
 				// Clobber current dat files with their respective backups.
 				// But don't bother if we made those backups just now.
 
 				for ( BackedUpDat bud : backedUpDats ) {
+					if ( bud.bakChecksums == null ) {
+						log.info( String.format( "Verifying backup of \"%s\"...", bud.datFile.getName() ) );
+						observer.patchingStatus( String.format( "Verifying backup of \"%s\"...", bud.datFile.getName() ) );
+
+						bud.bakChecksums = verifyBackup( bud );
+					}
+
 					log.info( String.format( "Restoring vanilla \"%s\"...", bud.datFile.getName() ) );
 					observer.patchingStatus( String.format( "Restoring vanilla \"%s\"...", bud.datFile.getName() ) );
 
-					PackUtilities.copyFile( bud.bakFile, bud.datFile );
+					restoreDat( bud );
+					bud.bakChecksums.save( bud.datChecksumsFile );
 					datsClobbered++;
 					observer.patchingProgress( progMilestone + progClobberMax/backedUpDats.size()*datsClobbered, progMax );
 
@@ -177,11 +331,20 @@ public class ModPatchThread extends Thread {
 				return true;
 			}
 
-			String ultimateEncoding = null;
+			// The dats are about to diverge from their backups.
+			for ( BackedUpDat bud : backedUpDats ) {
+				bud.restoreStampFile.delete();
+				bud.journalFile.delete();
+			}
+
+			// Remember which dat each pack came from, to track checksums.
+			Map<AbstractPack, File> packDatMap = new HashMap<AbstractPack, File>();
+			Map<AbstractPack, PackOrigin> vanillaOrigins = new HashMap<AbstractPack, PackOrigin>();
 
 			packContainer = new PackContainer();
 			if ( ftlDatFile.exists() ) {  // FTL 1.6.1.
 				AbstractPack ftlPack = new PkgPack( ftlDatFile, "r+" );
+				packDatMap.put( ftlPack, ftlDatFile );
 
 				packContainer.setPackFor( "audio/", ftlPack );
 				packContainer.setPackFor( "data/", ftlPack );
@@ -189,33 +352,69 @@ public class ModPatchThread extends Thread {
 				packContainer.setPackFor( "img/", ftlPack );
 				packContainer.setPackFor( null, ftlPack );
 				// Supposedly "exe_icon.png" has been observed at top-level?
-
-				ultimateEncoding = "UTF-8";
 			}
 			else if ( dataDatFile.exists() && resourceDatFile.exists() ) {  // FTL 1.01-1.5.13.
 				AbstractPack dataPack = new FTLPack( dataDatFile, "r+" );
+				packDatMap.put( dataPack, dataDatFile );
 				packContainer.setPackFor( "data/", dataPack );
 
 				AbstractPack resourcePack = new FTLPack( resourceDatFile, "r+" );
+				packDatMap.put( resourcePack, resourceDatFile );
 				packContainer.setPackFor( "audio/", resourcePack );
 				packContainer.setPackFor( "fonts/", resourcePack );
 				packContainer.setPackFor( "img/", resourcePack );
-
-				ultimateEncoding = "windows-1252";
 			}
 			else {
 				throw new IOException( String.format( "Could not find either \"%s\" or both \"%s\" and \"%s\"", ftlDatFile.getName(), dataDatFile.getName(), resourceDatFile.getName() ) );
 			}
 			packContainer.setPackFor( "mod-appendix/", null );
 
+			// The dats match their backups now (or resuming, their last patch).
+			// Keep checksums current as they're modified, and journal what
+			// changed to speed up the next restore.
+			for ( Map.Entry<AbstractPack, File> entry : packDatMap.entrySet() ) {
+				BackedUpDat bud = getBackedUpDat( backedUpDats, entry.getValue() );
+				if ( resumePlan == null ) {
+					bud.datChecksums = new PackChecksums( bud.bakChecksums );
+					bud.journal = new ExtentJournal( bud.bakFile.length() );
+				}
+				// Otherwise, both were loaded while planning to resume.
+				entry.getKey().setChecksums( bud.datChecksums );
+				entry.getKey().setExtentJournal( bud.journal );
+
+				// Shifting vanilla data to fill gaps would dirty most of the dat.
+				entry.getKey().setRepackFloor( bud.bakFile.length() );
+				journaledDats.add( bud );
+
+				// Vanilla innerPaths can be loaded from the store, rather than parsed.
+				String fingerprint = bud.bakFile.getName() +" "+ PackUtilities.calcFileFingerprint( bud.bakFile );
+				vanillaOrigins.put( entry.getKey(), new PackOrigin( fingerprint, bud.bakChecksums ) );
+			}
+			vanillaStore = new DocumentStore( new File( backupDir, "vanilla_cache" ), VANILLA_STORE_MAX, checkpoint.getAppVersion() );
+
+			if ( resumePlan != null ) {
+				observer.patchingStatus( "Undoing mods..." );
+				rewindPaths( resumePlan.rewindPaths, packContainer, packDatMap, backedUpDats );
+			}
+
 			// Track modified innerPaths in case they're clobbered.
-			List<String> moddedItems = new ArrayList<String>();
+			//   Chains of operations on different innerPaths will share this.
+			Set<String> moddedItems = Collections.synchronizedSet( new HashSet<String>() );
 
 			List<String> knownPaths = new ArrayList<String>();
 			for ( AbstractPack pack : packContainer.getPacks() ) {
 				knownPaths.addAll( pack.list() );
 			}
 
+			if ( resumePlan != null ) {
+				// Kept mods claimed these paths, as if they'd just been installed.
+				Set<String> knownPathsSet = new HashSet<String>( knownPaths );
+				for ( String innerPath : checkpoint.getTouchedPaths( 0, resumePlan.sharedCount ) ) {
+					if ( knownPathsSet.add( innerPath ) ) knownPaths.add( innerPath );
+					moddedItems.add( innerPath );
+				}
+			}
+
 			List<String> knownPathsLower = new ArrayList<String>( knownPaths.size() );
 			for ( String innerPath : knownPaths ) {
 				knownPathsLower.add( innerPath.toLowerCase() );
@@ -223,358 +422,98 @@ public class ModPatchThread extends Thread {
 
 			List<String> knownRoots = packContainer.getRoots();
 
-			// Group1: parentPath/, Group2: root/, Group3: fileName.
-			Pattern pathPtn = Pattern.compile( "^(?:(([^/]+/)(?:.*/)?))?([^/]+)$" );
-
-			// only occurs after checking at least one mod is selected
-			String metadataFilename = "self-metadata.ftl";
-			if ( !ftlDatFile.exists() ) metadataFilename = "self-metadata-legacy.ftl";
-			InputStream metadataStream = getClass().getResourceAsStream( "/" + metadataFilename );
-
-			File selfMetadataMod = null;
-			if ( metadataStream == null ) {
-				warnLogMetadataNotFound();
+			// Mods to install, by index. When resuming, kept mods that shared
+			// paths with undone ones are reapplied to those paths alone.
+			List<Integer> modIndices = new ArrayList<Integer>( modFiles.size() );
+			int firstNewIndex = 0;
+			Set<String> replayPathsLower = null;
+			if ( resumePlan != null ) {
+				modIndices.addAll( resumePlan.replayIndices );
+				firstNewIndex = resumePlan.sharedCount;
+
+				replayPathsLower = new HashSet<String>();
+				for ( String innerPath : resumePlan.replayPaths ) {
+					replayPathsLower.add( innerPath.toLowerCase() );
+				}
 			}
-			else {
-				selfMetadataMod = File.createTempFile("SMM-", ".ftl");
-				FileUtils.copyInputStreamToFile( metadataStream, selfMetadataMod );
-				metadataStream.close();
-				modFiles.add( 0, selfMetadataMod );
+			for ( int i=firstNewIndex; i < modFiles.size(); i++ ) {
+				modIndices.add( i );
 			}
 
-			for ( File modFile : modFiles ) {
+			// Plan every mod's operations, then execute them grouped by innerPath.
+			PatchPlan plan = new PatchPlan();
+			for ( int modIndex : modIndices ) {
 				if ( !keepRunning ) return false;
 
-				FileInputStream fis = null;
-				ZipInputStream zis = null;
-				try {
-					if ( modFile.equals( selfMetadataMod ) ) {
-						log.info( "Installing mods..." );
-						observer.patchingStatus( "Installing mods..." );
-					}
-					else {
-						log.info( "" );
-						log.info( String.format( "Installing mod: %s", modFile.getName() ) );
-						observer.patchingMod( modFile );
-					}
-					fis = new FileInputStream( modFile );
-					zis = new ZipInputStream( new BufferedInputStream( fis ) );
-					ZipEntry item;
-					while ( (item = zis.getNextEntry()) != null ) {
-						if ( item.isDirectory() ) {
-							zis.closeEntry();
-							continue;
-						}
-
-						String innerPath = item.getName();
-						innerPath = innerPath.replace( '\\', '/' );  // Non-standard zips.
-
-						Matcher m = pathPtn.matcher( innerPath );
-						if ( !m.matches() ) {
-							log.warn( String.format( "Unexpected innerPath: %s", innerPath ) );
-							zis.closeEntry();
-							continue;
-						}
+				File modFile = modFiles.get( modIndex );
+				Set<String> pathFilter = ( modIndex < firstNewIndex ? replayPathsLower : null );
 
-						String parentPath = m.group( 1 );
-						String root = m.group( 2 );
-						String fileName = m.group( 3 );
-
-						AbstractPack pack = packContainer.getPackFor( innerPath );
-						if ( pack == null ) {
-							if ( !knownRoots.contains( root ) ) {
-								log.warn( String.format( "Unexpected innerPath: %s", innerPath ) );
-							} else {
-								log.debug( String.format( "Ignoring innerPath with known root: %s", innerPath ) );
-							}
-							zis.closeEntry();
-							continue;
-						}
+				ModArchive modArchive = prefetcher.getArchive( modIndex );
 
-						if ( ModUtilities.isJunkFile( innerPath ) ) {
-							log.warn( String.format( "Skipping junk file: %s", innerPath ) );
-							zis.closeEntry();
-							continue;
-						}
+				for ( ModEntry modEntry : modArchive.getEntries() ) {
+					if ( !modEntry.isExpected() ) {
+						log.warn( String.format( "Unexpected innerPath: %s (%s)", modEntry.path, modFile.getName() ) );
+						continue;
+					}
 
-						if ( fileName.endsWith( ".xml.append" ) || fileName.endsWith( ".append.xml" ) ) {
-							innerPath = parentPath + fileName.replaceAll( "[.](?:xml[.]append|append[.]xml)$", ".xml" );
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
-
-							if ( !pack.contains( innerPath ) ) {
-								log.warn( String.format( "Non-existent innerPath wasn't appended: %s", innerPath ) );
-							}
-							else {
-								InputStream mainStream = null;
-								try {
-									mainStream = pack.getInputStream( innerPath );
-									InputStream mergedStream = ModUtilities.patchXMLFile( mainStream, zis, ultimateEncoding, globalPanic, pack.getName()+":"+innerPath, modFile.getName()+":"+parentPath+fileName );
-									mainStream.close();
-									pack.remove( innerPath );
-									pack.add( innerPath, mergedStream );
-								}
-								finally {
-									try {if ( mainStream != null ) mainStream.close();}
-									catch ( IOException e ) {}
-								}
-
-								if ( !moddedItems.contains( innerPath ) ) {
-									moddedItems.add( innerPath );
-								}
-							}
-						}
-						else if ( fileName.endsWith( ".xml.rawappend" ) || fileName.endsWith( ".rawappend.xml" ) ) {
-							innerPath = parentPath + fileName.replaceAll( "[.](?:xml[.]rawappend|rawappend[.]xml)$", ".xml" );
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
-
-							if ( !pack.contains( innerPath ) ) {
-								log.warn( String.format( "Non-existent innerPath wasn't raw appended: %s", innerPath ) );
-							}
-							else {
-								log.warn( String.format( "Appending xml as raw text: %s", innerPath ) );
-								InputStream mainStream = null;
-								try {
-									mainStream = pack.getInputStream( innerPath );
-									InputStream mergedStream = ModUtilities.appendXMLFile( mainStream, zis, ultimateEncoding, pack.getName()+":"+innerPath, modFile.getName()+":"+parentPath+fileName );
-									mainStream.close();
-									pack.remove( innerPath );
-									pack.add( innerPath, mergedStream );
-								}
-								finally {
-									try {if ( mainStream != null ) mainStream.close();}
-									catch ( IOException e ) {}
-								}
-
-								if ( !moddedItems.contains( innerPath ) ) {
-									moddedItems.add( innerPath );
-								}
-							}
+					AbstractPack pack = packContainer.getPackFor( modEntry.path );
+					if ( pack == null ) {
+						if ( !knownRoots.contains( modEntry.root ) ) {
+							log.warn( String.format( "Unexpected innerPath: %s (%s)", modEntry.path, modFile.getName() ) );
+						} else {
+							log.debug( String.format( "Ignoring innerPath with known root: %s (%s)", modEntry.path, modFile.getName() ) );
 						}
-						else if ( fileName.endsWith( ".xml.rawclobber" ) || fileName.endsWith( ".rawclobber.xml" ) ) {
-							innerPath = parentPath + fileName.replaceAll( "[.](?:xml[.]rawclobber|rawclobber[.]xml)$", ".xml" );
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
-
-							log.warn( String.format( "Copying xml as raw text: %s", innerPath ) );
-
-							// Normalize line endings to CR-LF.
-							//   decodeText() reads anything and returns an LF string.
-							String fixedText = ModUtilities.decodeText( zis, modFile.getName()+":"+parentPath+fileName ).text;
-							fixedText = Pattern.compile("\n").matcher( fixedText ).replaceAll( "\r\n" );
-
-							InputStream fixedStream = ModUtilities.encodeText( fixedText, ultimateEncoding, modFile.getName()+":"+parentPath+fileName+" (with new EOL)" );
-
-							if ( !moddedItems.contains( innerPath ) ) {
-								moddedItems.add( innerPath );
-							} else {
-								log.warn( String.format( "Clobbering earlier mods: %s", innerPath ) );
-							}
-
-							if ( pack.contains( innerPath ) )
-								pack.remove( innerPath );
-							if ( fileName.startsWith( "text_misc." ) || fileName.startsWith( "misc." ) ) {
-								InputStream customStream = getClass().getResourceAsStream( "/" + slipstreamIdentifierResource );
-								if ( customStream != null ) {
-									InputStream finalStream = ModUtilities.appendXMLFile(
-											fixedStream, customStream, ultimateEncoding,
-											modFile.getName() + ":" + parentPath + fileName,
-											"slipstream-self-metadata:" + slipstreamIdentifierResource
-									);
-									customStream.close();
-									fixedStream = finalStream;
-								}
-								else {
-									warnLogMetadataNotFound();
-								}
-							}
-							pack.add( innerPath, fixedStream );
-						}
-						else if ( fileName.endsWith( ".xml" ) ) {
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
-
-							InputStream fixedStream = ModUtilities.rebuildXMLFile( zis, ultimateEncoding, modFile.getName()+":"+parentPath+fileName );
-
-							if ( !moddedItems.contains( innerPath ) ) {
-								moddedItems.add( innerPath );
-							} else {
-								log.warn( String.format( "Clobbering earlier mods: %s", innerPath ) );
-							}
-
-							if ( pack.contains( innerPath ) )
-								pack.remove( innerPath );
-							if ( fileName.equals( "text_misc.xml" ) || fileName.equals( "misc.xml" ) ) {
-								InputStream customStream = getClass().getResourceAsStream( "/" + slipstreamIdentifierResource );
-								if ( customStream != null ) {
-									InputStream finalStream = ModUtilities.appendXMLFile(
-											fixedStream, customStream, ultimateEncoding,
-											modFile.getName() + ":" + parentPath + fileName,
-											"slipstream-self-metadata:" + slipstreamIdentifierResource
-									);
-									customStream.close();
-									fixedStream = finalStream;
-								}
-								else {
-									warnLogMetadataNotFound();
-								}
-							}
-							pack.add( innerPath, fixedStream );
-						}
-						else if ( fileName.endsWith( ".xsl" ) ) {
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
-
-							if ( pack.contains( innerPath ) ) {
-								log.warn( "Clobbering earlier stylesheet: " + innerPath );
-								pack.remove( innerPath );
-							}
-							pack.add( innerPath, zis );
-							//log.info( "Added stylesheet to dat: " + innerPath );
-
-							if ( !moddedItems.contains( innerPath ) ) {
-								moddedItems.add( innerPath );
-							}
-						}
-						else if ( fileName.endsWith( ".txt" ) ) {
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
-
-							// Normalize line endings for other text files to CR-LF.
-							//   decodeText() reads anything and returns an LF string.
-							String fixedText = ModUtilities.decodeText( zis, modFile.getName()+":"+parentPath+fileName ).text;
-							fixedText = Pattern.compile("\n").matcher( fixedText ).replaceAll( "\r\n" );
-
-							InputStream fixedStream = ModUtilities.encodeText( fixedText, ultimateEncoding, modFile.getName()+":"+parentPath+fileName+" (with new EOL)" );
-
-							if ( !moddedItems.contains( innerPath ) ) {
-								moddedItems.add( innerPath );
-							} else {
-								log.warn( String.format( "Clobbering earlier mods: %s", innerPath ) );
-							}
+						continue;
+					}
 
-							if ( pack.contains( innerPath ) )
-								pack.remove( innerPath );
-							pack.add( innerPath, fixedStream );
-						}
-						else {
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
-
-							if ( !moddedItems.contains( innerPath ) ) {
-								moddedItems.add( innerPath );
-							} else {
-								log.warn( String.format( "Clobbering earlier mods: %s", innerPath ) );
-							}
-
-							if ( pack.contains( innerPath ) )
-								pack.remove( innerPath );
-							pack.add( innerPath, zis );
-						}
+					if ( ModUtilities.isJunkFile( modEntry.path ) ) {
+						log.warn( String.format( "Skipping junk file: %s (%s)", modEntry.path, modFile.getName() ) );
+						continue;
+					}
 
-						zis.closeEntry();
+					if ( pathFilter != null && !pathFilter.contains( modEntry.targetPath.toLowerCase() ) ) {
+						continue;
 					}
-				}
-				finally {
-					try {if ( zis != null ) zis.close();}
-					catch ( Exception e ) {}
 
-					try {if ( fis != null ) fis.close();}
-					catch ( Exception e ) {}
+					String innerPath = checkCase( modEntry.targetPath, knownPaths, knownPathsLower );
+					if ( modEntry.type == OpType.STYLESHEET ) {
+						checkpoint.touchXSL( modIndex, innerPath );
+					} else {
+						checkpoint.touch( modIndex, innerPath );
+					}
 
-					System.gc();
+					plan.add( modIndex, modArchive, modEntry, pack, innerPath );
 				}
 
-				if ( modFile.equals( selfMetadataMod ) ) {
-					continue;
-				}
-				else {
-					observer.patchingMod( modFile );
-				}
-				// same form as above
-				fis = null;
-				zis = null;
-				try {
-					fis = new FileInputStream( modFile );
-					zis = new ZipInputStream( new BufferedInputStream( fis ) );
-					ZipEntry item;
-					while ( (item = zis.getNextEntry()) != null ) {
-						if ( item.isDirectory() ) {
-							zis.closeEntry();
-							continue;
-						}
-						String innerPath = item.getName();
-						innerPath = innerPath.replace( '\\', '/' );  // Non-standard zips.
-						Matcher m = pathPtn.matcher( innerPath );
-						if ( !m.matches() ) {
-							// "Unexpected innerPath" warning already shown above
-							zis.closeEntry();
-							continue;
-						}
-						String parentPath = m.group( 1 );
-						String root = m.group( 2 );
-						String fileName = m.group( 3 );
-						AbstractPack pack = packContainer.getPackFor( innerPath );
-						if ( pack == null || ModUtilities.isJunkFile( innerPath ) ) {
-							// "Unexpected innerPath" "Ignoring innerPath with known root" "Skipping junk file"
-							// these warnings are already shown above
-							zis.closeEntry();
-							continue;
-						}
-						if ( fileName.endsWith( ".xsl" ) ) {
-							log.info( "" );
-							innerPath = parentPath + fileName.replaceAll( "[.]xsl$", ".xml" );
-							innerPath = checkCase( innerPath, knownPaths, knownPathsLower );
-							if ( pack.contains( innerPath ) ) {
-								log.info( String.format( "Transforming file: %s", innerPath ) );
-								InputStream mainStream = null;
-								try {
-									mainStream = pack.getInputStream( innerPath );
-									// CloseShieldInputStream prevents ModUtilities.transformDocument from auto-closing zis
-									InputStream transformedStream = ModUtilities.transformXMLFile( mainStream, CloseShieldInputStream.wrap(zis), ultimateEncoding, pack.getName()+":"+innerPath, modFile.getName()+":"+parentPath+fileName, pack );
-									mainStream.close();
-									pack.remove( innerPath );
-									pack.add( innerPath, transformedStream );
-								}
-								finally {
-									try {if ( mainStream != null ) mainStream.close();}
-									catch ( IOException e ) {}
-								}
-
-								if ( !moddedItems.contains( innerPath ) ) {
-									moddedItems.add( innerPath );
-								}
-							}
-							else {
-								String padding = new String( new char[23] ).replace("\0", " ");
-								log.warn( String.format( "Could not find base file: %s\n%sAssuming %s is an XSL library", innerPath, padding, fileName ) );
-							}
-						}
-						// copied from below
-						zis.closeEntry();
+				if ( modFile.equals( selfMetadataMod ) || pathFilter != null ) continue;
+
+				// Stylesheets transform files after everything else in the mod.
+				for ( ModEntry modEntry : modArchive.getTransforms() ) {
+					AbstractPack pack = packContainer.getPackFor( modEntry.path );
+					if ( pack == null || ModUtilities.isJunkFile( modEntry.path ) ) {
+						// Warnings were already shown above.
+						continue;
 					}
-				}
-				// copied from above
-				finally {
-					try {if ( zis != null ) zis.close();}
-					catch ( Exception e ) {}
 
-					try {if ( fis != null ) fis.close();}
-					catch ( Exception e ) {}
+					String innerPath = checkCase( modEntry.targetPath, knownPaths, knownPathsLower );
+					checkpoint.touchXSL( modIndex, innerPath );
 
-					System.gc();
+					plan.add( modIndex, modArchive, modEntry, pack, innerPath );
 				}
-
-				modsInstalled++;
-				observer.patchingProgress( progMilestone + progModsMax/modFiles.size()*modsInstalled, progMax );
 			}
-			// Remove the temporary file
-			if ( selfMetadataMod != null ) {
-				try {
-					Files.deleteIfExists( selfMetadataMod.toPath() );
-				}
-				catch ( IOException e ) {
-					log.info( "" );
-					log.warn( String.format( "Couldn't delete %s, located in %s.", selfMetadataMod.getName(), selfMetadataMod.getParentFile() ) );
-					log.info( "This mod file is created during patching to add metadata, after which it is no longer needed and deleted." );
-					log.info( "Modders can then reference this metadata to guarantee the end user uses this custom version of Slipstream." );
-					log.info( "" );
-				}
+
+			// Entries that weren't planned, such as replayed mods' other paths, won't be needed.
+			List<ModEntry> plannedEntries = new ArrayList<ModEntry>( plan.size() );
+			for ( PatchOp op : plan.getOps() ) {
+				plannedEntries.add( op.modEntry );
 			}
+			prefetcher.retain( plannedEntries );
+
+			// Ops from different mods run interleaved, so each mod is
+			// announced once every op from earlier mods is done.
+			ModProgress modProgress = new ModProgress( plan, modIndices, modFiles, selfMetadataMod, firstNewIndex );
+
+			if ( !executePlan( plan, modProgress, prefetcher, vanillaStore, vanillaOrigins, moddedItems, ultimateEncoding ) ) return false;
 
 			progMilestone += progModsMax;
 			observer.patchingProgress( progMilestone, progMax );
@@ -592,19 +531,465 @@ public class ModPatchThread extends Thread {
 				datsRepacked++;
 				observer.patchingProgress( progMilestone + progRepackMax/backedUpDats.size()*datsRepacked, progMax );
 			}
+
+			for ( Map.Entry<AbstractPack, File> entry : packDatMap.entrySet() ) {
+				BackedUpDat bud = getBackedUpDat( backedUpDats, entry.getValue() );
+				entry.getKey().getChecksums().save( bud.datChecksumsFile );
+			}
 			progMilestone += progRepackMax;
 			observer.patchingProgress( progMilestone, progMax );
 
 			observer.patchingProgress( 100, progMax );
+			patched = true;
 			return true;
 		}
 		finally {
+			if ( prefetcher != null ) prefetcher.close();
+
+			if ( appendStore != null ) {
+				log.debug( String.format( "Append file snapshots: %d hits, %d misses.", appendStore.getHitCount(), appendStore.getMissCount() ) );
+				appendStore.evict();
+			}
+			if ( vanillaStore != null ) {
+				log.debug( String.format( "Vanilla file snapshots: %d hits, %d misses.", vanillaStore.getHitCount(), vanillaStore.getMissCount() ) );
+				vanillaStore.evict();
+			}
+
 			if ( packContainer != null ) {
 				for ( AbstractPack pack : packContainer.getPacks() ) {
 					try {pack.close();}
 					catch( Exception e ) {}
 				}
 			}
+
+			// Remove the temporary file
+			if ( selfMetadataMod != null ) {
+				try {
+					Files.deleteIfExists( selfMetadataMod.toPath() );
+				}
+				catch ( IOException e ) {
+					log.info( "" );
+					log.warn( String.format( "Couldn't delete %s, located in %s.", selfMetadataMod.getName(), selfMetadataMod.getParentFile() ) );
+					log.info( "This mod file is created during patching to add metadata, after which it is no longer needed and deleted." );
+					log.info( "Modders can then reference this metadata to guarantee the end user uses this custom version of Slipstream." );
+					log.info( "" );
+				}
+			}
+
+			// Even after a failure, the journals account for every write.
+			for ( BackedUpDat bud : journaledDats ) {
+				try {
+					bud.journal.save( bud.journalFile, bud.bakFile, bud.datFile );
+				}
+				catch ( IOException e ) {
+					log.warn( String.format( "Could not save journal for \"%s\", the next restore will copy the whole backup.", bud.datFile.getName() ), e );
+				}
+			}
+
+			if ( patched ) {
+				try {
+					for ( BackedUpDat bud : backedUpDats ) {
+						checkpoint.setDatFingerprint( bud.datFile.getName(), PackUtilities.calcFileFingerprint( bud.datFile ) );
+					}
+					checkpoint.save( checkpointFile );
+				}
+				catch ( IOException e ) {
+					log.warn( "Could not save patch checkpoint, the next patch will start from scratch.", e );
+					patchCache = null;  // The cache entry would need it.
+				}
+			}
+
+			if ( patched && patchCache != null && patchCache.get( cacheKey ) == null ) {
+				try {
+					File tmpDir = patchCache.prepare( cacheKey );
+					for ( BackedUpDat bud : journaledDats ) {
+						bud.journal.saveDelta( bud.datFile, new File( tmpDir, bud.datFile.getName() +".delta" ) );
+						PackUtilities.copyFile( bud.datChecksumsFile, new File( tmpDir, bud.datChecksumsFile.getName() ) );
+					}
+					PackUtilities.copyFile( checkpointFile, new File( tmpDir, checkpointFile.getName() ) );
+					patchCache.put( cacheKey, tmpDir );
+				}
+				catch ( IOException e ) {
+					log.warn( "Could not cache the patched dats.", e );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Executes a plan's chains concurrently, one stage at a time.
+	 *
+	 * Chains that decode files are staged in memory on a pool of threads.
+	 * Packs are only modified by a single writer thread, which commits
+	 * staged chains, applies chains that merely copy bytes, and performs
+	 * transforms. If any chains fail, the earliest failing operation's
+	 * exception is thrown, as if mods had been installed one at a time.
+	 *
+	 * @param modProgress announces each mod as the ones before it finish
+	 * @return false if stopped by keepRunning, true otherwise
+	 */
+	private boolean executePlan( PatchPlan plan, ModProgress modProgress, PatchPrefetcher prefetcher, DocumentStore vanillaStore, Map<AbstractPack, PackOrigin> vanillaOrigins, Set<String> moddedItems, String ultimateEncoding ) throws IOException, JDOMException {
+		List<PatchStage> stages = plan.getStages();
+
+		int chainsTotal = 0;
+		for ( PatchStage stage : stages ) {
+			chainsTotal += stage.chains.size() + (stage.transformChain != null ? 1 : 0);
+		}
+		int chainsDone = 0;
+
+		PatternCache patternCache = new PatternCache( PATTERN_CACHE_MAX );
+		StylesheetCache stylesheetCache = new StylesheetCache( STYLESHEET_CACHE_MAX );
+
+		ExecutorService chainPool = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		ExecutorService packWriter = Executors.newSingleThreadExecutor();
+		try {
+			modProgress.announce();
+
+			for ( PatchStage stage : stages ) {
+				if ( !keepRunning ) return false;
+
+				List<ChainTask> tasks = new ArrayList<ChainTask>( stage.chains.size() );
+				List<Future<Void>> futures = new ArrayList<Future<Void>>( stage.chains.size() );
+				for ( PatchChain chain : stage.chains ) {
+					boolean direct = chain.isCopyOnly();
+					ChainTask task = new ChainTask( chain, direct, packWriter, prefetcher, patternCache, stylesheetCache, vanillaStore, vanillaOrigins, moddedItems, ultimateEncoding );
+					tasks.add( task );
+					futures.add( (direct ? packWriter : chainPool).submit( task ) );
+				}
+
+				Throwable firstFailure = null;
+				PatchOp firstFailureOp = null;
+				for ( int i=0; i < tasks.size(); i++ ) {
+					ChainTask task = tasks.get( i );
+
+					Throwable failure = getFailure( futures.get( i ) );
+					if ( failure == null && task.commitFuture != null ) {
+						failure = getFailure( task.commitFuture );
+					}
+					if ( failure != null && (firstFailureOp == null || task.currentOp.seq < firstFailureOp.seq) ) {
+						firstFailure = failure;
+						firstFailureOp = task.currentOp;
+					}
+					if ( failure == null && firstFailure == null ) {
+						modProgress.opsDone( task.chain.ops );
+					}
+
+					chainsDone++;
+					observer.patchingProgress( progMilestone + progModsMax*chainsDone/chainsTotal, progMax );
+				}
+				if ( firstFailure != null ) {
+					log.error( String.format( "Failed to apply: %s", firstFailureOp.getSourceDescription() ) );
+					rethrow( firstFailure );
+				}
+
+				if ( stage.transformChain != null ) {
+					if ( !keepRunning ) return false;
+
+					// Stylesheets may read any innerPath, so every chain before must be done.
+					ChainTask task = new ChainTask( stage.transformChain, true, packWriter, prefetcher, patternCache, stylesheetCache, vanillaStore, vanillaOrigins, moddedItems, ultimateEncoding );
+					Throwable failure = getFailure( packWriter.submit( task ) );
+					if ( failure != null ) {
+						log.error( String.format( "Failed to apply: %s", task.currentOp.getSourceDescription() ) );
+						rethrow( failure );
+					}
+					modProgress.opsDone( task.chain.ops );
+
+					chainsDone++;
+					observer.patchingProgress( progMilestone + progModsMax*chainsDone/chainsTotal, progMax );
+				}
+			}
+			return keepRunning;
+		}
+		finally {
+			// Running chains may still submit to the writer.
+			awaitTermination( chainPool );
+			awaitTermination( packWriter );
+
+			log.debug( String.format( "Regex cache: %d hits, %d misses.", patternCache.getHitCount(), patternCache.getMissCount() ) );
+			log.debug( String.format( "Stylesheet cache: %d hits, %d misses.", stylesheetCache.getHitCount(), stylesheetCache.getMissCount() ) );
+		}
+	}
+
+	/**
+	 * Performs a planned operation on a pack.
+	 *
+	 * @param pack the pack to modify, or a StagedPack overlaying it
+	 * @param docCache documents parsed from that pack
+	 * @param prefetcher decoded entries for the plan's operations
+	 * @param stylesheetCache compiled stylesheets for transform operations
+	 */
+	private void applyOp( PatchOp op, AbstractPack pack, XMLDocumentCache docCache, PatchPrefetcher prefetcher, StylesheetCache stylesheetCache, Set<String> moddedItems, String ultimateEncoding ) throws IOException, JDOMException {
+		String innerPath = op.innerPath;
+		String fileName = op.modEntry.fileName;
+		String sourceDescription = op.getSourceDescription();
+
+		// Prefetched operations don't need the entry's raw bytes.
+		InputStream modStream = null;
+		try {
+			if ( !PatchPrefetcher.isPrefetchable( op.type ) ) {
+				modStream = op.archive.getInputStream( op.modEntry );
+			}
+
+			if ( op.type == OpType.APPEND ) {
+				if ( !pack.contains( innerPath ) ) {
+					log.warn( String.format( "Non-existent innerPath wasn't appended: %s (%s)", innerPath, sourceDescription ) );
+					prefetcher.skip( op );
+				}
+				else {
+					Document appendDoc = (Document)prefetcher.take( op );
+					docCache.patch( pack, innerPath, appendDoc, globalPanic );
+
+					moddedItems.add( innerPath );
+				}
+			}
+			else if ( op.type == OpType.RAWAPPEND ) {
+				if ( !pack.contains( innerPath ) ) {
+					log.warn( String.format( "Non-existent innerPath wasn't raw appended: %s (%s)", innerPath, sourceDescription ) );
+				}
+				else {
+					log.warn( String.format( "Appending xml as raw text: %s (%s)", innerPath, sourceDescription ) );
+					docCache.commit( innerPath );
+
+					InputStream mainStream = null;
+					try {
+						mainStream = pack.getInputStream( innerPath );
+						InputStream mergedStream = ModUtilities.appendXMLFile( mainStream, modStream, ultimateEncoding, pack.getName()+":"+innerPath, sourceDescription );
+						mainStream.close();
+						pack.remove( innerPath );
+						pack.add( innerPath, mergedStream );
+					}
+					finally {
+						try {if ( mainStream != null ) mainStream.close();}
+						catch ( IOException e ) {}
+					}
+
+					moddedItems.add( innerPath );
+				}
+			}
+			else if ( op.type == OpType.RAWCLOBBER || op.type == OpType.XML ) {
+				if ( op.type == OpType.RAWCLOBBER ) {
+					log.warn( String.format( "Copying xml as raw text: %s (%s)", innerPath, sourceDescription ) );
+				}
+
+				// XML is rebuilt ahead of time.
+				InputStream fixedStream = null;
+				if ( op.type == OpType.XML ) {
+					fixedStream = new ByteArrayInputStream( (byte[])prefetcher.take( op ) );
+				}
+
+				if ( !moddedItems.add( innerPath ) ) {
+					log.warn( String.format( "Clobbering earlier mods: %s (%s)", innerPath, sourceDescription ) );
+				}
+
+				docCache.discard( innerPath );
+				if ( pack.contains( innerPath ) )
+					pack.remove( innerPath );
+
+				boolean isMisc;
+				if ( op.type == OpType.RAWCLOBBER ) {
+					isMisc = ( fileName.startsWith( "text_misc." ) || fileName.startsWith( "misc." ) );
+				} else {
+					isMisc = ( fileName.equals( "text_misc.xml" ) || fileName.equals( "misc.xml" ) );
+				}
+				if ( op.type == OpType.RAWCLOBBER ) {
+					// Raw copies get CR-LF line endings.
+					addText( op, modStream, pack, isMisc, ultimateEncoding );
+				}
+				else {
+					if ( isMisc ) fixedStream = appendIdentifier( fixedStream, sourceDescription, ultimateEncoding );
+					pack.add( innerPath, fixedStream );
+				}
+			}
+			else if ( op.type == OpType.STYLESHEET ) {
+				docCache.discard( innerPath );
+				if ( pack.contains( innerPath ) ) {
+					log.warn( String.format( "Clobbering earlier stylesheet: %s (%s)", innerPath, sourceDescription ) );
+					pack.remove( innerPath );
+				}
+				pack.add( innerPath, modStream );
+				//log.info( "Added stylesheet to dat: " + innerPath );
+
+				moddedItems.add( innerPath );
+			}
+			else if ( op.type == OpType.TXT ) {
+				if ( !moddedItems.add( innerPath ) ) {
+					log.warn( String.format( "Clobbering earlier mods: %s (%s)", innerPath, sourceDescription ) );
+				}
+
+				docCache.discard( innerPath );
+				if ( pack.contains( innerPath ) )
+					pack.remove( innerPath );
+
+				// Other text files have CR-LF line endings.
+				addText( op, modStream, pack, false, ultimateEncoding );
+			}
+			else if ( op.type == OpType.OTHER ) {
+				if ( !moddedItems.add( innerPath ) ) {
+					log.warn( String.format( "Clobbering earlier mods: %s (%s)", innerPath, sourceDescription ) );
+				}
+
+				docCache.discard( innerPath );
+				if ( pack.contains( innerPath ) )
+					pack.remove( innerPath );
+				pack.add( innerPath, modStream );
+			}
+			else if ( op.type == OpType.TRANSFORM ) {
+				log.info( "" );
+				if ( pack.contains( innerPath ) ) {
+					log.info( String.format( "Transforming file: %s (%s)", innerPath, sourceDescription ) );
+
+					// Stylesheets may read any innerPath, so the pack must be up to date.
+					docCache.commitAll();
+					docCache.discard( innerPath );
+
+					InputStream mainStream = null;
+					try {
+						mainStream = pack.getInputStream( innerPath );
+						WrappedDocument transformedDoc = ModUtilities.transformWrappedXML( mainStream, modStream, pack.getName()+":"+innerPath, sourceDescription, pack, stylesheetCache );
+						mainStream.close();
+						pack.remove( innerPath );
+						pack.addFrom( innerPath, ModUtilities.getWrappedXMLWriter( transformedDoc, ultimateEncoding ) );
+					}
+					finally {
+						try {if ( mainStream != null ) mainStream.close();}
+						catch ( IOException e ) {}
+					}
+
+					moddedItems.add( innerPath );
+				}
+				else {
+					String padding = new String( new char[23] ).replace("\0", " ");
+					log.warn( String.format( "Could not find base file: %s (%s)\n%sAssuming %s is an XSL library", innerPath, sourceDescription, padding, fileName ) );
+				}
+			}
+		}
+		finally {
+			try {if ( modStream != null ) modStream.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Waits for a task, returning what it threw, or null.
+	 */
+	private Throwable getFailure( Future<?> future ) {
+		try {
+			future.get();
+			return null;
+		}
+		catch ( ExecutionException e ) {
+			return e.getCause();
+		}
+		catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			return new IOException( "Interrupted while patching", e );
+		}
+	}
+
+	/**
+	 * Rethrows a failure from another thread, wrapping unexpected types.
+	 */
+	private void rethrow( Throwable t ) throws IOException, JDOMException {
+		if ( t instanceof IOException ) throw (IOException)t;
+		if ( t instanceof JDOMException ) throw (JDOMException)t;
+		if ( t instanceof RuntimeException ) throw (RuntimeException)t;
+		if ( t instanceof Error ) throw (Error)t;
+		throw new IOException( t );
+	}
+
+	/**
+	 * Shuts down an executor and waits for its running tasks to end.
+	 */
+	private void awaitTermination( ExecutorService executor ) {
+		executor.shutdown();
+		boolean interrupted = false;
+		try {
+			while ( true ) {
+				try {
+					if ( executor.awaitTermination( 1, TimeUnit.MINUTES ) ) break;
+				}
+				catch ( InterruptedException e ) {
+					interrupted = true;
+				}
+			}
+		}
+		finally {
+			if ( interrupted ) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Adds a mod's text entry to a pack, transcoded as the pack reads it.
+	 *
+	 * The result has CR-LF line endings and the desired encoding. If the
+	 * entry's encoding was guessed wrong partway through, nothing is added,
+	 * and the entry is read again from the start.
+	 *
+	 * @param modStream the entry's stream, to be read from the start
+	 * @param isMisc true if Slipstream's identifier should be appended
+	 * @see net.vhati.modmanager.core.TextTranscodingInputStream
+	 */
+	private void addText( PatchOp op, InputStream modStream, AbstractPack pack, boolean isMisc, String encoding ) throws IOException {
+		String sourceDescription = op.getSourceDescription();
+
+		GuessRevokedException revoked = null;
+		try {
+			InputStream fixedStream = new TextTranscodingInputStream( modStream, encoding, sourceDescription );
+			if ( isMisc ) fixedStream = appendIdentifier( fixedStream, sourceDescription, encoding );
+			pack.addFrom( op.innerPath, getCopyWriter( fixedStream ) );
+			return;
+		}
+		catch ( GuessRevokedException e ) {
+			revoked = e;
+		}
+
+		InputStream retryStream = null;
+		try {
+			retryStream = op.archive.getInputStream( op.modEntry );
+			InputStream fixedStream = new TextTranscodingInputStream( retryStream, encoding, sourceDescription, revoked );
+			if ( isMisc ) fixedStream = appendIdentifier( fixedStream, sourceDescription, encoding );
+			pack.addFrom( op.innerPath, getCopyWriter( fixedStream ) );
+		}
+		finally {
+			try {if ( retryStream != null ) retryStream.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Returns a ContentWriter that copies a stream, so a failure will add nothing.
+	 */
+	private ContentWriter getCopyWriter( final InputStream is ) {
+		return new ContentWriter() {
+			@Override
+			public void writeTo( OutputStream os ) throws IOException {
+				IOUtils.copy( is, os );
+			}
+		};
+	}
+
+	/**
+	 * Returns a misc XML stream with Slipstream's identifier appended.
+	 *
+	 * If the identifier couldn't be retrieved, the stream is returned as-is.
+	 */
+	private InputStream appendIdentifier( InputStream fixedStream, String sourceDescription, String encoding ) throws IOException {
+		InputStream customStream = getClass().getResourceAsStream( "/" + slipstreamIdentifierResource );
+		if ( customStream == null ) {
+			warnLogMetadataNotFound();
+			return fixedStream;
+		}
+
+		try {
+			return ModUtilities.appendXMLFile(
+					fixedStream, customStream, encoding,
+					sourceDescription,
+					"slipstream-self-metadata:" + slipstreamIdentifierResource
+			);
+		}
+		finally {
+			try {customStream.close();}
+			catch ( IOException e ) {}
 		}
 	}
 
@@ -641,8 +1026,603 @@ public class ModPatchThread extends Thread {
 
 
 
+	/**
+	 * Calculates and saves checksums for a freshly made backup.
+	 *
+	 * The dat is identical to its backup at this point, so the same
+	 * checksums are saved for both.
+	 */
+	private PackChecksums recordChecksums( BackedUpDat bud ) throws IOException {
+		AbstractPack bakPack = null;
+		try {
+			bakPack = bud.openPack( bud.bakFile, "r" );
+			PackChecksums checksums = bakPack.calculateChecksums();
+
+			checksums.save( bud.bakChecksumsFile );
+			checksums.save( bud.datChecksumsFile );
+			return checksums;
+		}
+		finally {
+			try {if ( bakPack != null ) bakPack.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Returns a backup's checksums, loading them unverified if need be.
+	 *
+	 * The backup will be verified against these same checksums before
+	 * anything is restored from it.
+	 */
+	private PackChecksums getBackupChecksums( BackedUpDat bud ) throws IOException {
+		if ( bud.bakChecksums != null ) return bud.bakChecksums;
+
+		if ( !bud.bakChecksumsFile.exists() ) {
+			bud.bakChecksums = verifyBackup( bud );
+			return bud.bakChecksums;
+		}
+		return PackChecksums.load( bud.bakChecksumsFile );
+	}
+
+	/**
+	 * Checks a backup against its saved checksums, and returns them.
+	 *
+	 * Backups made by earlier versions have no checksums. Those will be
+	 * calculated and saved, trusting the backup as it is now.
+	 *
+	 * @throws IOException if the backup is corrupt
+	 */
+	private PackChecksums verifyBackup( BackedUpDat bud ) throws IOException {
+		if ( !bud.bakChecksumsFile.exists() ) {
+			log.info( String.format( "No checksums for \"%s\" yet, recording them now.", bud.bakFile.getName() ) );
+			return recordChecksums( bud );
+		}
+
+		PackChecksums checksums = PackChecksums.load( bud.bakChecksumsFile );
+
+		AbstractPack bakPack = null;
+		try {
+			bakPack = bud.openPack( bud.bakFile, "r" );
+			List<String> badPaths = bakPack.verify( checksums );
+
+			if ( !badPaths.isEmpty() ) {
+				for ( String innerPath : badPaths ) {
+					log.error( String.format( "Backup \"%s\" has a corrupt innerFile: %s", bud.bakFile.getName(), innerPath ) );
+				}
+				throw new IOException( String.format( "Backup \"%s\" is corrupt (%d innerFiles failed verification). Delete the backup dir, have Steam/GOG verify FTL's files, and patch again.", bud.bakFile.getName(), badPaths.size() ) );
+			}
+		}
+		finally {
+			try {if ( bakPack != null ) bakPack.close();}
+			catch ( IOException e ) {}
+		}
+
+		return checksums;
+	}
+
+	/**
+	 * Makes a dat identical to its backup.
+	 *
+	 * If a journal from the previous patch is still valid, only the byte
+	 * ranges it recorded will be copied. Otherwise the whole backup will be
+	 * copied (unless the dat already matches it).
+	 */
+	private void restoreDat( BackedUpDat bud ) throws IOException {
+		ExtentJournal journal = null;
+		if ( bud.journalFile.exists() ) {
+			try {
+				journal = ExtentJournal.load( bud.journalFile );
+				if ( !journal.isValidFor( bud.bakFile, bud.datFile ) ) {
+					log.debug( String.format( "Journal for \"%s\" is stale", bud.datFile.getName() ) );
+					journal = null;
+				}
+			}
+			catch ( IOException e ) {
+				log.warn( String.format( "Could not read journal for \"%s\"", bud.datFile.getName() ), e );
+				journal = null;
+			}
+		}
+		// If reverting gets interrupted, the journal must not be trusted again.
+		bud.journalFile.delete();
+
+		boolean restored = false;
+		if ( journal != null ) {
+			long bytesCopied = journal.revert( bud.bakFile, bud.datFile );
+
+			if ( PackUtilities.calcFileFingerprint( bud.datFile ).equals( PackUtilities.calcFileFingerprint( bud.bakFile ) ) ) {
+				log.info( String.format( "Reverted %s of changes in \"%s\"", PackUtilities.humanReadableByteCount( bytesCopied, false ), bud.datFile.getName() ) );
+				restored = true;
+			} else {
+				log.warn( String.format( "\"%s\" still differs from its backup after reverting journaled changes", bud.datFile.getName() ) );
+			}
+		}
+		if ( !restored ) {
+			if ( !PackUtilities.syncFile( bud.bakFile, bud.datFile, bud.restoreStampFile ) ) {
+				log.info( String.format( "\"%s\" already matches its backup.", bud.datFile.getName() ) );
+			}
+		}
+
+		new ExtentJournal( bud.bakFile.length() ).save( bud.journalFile, bud.bakFile, bud.datFile );
+	}
+
+	/**
+	 * Recreates patched dats from a cache entry.
+	 *
+	 * Each dat is restored, then bytes mods changed are copied in from a
+	 * delta file. The dat's checksums and the patch checkpoint are copied
+	 * as well, as if the patch had just happened.
+	 *
+	 * @return true if successful, false if the entry was unusable (the dats may have been modified)
+	 * @throws IOException if a backup is corrupt
+	 */
+	private boolean restoreCachedPatch( File entryDir, List<BackedUpDat> backedUpDats, File checkpointFile ) throws IOException {
+		PatchCheckpoint cachedCheckpoint;
+		try {
+			cachedCheckpoint = PatchCheckpoint.load( new File( entryDir, checkpointFile.getName() ) );
+		}
+		catch ( IOException e ) {
+			log.warn( "Could not read cached patch", e );
+			return false;
+		}
+
+		for ( BackedUpDat bud : backedUpDats ) {
+			File deltaFile = new File( entryDir, bud.datFile.getName() +".delta" );
+			File checksumsFile = new File( entryDir, bud.datChecksumsFile.getName() );
+			if ( deltaFile.exists() != checksumsFile.exists() ) return false;
+			if ( cachedCheckpoint.getDatFingerprint( bud.datFile.getName() ) == null ) return false;
+		}
+
+		for ( BackedUpDat bud : backedUpDats ) {
+			if ( bud.bakChecksums == null ) {
+				log.info( String.format( "Verifying backup of \"%s\"...", bud.datFile.getName() ) );
+				observer.patchingStatus( String.format( "Verifying backup of \"%s\"...", bud.datFile.getName() ) );
+
+				bud.bakChecksums = verifyBackup( bud );
+			}
+			if ( !bud.bakChecksums.calcDigest().equals( bud.bakChecksumsDigest ) ) {
+				log.warn( String.format( "Backup \"%s\" doesn't match its cached patch", bud.bakFile.getName() ) );
+				return false;
+			}
+
+			log.info( String.format( "Restoring cached patch of \"%s\"...", bud.datFile.getName() ) );
+			observer.patchingStatus( String.format( "Restoring cached patch of \"%s\"...", bud.datFile.getName() ) );
+
+			restoreDat( bud );
+			bud.bakChecksums.save( bud.datChecksumsFile );
+
+			File deltaFile = new File( entryDir, bud.datFile.getName() +".delta" );
+			if ( deltaFile.exists() ) {
+				bud.restoreStampFile.delete();
+				bud.journalFile.delete();
+
+				ExtentJournal journal = new ExtentJournal( bud.bakFile.length() );
+				try {
+					long bytesWritten = journal.applyDelta( deltaFile, bud.datFile );
+					log.info( String.format( "Copied %s of cached changes into \"%s\"", PackUtilities.humanReadableByteCount( bytesWritten, false ), bud.datFile.getName() ) );
+				}
+				finally {
+					journal.save( bud.journalFile, bud.bakFile, bud.datFile );
+				}
+			}
+
+			if ( !cachedCheckpoint.getDatFingerprint( bud.datFile.getName() ).equals( PackUtilities.calcFileFingerprint( bud.datFile ) ) ) {
+				log.warn( String.format( "\"%s\" doesn't match its cached patch", bud.datFile.getName() ) );
+				return false;
+			}
+
+			if ( deltaFile.exists() ) {
+				// The fingerprint only samples the dat. Verify every innerFile.
+				File cachedChecksumsFile = new File( entryDir, bud.datChecksumsFile.getName() );
+				PackChecksums cachedChecksums = PackChecksums.load( cachedChecksumsFile );
+
+				List<String> badPaths;
+				AbstractPack datPack = null;
+				try {
+					datPack = bud.openPack( bud.datFile, "r" );
+					badPaths = datPack.verify( cachedChecksums );
+				}
+				finally {
+					try {if ( datPack != null ) datPack.close();}
+					catch ( IOException e ) {}
+				}
+				if ( !badPaths.isEmpty() ) {
+					log.warn( String.format( "\"%s\" doesn't match its cached patch (%d innerFiles failed verification)", bud.datFile.getName(), badPaths.size() ) );
+					return false;
+				}
+
+				PackUtilities.copyFile( cachedChecksumsFile, bud.datChecksumsFile );
+			}
+		}
+
+		cachedCheckpoint.save( checkpointFile );
+		return true;
+	}
+
+	/**
+	 * Decides whether a patch can build on the last successful one.
+	 *
+	 * The mod list must begin with at least one of the same user mods, and
+	 * the dats, journals, and checksums must be as that patch left them.
+	 * Paths the dropped mods touched will be undone. Any of those paths
+	 * that kept mods touched too must be rebuilt by reapplying those mods
+	 * to them alone, which is impossible for XSL (it can read other paths).
+	 *
+	 * On success, each BackedUpDat's journal and checksums will be loaded.
+	 *
+	 * @param metadataCount the number of leading mods that aren't the user's
+	 * @return a plan, or null to restore the dats and install every mod
+	 */
+	private ResumePlan planResume( File checkpointFile, PatchCheckpoint checkpoint, int metadataCount, List<BackedUpDat> backedUpDats ) {
+		if ( !checkpointFile.exists() ) return null;
+
+		PatchCheckpoint lastCheckpoint;
+		try {
+			lastCheckpoint = PatchCheckpoint.load( checkpointFile );
+		}
+		catch ( IOException e ) {
+			log.warn( "Could not read patch checkpoint", e );
+			return null;
+		}
+
+		if ( !lastCheckpoint.getAppVersion().equals( checkpoint.getAppVersion() ) ) return null;
+		if ( lastCheckpoint.getGlobalPanic() != checkpoint.getGlobalPanic() ) return null;
+
+		int sharedCount = lastCheckpoint.getSharedPrefixLength( checkpoint.getModHashes() );
+		if ( sharedCount <= metadataCount ) return null;
+
+		int lastCount = lastCheckpoint.getModHashes().size();
+		Set<String> rewindPaths = lastCheckpoint.getTouchedPaths( sharedCount, lastCount );
+		Set<String> replayPaths = new LinkedHashSet<String>( rewindPaths );
+		replayPaths.retainAll( lastCheckpoint.getTouchedPaths( 0, sharedCount ) );
+
+		for ( String innerPath : lastCheckpoint.getXSLPaths( 0, sharedCount ) ) {
+			if ( replayPaths.contains( innerPath ) ) {
+				log.info( String.format( "Can't resume the last patch, a kept mod used XSL on a path to undo: %s", innerPath ) );
+				return null;
+			}
+		}
+
+		Map<BackedUpDat, ExtentJournal> journalMap = new HashMap<BackedUpDat, ExtentJournal>();
+		Map<BackedUpDat, PackChecksums> datChecksumsMap = new HashMap<BackedUpDat, PackChecksums>();
+		Map<BackedUpDat, PackChecksums> bakChecksumsMap = new HashMap<BackedUpDat, PackChecksums>();
+		try {
+			for ( BackedUpDat bud : backedUpDats ) {
+				String fingerprint = lastCheckpoint.getDatFingerprint( bud.datFile.getName() );
+				if ( fingerprint == null || !bud.journalFile.exists() || !bud.datChecksumsFile.exists() || !bud.bakChecksumsFile.exists() ) {
+					return null;
+				}
+
+				ExtentJournal journal = ExtentJournal.load( bud.journalFile );
+				if ( !journal.isValidFor( bud.bakFile, bud.datFile ) ) return null;
+
+				if ( !fingerprint.equals( PackUtilities.calcFileFingerprint( bud.datFile ) ) ) {
+					log.debug( String.format( "\"%s\" changed since the last patch", bud.datFile.getName() ) );
+					return null;
+				}
+
+				journalMap.put( bud, journal );
+				datChecksumsMap.put( bud, PackChecksums.load( bud.datChecksumsFile ) );
+				bakChecksumsMap.put( bud, PackChecksums.load( bud.bakChecksumsFile ) );
+			}
+		}
+		catch ( IOException e ) {
+			log.warn( "Could not resume the last patch", e );
+			return null;
+		}
+
+		for ( BackedUpDat bud : backedUpDats ) {
+			bud.journal = journalMap.get( bud );
+			bud.datChecksums = datChecksumsMap.get( bud );
+			bud.bakChecksums = bakChecksumsMap.get( bud );
+		}
+
+		ResumePlan result = new ResumePlan();
+		result.lastCheckpoint = lastCheckpoint;
+		result.sharedCount = sharedCount;
+		result.rewindPaths = rewindPaths;
+		result.replayPaths = replayPaths;
+		result.replayIndices = lastCheckpoint.getModsTouching( replayPaths, 0, sharedCount );
+		return result;
+	}
+
+	/**
+	 * Returns innerPaths to their vanilla state, copying from backups.
+	 *
+	 * Paths absent from the backups will be removed. Copied entries are
+	 * checked against the backups' saved checksums.
+	 *
+	 * @throws IOException if a backup is corrupt
+	 */
+	private void rewindPaths( Set<String> innerPaths, PackContainer packContainer, Map<AbstractPack, File> packDatMap, List<BackedUpDat> backedUpDats ) throws IOException {
+		Map<AbstractPack, AbstractPack> bakPackMap = new HashMap<AbstractPack, AbstractPack>();
+		try {
+			for ( String innerPath : innerPaths ) {
+				AbstractPack pack = packContainer.getPackFor( innerPath );
+				if ( pack == null ) continue;
+
+				BackedUpDat bud = getBackedUpDat( backedUpDats, packDatMap.get( pack ) );
+				AbstractPack bakPack = bakPackMap.get( pack );
+				if ( bakPack == null ) {
+					bakPack = bud.openPack( bud.bakFile, "r" );
+					bakPackMap.put( pack, bakPack );
+				}
+
+				if ( pack.contains( innerPath ) ) pack.remove( innerPath );
+
+				if ( bakPack.contains( innerPath ) ) {
+					InputStream bakStream = null;
+					try {
+						bakStream = bakPack.getInputStream( innerPath );
+						pack.add( innerPath, bakStream );
+					}
+					finally {
+						try {if ( bakStream != null ) bakStream.close();}
+						catch ( IOException e ) {}
+					}
+
+					EntryChecksum expected = bud.bakChecksums.get( innerPath );
+					EntryChecksum actual = pack.getChecksums().get( innerPath );
+					if ( expected == null || actual == null || expected.size != actual.size || expected.crc != actual.crc ) {
+						throw new IOException( String.format( "Backup \"%s\" has a corrupt innerFile: %s", bud.bakFile.getName(), innerPath ) );
+					}
+				}
+			}
+		}
+		finally {
+			for ( AbstractPack bakPack : bakPackMap.values() ) {
+				try {bakPack.close();}
+				catch ( IOException e ) {}
+			}
+		}
+	}
+
+	/**
+	 * Returns dats that exist in datsDir, paired with their backup locations.
+	 */
+	public static List<BackedUpDat> getBackedUpDats( File datsDir, File backupDir ) {
+		List<BackedUpDat> result = new ArrayList<BackedUpDat>( 2 );
+
+		for ( String datName : new String[] {"ftl.dat", "data.dat", "resource.dat"} ) {
+			File datFile = new File( datsDir, datName );
+			if ( !datFile.exists() ) continue;
+
+			BackedUpDat bud = new BackedUpDat();
+			bud.datFile = datFile;
+			bud.bakFile = new File( backupDir, datFile.getName() +".bak" );
+			bud.bakChecksumsFile = new File( backupDir, bud.bakFile.getName() +".crc" );
+			bud.datChecksumsFile = new File( backupDir, datFile.getName() +".crc" );
+			bud.restoreStampFile = new File( backupDir, datFile.getName() +".stamp" );
+			bud.journalFile = new File( backupDir, datFile.getName() +".journal" );
+			result.add( bud );
+		}
+
+		return result;
+	}
+
+	private static BackedUpDat getBackedUpDat( List<BackedUpDat> backedUpDats, File datFile ) {
+		for ( BackedUpDat bud : backedUpDats ) {
+			if ( bud.datFile.equals( datFile ) ) return bud;
+		}
+		throw new IllegalArgumentException( "No backup info for dat: "+ datFile.getName() );
+	}
+
+
+
 	public static class BackedUpDat {
 		public File datFile = null;
 		public File bakFile = null;
+
+		/** Checksums sidecar for bakFile. */
+		public File bakChecksumsFile = null;
+
+		/** Checksums sidecar for datFile, as of the last restore or successful patch. */
+		public File datChecksumsFile = null;
+
+		/** Records when datFile was last restored, to skip needless copying. */
+		public File restoreStampFile = null;
+
+		/** Byte ranges of datFile modified since it last matched bakFile. */
+		public File journalFile = null;
+
+		/** The journal recording modifications in progress, if any. */
+		public ExtentJournal journal = null;
+
+		/** Checksums of bakFile, once known. */
+		public PackChecksums bakChecksums = null;
+
+		/** Digest of bakFile's checksums, as keyed in the patch cache. */
+		public String bakChecksumsDigest = null;
+
+		/** Checksums of datFile, kept current while patching. */
+		public PackChecksums datChecksums = null;
+
+		/**
+		 * Opens datFile or bakFile, using the format appropriate for datFile.
+		 */
+		public AbstractPack openPack( File f, String mode ) throws IOException {
+			if ( datFile.getName().equals( "ftl.dat" ) ) {
+				return new PkgPack( f, mode );
+			} else {
+				return new FTLPack( f, mode );
+			}
+		}
+	}
+
+
+
+	/**
+	 * Announces mods in order, as their planned operations finish.
+	 *
+	 * A mod is announced once every operation from earlier mods is done,
+	 * so the current mod and the log's headers advance in mod order, even
+	 * though operations from several mods run at once.
+	 */
+	private class ModProgress {
+		private List<Integer> modIndices;
+		private List<File> modFiles;
+		private File selfMetadataMod;
+		private int firstNewIndex;
+
+		/** Operations not yet done, per modIndex. */
+		private Map<Integer, Integer> remainingMap = new HashMap<Integer, Integer>();
+
+		/** Position in modIndices of the next mod to announce. */
+		private int nextPos = 0;
+
+		public ModProgress( PatchPlan plan, List<Integer> modIndices, List<File> modFiles, File selfMetadataMod, int firstNewIndex ) {
+			this.modIndices = modIndices;
+			this.modFiles = modFiles;
+			this.selfMetadataMod = selfMetadataMod;
+			this.firstNewIndex = firstNewIndex;
+
+			for ( PatchOp op : plan.getOps() ) {
+				Integer remaining = remainingMap.get( op.modIndex );
+				remainingMap.put( op.modIndex, (remaining != null ? remaining+1 : 1) );
+			}
+		}
+
+		/**
+		 * Notes finished operations, then announces any mods that are due.
+		 */
+		public void opsDone( List<PatchOp> ops ) {
+			for ( PatchOp op : ops ) {
+				remainingMap.put( op.modIndex, remainingMap.get( op.modIndex )-1 );
+			}
+			announce();
+		}
+
+		/**
+		 * Announces mods up to and including the first with operations left.
+		 */
+		public void announce() {
+			while ( nextPos < modIndices.size() ) {
+				if ( nextPos > 0 ) {
+					Integer remaining = remainingMap.get( modIndices.get( nextPos-1 ) );
+					if ( remaining != null && remaining > 0 ) break;
+				}
+				announce( modIndices.get( nextPos ) );
+				nextPos++;
+			}
+		}
+
+		private void announce( int modIndex ) {
+			File modFile = modFiles.get( modIndex );
+
+			if ( modIndex < firstNewIndex ) {
+				log.info( String.format( "Reapplying part of mod: %s", modFile.getName() ) );
+			}
+			else if ( modFile.equals( selfMetadataMod ) ) {
+				log.info( "Installing mods..." );
+				observer.patchingStatus( "Installing mods..." );
+			}
+			else {
+				log.info( "" );
+				log.info( String.format( "Installing mod: %s", modFile.getName() ) );
+				observer.patchingMod( modFile );
+			}
+		}
+	}
+
+
+
+	/**
+	 * Executes a chain of operations on one innerPath.
+	 *
+	 * Direct chains modify their pack as they go, and should be run by the
+	 * pack writer. Others are staged in memory, then handed to the writer
+	 * to commit.
+	 */
+	private class ChainTask implements Callable<Void> {
+		public final PatchChain chain;
+		private boolean direct;
+		private ExecutorService packWriter;
+		private PatchPrefetcher prefetcher;
+		private PatternCache patternCache;
+		private StylesheetCache stylesheetCache;
+		private DocumentStore vanillaStore;
+		private Map<AbstractPack, PackOrigin> vanillaOrigins;
+		private Set<String> moddedItems;
+		private String ultimateEncoding;
+
+		/** The operation last started, to tell which failed. */
+		public volatile PatchOp currentOp = null;
+
+		/** A staged chain's pending commit, once its operations succeeded. */
+		public volatile Future<Void> commitFuture = null;
+
+		public ChainTask( PatchChain chain, boolean direct, ExecutorService packWriter, PatchPrefetcher prefetcher, PatternCache patternCache, StylesheetCache stylesheetCache, DocumentStore vanillaStore, Map<AbstractPack, PackOrigin> vanillaOrigins, Set<String> moddedItems, String ultimateEncoding ) {
+			this.chain = chain;
+			this.direct = direct;
+			this.packWriter = packWriter;
+			this.prefetcher = prefetcher;
+			this.patternCache = patternCache;
+			this.stylesheetCache = stylesheetCache;
+			this.vanillaStore = vanillaStore;
+			this.vanillaOrigins = vanillaOrigins;
+			this.moddedItems = moddedItems;
+			this.ultimateEncoding = ultimateEncoding;
+			this.currentOp = chain.ops.get( 0 );
+		}
+
+		@Override
+		public Void call() throws IOException, JDOMException {
+			if ( direct ) {
+				synchronized ( chain.pack ) {
+					applyOps( chain.pack );
+				}
+			}
+			else {
+				final StagedPack stagedPack = new StagedPack( chain.pack );
+				if ( applyOps( stagedPack ) ) {
+					commitFuture = packWriter.submit( new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							stagedPack.commit();
+							return null;
+						}
+					});
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Applies each operation in turn.
+		 *
+		 * @return false if stopped by keepRunning, true otherwise
+		 */
+		private boolean applyOps( AbstractPack pack ) throws IOException, JDOMException {
+			XMLDocumentCache docCache = new XMLDocumentCache( ultimateEncoding, patternCache );
+			docCache.setVanillaStore( vanillaStore, vanillaOrigins );
+			for ( PatchOp op : chain.ops ) {
+				if ( !keepRunning ) return false;
+
+				currentOp = op;
+				applyOp( op, pack, docCache, prefetcher, stylesheetCache, moddedItems, ultimateEncoding );
+			}
+			docCache.commitAll();
+			return true;
+		}
+	}
+
+
+
+	/**
+	 * How to build on the last successful patch.
+	 */
+	private static class ResumePlan {
+		public PatchCheckpoint lastCheckpoint = null;
+
+		/** Number of leading mods to keep. */
+		public int sharedCount = 0;
+
+		/** Paths touched by mods after the kept ones, to undo. */
+		public Set<String> rewindPaths = null;
+
+		/** Paths to undo that kept mods touched too. */
+		public Set<String> replayPaths = null;
+
+		/** Indices of kept mods to reapply to replayPaths. */
+		public List<Integer> replayIndices = null;
 	}
 }
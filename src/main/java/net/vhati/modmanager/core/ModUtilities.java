@@ -2,18 +2,23 @@ package net.vhati.modmanager.core;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.CharArrayReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.Writer;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.text.BreakIterator;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -37,7 +42,6 @@ import net.sf.saxon.lib.ResourceResolver;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.Serializer;
-import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
 import net.sf.saxon.trans.XPathException;
@@ -61,6 +65,7 @@ import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 
 import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.AbstractPack.ContentWriter;
 
 
 public class ModUtilities {
@@ -69,6 +74,39 @@ public class ModUtilities {
 
 	private static Pattern junkFilePtn = Pattern.compile( "[.]DS_Store$|(?:^|/)thumbs[.]db$|(?:^|/)[.]dropbox$|(?:^|/)~|~$|(?:^|/)#.+#$" );
 
+	// Texts that strict parsing failed on, shared by every thread.
+	private static final ParseStrategyCache parseStrategyCache = new ParseStrategyCache( 4096 );
+
+	private static final byte[] BOM_UTF8 = new byte[] {(byte)0xEF,(byte)0xBB,(byte)0xBF};
+	private static final byte[] BOM_UTF16LE = new byte[] {(byte)0xFF,(byte)0xFE};
+	private static final byte[] BOM_UTF16BE = new byte[] {(byte)0xFE,(byte)0xFF};
+
+	// CharsetDecoders can be reset and reused, but aren't thread-safe.
+	private static final ThreadLocal<Map<String, CharsetDecoder>> decoders = new ThreadLocal<Map<String, CharsetDecoder>>() {
+		@Override
+		protected Map<String, CharsetDecoder> initialValue() {
+			return new HashMap<String, CharsetDecoder>();
+		}
+	};
+
+	// SloppyXMLSerializers reuse their buffers, but aren't thread-safe.
+	private static final ThreadLocal<Map<String, SloppyXMLSerializer>> sloppySerializers = new ThreadLocal<Map<String, SloppyXMLSerializer>>() {
+		@Override
+		protected Map<String, SloppyXMLSerializer> initialValue() {
+			return new HashMap<String, SloppyXMLSerializer>();
+		}
+	};
+
+	// SAXBuilders reuse their XMLReader between builds, but aren't thread-safe.
+	private static final ThreadLocal<SAXBuilder> strictParsers = new ThreadLocal<SAXBuilder>() {
+		@Override
+		protected SAXBuilder initialValue() {
+			SAXBuilder strictParser = new SAXBuilder();
+			strictParser.setSAXHandlerFactory( new EmptyAwareSAXHandlerFactory() );
+			return strictParser;
+		}
+	};
+
 
 	/**
 	 * Encodes a string (throwing an exception on bad chars) to bytes in a stream.
@@ -79,17 +117,29 @@ public class ModUtilities {
 	 * @param description how error messages should refer to the string, or null
 	 */
 	public static InputStream encodeText( String text, String encoding, String description ) throws IOException {
-		CharsetEncoder encoder = Charset.forName( encoding ).newEncoder();
-
 		ByteArrayOutputStream tmpData = new ByteArrayOutputStream();
-		Writer writer = new OutputStreamWriter( tmpData, encoder );
-		writer.write( text );
-		writer.flush();
+		encodeText( text, encoding, description, tmpData );
 
 		InputStream result = new ByteArrayInputStream( tmpData.toByteArray() );
 		return result;
 	}
 
+	/**
+	 * Encodes a string (throwing an exception on bad chars) to bytes, written to a stream.
+	 * Line endings will not be normalized.
+	 *
+	 * The stream will be flushed, but not closed.
+	 *
+	 * @see #encodeText(String, String, String)
+	 */
+	public static void encodeText( String text, String encoding, String description, OutputStream dstStream ) throws IOException {
+		CharsetEncoder encoder = Charset.forName( encoding ).newEncoder();
+
+		Writer writer = new OutputStreamWriter( dstStream, encoder );
+		writer.write( text );
+		writer.flush();
+	}
+
 	/**
 	 * Determines text encoding for an InputStream and decodes its bytes as a string.
 	 *
@@ -99,52 +149,63 @@ public class ModUtilities {
 	 * @param description how error messages should refer to the stream, or null
 	 */
 	public static DecodeResult decodeText( InputStream is, String description ) throws IOException {
-		String result = null;
+		DecodedChars decoded = decodeChars( is, description, 0, 0 );
+		CharBuffer chars = decoded.chars;
+
+		return new DecodeResult( new String( chars.array(), chars.position(), chars.remaining() ), decoded.encoding, decoded.eol, decoded.bom );
+	}
 
-		byte[] buf = new byte[4096];
+	/**
+	 * Determines text encoding for an InputStream and decodes its bytes into a buffer.
+	 *
+	 * CR and CR-LF line endings will be normalized to LF as they're decoded.
+	 *
+	 * The buffer is backed by an accessible array. Its position and limit
+	 * mark the decoded chars, with room left around them to add tags in
+	 * place.
+	 *
+	 * @param headroom the number of unused chars to leave before the text
+	 * @param tailroom the number of unused chars to leave after the text
+	 * @see #decodeText(InputStream, String)
+	 * @see #wrapChars(CharBuffer, String, String)
+	 */
+	private static DecodedChars decodeChars( InputStream is, String description, int headroom, int tailroom ) throws IOException {
+		byte[] allBytes = new byte[Math.max( is.available()+1, 4096 )];
+		int allLen = 0;
 		int len;
-		ByteArrayOutputStream tmpData = new ByteArrayOutputStream();
-		while ( (len = is.read( buf )) >= 0 ) {
-			tmpData.write( buf, 0, len );
+		while ( (len = is.read( allBytes, allLen, allBytes.length-allLen )) >= 0 ) {
+			allLen += len;
+			if ( allLen == allBytes.length ) allBytes = Arrays.copyOf( allBytes, allBytes.length*2 );
 		}
-		byte[] allBytes = tmpData.toByteArray();
-		tmpData.reset();
-
-		Map<byte[],String> boms = new LinkedHashMap<byte[],String>();
-		boms.put( new byte[] {(byte)0xEF,(byte)0xBB,(byte)0xBF}, "UTF-8" );
-		boms.put( new byte[] {(byte)0xFF,(byte)0xFE}, "UTF-16LE" );
-		boms.put( new byte[] {(byte)0xFE,(byte)0xFF}, "UTF-16BE" );
 
 		String encoding = null;
 		byte[] bom = null;
 
-		for ( Map.Entry<byte[],String> entry : boms.entrySet() ) {
-			byte[] tmpBom = entry.getKey();
-			byte[] firstBytes = Arrays.copyOfRange( allBytes, 0, tmpBom.length );
-			if ( Arrays.equals( tmpBom, firstBytes ) ) {
-				encoding = entry.getValue();
-				bom = tmpBom;
-				break;
-			}
+		if ( startsWith( allBytes, allLen, BOM_UTF8 ) ) {
+			encoding = "UTF-8";
+			bom = BOM_UTF8;
+		}
+		else if ( startsWith( allBytes, allLen, BOM_UTF16LE ) ) {
+			encoding = "UTF-16LE";
+			bom = BOM_UTF16LE;
 		}
+		else if ( startsWith( allBytes, allLen, BOM_UTF16BE ) ) {
+			encoding = "UTF-16BE";
+			bom = BOM_UTF16BE;
+		}
+
+		DecodedChars result = null;
 
 		if ( encoding != null ) {
 			// This may throw CharacterCodingException.
-			CharsetDecoder decoder = Charset.forName( encoding ).newDecoder();
-			ByteBuffer byteBuffer = ByteBuffer.wrap( allBytes, bom.length, allBytes.length-bom.length );
-			result = decoder.decode( byteBuffer ).toString();
+			result = decodeChars( getDecoder( encoding ), allBytes, bom.length, allLen-bom.length, headroom, tailroom );
 			allBytes = null;    // GC hint.
 		}
 		else {
-			ByteBuffer byteBuffer = ByteBuffer.wrap( allBytes );
-
 			Map<String,Exception> errorMap = new LinkedHashMap<String,Exception>();
 			for ( String guess : new String[] {"UTF-8", "windows-1252"} ) {
 				try {
-					byteBuffer.rewind();
-					byteBuffer.limit( allBytes.length );
-					CharsetDecoder decoder = Charset.forName( guess ).newDecoder();
-					result = decoder.decode( byteBuffer ).toString();
+					result = decodeChars( getDecoder( guess ), allBytes, 0, allLen, headroom, tailroom );
 					encoding = guess;
 					break;
 				}
@@ -163,17 +224,221 @@ public class ModUtilities {
 			allBytes = null;    // GC hint.
 		}
 
-		// Determine the original line endings.
+		result.encoding = encoding;
+		result.bom = bom;
+		return result;
+	}
+
+	private static boolean startsWith( byte[] data, int dataLen, byte[] prefix ) {
+		if ( dataLen < prefix.length ) return false;
+		for ( int i=0; i < prefix.length; i++ ) {
+			if ( data[i] != prefix[i] ) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns this thread's decoder for an encoding, reset for a new input.
+	 *
+	 * Malformed and unmappable input will be reported as errors.
+	 */
+	private static CharsetDecoder getDecoder( String encoding ) {
+		Map<String, CharsetDecoder> decoderMap = decoders.get();
+		CharsetDecoder decoder = decoderMap.get( encoding );
+		if ( decoder == null ) {
+			decoder = Charset.forName( encoding ).newDecoder();
+			decoderMap.put( encoding, decoder );
+		}
+		return decoder.reset();
+	}
+
+	/**
+	 * Returns this thread's serializer for an encoding.
+	 */
+	private static SloppyXMLSerializer getSloppySerializer( String encoding ) {
+		Map<String, SloppyXMLSerializer> serializerMap = sloppySerializers.get();
+		SloppyXMLSerializer serializer = serializerMap.get( encoding );
+		if ( serializer == null ) {
+			serializer = new SloppyXMLSerializer( encoding );
+			serializerMap.put( encoding, serializer );
+		}
+		return serializer;
+	}
+
+	/**
+	 * Decodes bytes in one pass, into a buffer backed by an accessible array.
+	 *
+	 * Each chunk of chars has its line endings normalized, in place, as soon
+	 * as it's decoded. The encoding and bom of the result are left unset.
+	 *
+	 * @see #decodeChars(InputStream, String, int, int)
+	 */
+	private static DecodedChars decodeChars( CharsetDecoder decoder, byte[] data, int offset, int length, int headroom, int tailroom ) throws CharacterCodingException {
+		int dataEnd = offset + length;
+		ByteBuffer in = ByteBuffer.wrap( data, offset, 0 );
+		CharBuffer out = CharBuffer.allocate( headroom + (int)(length * decoder.maxCharsPerByte()) + 1 + tailroom );
+		out.position( headroom );
+
 		int eol = DecodeResult.EOL_NONE;
-		Matcher m = Pattern.compile( "(\r(?!\n))|((?<!\r)\n)|(\r\n)" ).matcher( result );
-		if ( m.find() ) {
-			if ( m.group(3) != null ) eol = DecodeResult.EOL_CRLF;
-			else if ( m.group(2) != null ) eol = DecodeResult.EOL_LF;
-			else if ( m.group(1) != null ) eol = DecodeResult.EOL_CR;
+		boolean afterCR = false;
+		boolean flushing = false;
+		while ( true ) {
+			int chunkStart = out.position();
+			CoderResult cr;
+			if ( flushing ) {
+				cr = decoder.flush( out );
+			} else {
+				in.limit( Math.min( in.position() + 8192, dataEnd ) );
+				cr = decoder.decode( in, out, ( in.limit() == dataEnd ) );
+			}
+
+			// Determine the original line endings, and normalize CR-LF and CR to LF.
+			char[] a = out.array();
+			int chunkEnd = out.position();
+			int n = chunkStart;
+			for ( int i=chunkStart; i < chunkEnd; i++ ) {
+				char c = a[i];
+				if ( afterCR ) {
+					if ( eol == DecodeResult.EOL_NONE ) eol = ( c == '\n' ? DecodeResult.EOL_CRLF : DecodeResult.EOL_CR );
+					afterCR = false;
+					if ( c == '\n' ) continue;  // The CR already became an LF.
+				}
+				else if ( c == '\n' ) {
+					if ( eol == DecodeResult.EOL_NONE ) eol = DecodeResult.EOL_LF;
+				}
+				if ( c == '\r' ) {
+					afterCR = true;
+					c = '\n';
+				}
+				a[n++] = c;
+			}
+			out.position( n );
+
+			if ( cr.isUnderflow() ) {
+				if ( flushing ) break;
+				if ( in.limit() == dataEnd ) flushing = true;
+			}
+			else if ( cr.isOverflow() ) {
+				out = growChars( out, out.capacity()*2 + 1 + tailroom );
+			}
+			else {
+				cr.throwException();
+			}
 		}
+		if ( afterCR && eol == DecodeResult.EOL_NONE ) eol = DecodeResult.EOL_CR;
+
+		if ( out.remaining() < tailroom ) out = growChars( out, out.position() + tailroom );
+		out.limit( out.position() );
+		out.position( headroom );
 
-		result = result.replaceAll( "\r(?!\n)|\r\n", "\n" );
-		return new DecodeResult( result, encoding, eol, bom );
+		DecodedChars result = new DecodedChars();
+		result.chars = out;
+		result.eol = eol;
+		return result;
+	}
+
+	/**
+	 * Returns a bigger buffer, with the chars before a buffer's position copied.
+	 */
+	private static CharBuffer growChars( CharBuffer chars, int capacity ) {
+		CharBuffer bigger = CharBuffer.allocate( capacity );
+		chars.flip();
+		bigger.put( chars );
+		return bigger;
+	}
+
+	/**
+	 * Scrubs XML declarations, and optionally root FTL tags, from decoded chars, in place.
+	 *
+	 * This removes what the regex "(<[?]xml [^>]*?[?]>\n*)|(</?FTL>)" would
+	 * match, or only the first match of "<[?]xml [^>]*?[?]>\n*" when root
+	 * tags aren't scrubbed. The buffer's limit is moved back to the new end.
+	 *
+	 * @param scrubRootTags true to scrub every declaration and FTL tag, false for only the first declaration
+	 * @return true if FTL tags were scrubbed
+	 */
+	private static boolean scrubTags( CharBuffer chars, boolean scrubRootTags ) {
+		char[] a = chars.array();
+		int end = chars.arrayOffset() + chars.limit();
+		boolean declScrubbed = false;
+		boolean hadRootTags = false;
+
+		int n = chars.arrayOffset() + chars.position();
+		int i = n;
+		while ( i < end ) {
+			if ( a[i] == '<' ) {
+				int matchEnd = -1;
+				if ( scrubRootTags || !declScrubbed ) {
+					matchEnd = matchDecl( a, i, end );
+					if ( matchEnd != -1 ) declScrubbed = true;
+				}
+				if ( matchEnd == -1 && scrubRootTags ) {
+					if ( matchesAt( a, i, end, "<FTL>" ) ) matchEnd = i+5;
+					else if ( matchesAt( a, i, end, "</FTL>" ) ) matchEnd = i+6;
+					if ( matchEnd != -1 ) hadRootTags = true;
+				}
+				if ( matchEnd != -1 ) {
+					i = matchEnd;
+					continue;
+				}
+			}
+			a[n++] = a[i++];
+		}
+		chars.limit( n - chars.arrayOffset() );
+
+		return hadRootTags;
+	}
+
+	/**
+	 * Returns the end of an XML declaration, and any LFs after it, at i, or -1.
+	 */
+	private static int matchDecl( char[] a, int i, int end ) {
+		if ( !matchesAt( a, i, end, "<?xml " ) ) return -1;
+
+		// The first '>' must end "?>".
+		int gtPos = i+6;
+		while ( gtPos < end && a[gtPos] != '>' ) gtPos++;
+		if ( gtPos == end || gtPos < i+7 || a[gtPos-1] != '?' ) return -1;
+
+		int result = gtPos+1;
+		while ( result < end && a[result] == '\n' ) result++;
+		return result;
+	}
+
+	private static boolean matchesAt( char[] a, int i, int end, String literal ) {
+		if ( end - i < literal.length() ) return false;
+
+		for ( int j=0; j < literal.length(); j++ ) {
+			if ( a[i+j] != literal.charAt( j ) ) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Surrounds decoded chars with tags, in the room left around them.
+	 *
+	 * @return a buffer over the same array, spanning the tags and chars
+	 * @see #decodeChars(InputStream, String, int, int)
+	 */
+	private static CharBuffer wrapChars( CharBuffer chars, String openTag, String closeTag ) {
+		char[] a = chars.array();
+		int start = chars.arrayOffset() + chars.position() - openTag.length();
+		int end = chars.arrayOffset() + chars.limit();
+
+		openTag.getChars( 0, openTag.length(), a, start );
+		closeTag.getChars( 0, closeTag.length(), a, end );
+		return CharBuffer.wrap( a, start, end + closeTag.length() - start );
+	}
+
+	/**
+	 * Returns a Reader over chars, without copying them if they're in an accessible array.
+	 */
+	private static Reader getCharsReader( CharSequence seq ) {
+		if ( seq instanceof CharBuffer && ((CharBuffer)seq).hasArray() ) {
+			CharBuffer chars = (CharBuffer)seq;
+			return new CharArrayReader( chars.array(), chars.arrayOffset() + chars.position(), chars.remaining() );
+		}
+		return new StringReader( seq.toString() );
 	}
 
 
@@ -190,10 +455,11 @@ public class ModUtilities {
 	 * appendStream has those tags, they will be scrubbed.
 	 *
 	 * The two InputStreams are read, and the combined result is returned as a
-	 * new third InputStream.
+	 * new third InputStream. It's decoded and encoded as it's read, from
+	 * their bytes, rather than printed into memory up front.
 	 *
-	 * The returned stream is a ByteArrayInputStream which doesn't need
-	 * closing.
+	 * The returned stream doesn't need closing. Unmappable chars will
+	 * cause an exception while reading it.
 	 *
 	 * The result will have CR-LF line endings and the desired encoding.
 	 *
@@ -208,45 +474,7 @@ public class ModUtilities {
 	 * the source of new content to append as the first argument).
 	 */
 	public static InputStream appendXMLFile( InputStream mainStream, InputStream appendStream, String encoding, String mainDescription, String appendDescription ) throws IOException {
-		// XML declaration, or root FTL tags.
-		Pattern comboPtn = Pattern.compile( "(<[?]xml [^>]*?[?]>\n*)|(</?FTL>)" );
-		Matcher m = null;
-		boolean mainHadRootTags = false;
-
-		String mainText = decodeText( mainStream, mainDescription ).text;
-		StringBuffer mainBuf = new StringBuffer( mainText.length() );
-		m = comboPtn.matcher( mainText );
-		while ( m.find() ) {
-			if ( m.group( 2 ) != null ) mainHadRootTags = true;
-			m.appendReplacement( mainBuf, "" );
-		}
-		m.appendTail( mainBuf );
-
-		String appendText = decodeText( appendStream, appendDescription ).text;
-		StringBuffer appendBuf = new StringBuffer( appendText.length() );
-		m = comboPtn.matcher( appendText );
-		while ( m.find() ) {
-			m.appendReplacement( appendBuf, "" );
-		}
-		m.appendTail( appendBuf );
-
-		// Concatenate, filtering the stream to standardize newlines and encode.
-		//
-		CharsetEncoder encoder = Charset.forName( encoding ).newEncoder();
-		ByteArrayOutputStream tmpData = new ByteArrayOutputStream();
-		Writer writer = new EOLWriter( new OutputStreamWriter( tmpData, encoder ), "\r\n" );
-
-		writer.append( "<?xml version=\"1.0\" encoding=\""+ encoding +"\"?>\n" );
-		if ( mainHadRootTags ) writer.append( "<FTL>\n" );
-		writer.append( mainBuf );
-		writer.append( "\n\n<!-- Appended by Slipstream -->\n\n" );
-		writer.append( appendBuf );
-		writer.append( "\n" );
-		if ( mainHadRootTags ) writer.append( "</FTL>\n" );
-		writer.flush();
-		InputStream result = new ByteArrayInputStream( tmpData.toByteArray() );
-
-		return result;
+		return new AppendedXMLInputStream( mainStream, appendStream, encoding, mainDescription, appendDescription );
 	}
 
 
@@ -276,10 +504,28 @@ public class ModUtilities {
 	 * @see net.vhati.modmanager.core.SloppyXMLOutputProcessor
 	 */
 	public static InputStream patchXMLFile( InputStream mainStream, InputStream appendStream, String encoding, boolean globalPanic, String mainDescription, String appendDescription ) throws IOException, JDOMException {
-		// XML declaration, or root FTL tags.
-		Pattern comboPtn = Pattern.compile( "(<[?]xml [^>]*?[?]>\n*)|(</?FTL>)" );
-		Matcher m = null;
-		boolean mainHadRootTags = false;
+		WrappedDocument mainDoc = parseWrappedXML( mainStream, mainDescription );
+		WrappedDocument mergedDoc = patchWrappedXML( mainDoc, appendStream, globalPanic, appendDescription );
+		mainDoc = null;
+
+		return encodeWrappedXML( mergedDoc, encoding );
+	}
+
+	/**
+	 * Decodes and parses an XML stream, within a wrapper declaring mod namespaces.
+	 *
+	 * Any XML declaration will be scrubbed. If the stream had &lt;FTL&gt;
+	 * tags (introduced in FTL 1.6.1), they'll be scrubbed too, and the
+	 * result will note it.
+	 *
+	 * The stream is decoded into a single buffer, which is scrubbed and
+	 * wrapped in place, then parsed without copying it into a String.
+	 *
+	 * The description argument identifies the stream for log messages.
+	 *
+	 * @see #encodeWrappedXML(WrappedDocument, String)
+	 */
+	public static WrappedDocument parseWrappedXML( InputStream srcStream, String srcDescription ) throws IOException, JDOMException {
 		String wrapperOpenTag = "<wrapper" +
 								" xmlns:mod='mod'" +
 								" xmlns:mod-append='mod-append'" +
@@ -288,69 +534,120 @@ public class ModUtilities {
 								" xmlns:mod-before='mod-before'" +
 								" xmlns:mod-after='mod-after'>";
 		String wrapperCloseTag = "</wrapper>";
-		StringBuffer buf = null;
 
-		String mainText = decodeText( mainStream, mainDescription ).text;
-		buf = new StringBuffer( wrapperOpenTag.length() + mainText.length() + wrapperCloseTag.length() );
-		buf.append( wrapperOpenTag );
-		m = comboPtn.matcher( mainText );
-		while ( m.find() ) {
-			if ( m.group( 2 ) != null ) mainHadRootTags = true;
-			m.appendReplacement( buf, "" );
-		}
-		m.appendTail( buf );
-		buf.append( wrapperCloseTag );
-		mainText = null;
-		Document mainDoc = parseStrictOrSloppyXML( buf, mainDescription+" (wrapped)" );
-		buf.setLength( 0 );
-
-		String appendText = decodeText( appendStream, appendDescription ).text;
-		buf.ensureCapacity( wrapperOpenTag.length() + appendText.length() + wrapperCloseTag.length() );
-		buf.append( wrapperOpenTag );
-		m = comboPtn.matcher( appendText );
-		while ( m.find() ) {
-			m.appendReplacement( buf, "" );
-		}
-		m.appendTail( buf );
-		buf.append( wrapperCloseTag );
-		appendText = null;
-		Document appendDoc = parseStrictOrSloppyXML( buf, appendDescription+" (wrapped)" );
-		buf.setLength( 0 );
+		CharBuffer chars = decodeChars( srcStream, srcDescription, wrapperOpenTag.length(), wrapperCloseTag.length() ).chars;
+		boolean hadRootTags = scrubTags( chars, true );
+		chars = wrapChars( chars, wrapperOpenTag, wrapperCloseTag );
+
+		Document doc = parseStrictOrSloppyXML( chars, srcDescription+" (wrapped)" );
+		return new WrappedDocument( doc, hadRootTags );
+	}
+
+	/**
+	 * Returns a copy of a wrapped document, modified by content from appendStream.
+	 *
+	 * The given document remains intact.
+	 *
+	 * @see net.vhati.modmanager.core.XMLPatcher
+	 */
+	public static WrappedDocument patchWrappedXML( WrappedDocument mainDoc, InputStream appendStream, boolean globalPanic, String appendDescription ) throws IOException, JDOMException {
+		Document appendDoc = parseWrappedXML( appendStream, appendDescription ).doc;
+
+		return patchWrappedXML( mainDoc, appendDoc, globalPanic );
+	}
+
+	/**
+	 * Returns a copy of a wrapped document, modified by an already parsed append document.
+	 *
+	 * The given document remains intact.
+	 *
+	 * @param appendDoc a document from parseWrappedXML()
+	 * @see net.vhati.modmanager.core.XMLPatcher
+	 */
+	public static WrappedDocument patchWrappedXML( WrappedDocument mainDoc, Document appendDoc, boolean globalPanic ) throws IOException, JDOMException {
+		XMLPatcher patcher = new XMLPatcher();
+		patcher.setGlobalPanic( globalPanic );
+		Document mergedDoc = patcher.patch( mainDoc.doc, appendDoc );
 
-		buf.trimToSize();  // Free the buffer.
-		buf = null;
+		return new WrappedDocument( mergedDoc, mainDoc.hadRootTags );
+	}
 
+	/**
+	 * Modifies a wrapped document itself, with an already parsed append document.
+	 *
+	 * If patching fails, the document is left as it was.
+	 *
+	 * @param appendDoc a document from parseWrappedXML()
+	 * @param childIndex an index kept with mainDoc between patches, or null
+	 * @param patternCache a cache to compile regexes with, or null
+	 * @see net.vhati.modmanager.core.XMLPatcher#patchInPlace(Document, Document)
+	 */
+	public static void patchWrappedXMLInPlace( WrappedDocument mainDoc, Document appendDoc, boolean globalPanic, ChildIndex childIndex, PatternCache patternCache ) {
 		XMLPatcher patcher = new XMLPatcher();
 		patcher.setGlobalPanic( globalPanic );
-		Document mergedDoc = patcher.patch( mainDoc, appendDoc );
-		mainDoc = null;
-		appendDoc = null;
+		if ( childIndex != null ) patcher.setChildIndex( childIndex );
+		patcher.setPatternCache( patternCache );
+		patcher.patchInPlace( mainDoc.doc, appendDoc );
+	}
+
+	/**
+	 * Sloppy prints and encodes a wrapped document.
+	 *
+	 * If the original had &lt;FTL&gt; tags, all content will be printed
+	 * inside new ones. The document itself is left as it was.
+	 *
+	 * The returned stream is a ByteArrayInputStream
+	 * which doesn't need closing.
+	 *
+	 * The result will have CR-LF line endings and the desired encoding.
+	 *
+	 * @see #parseWrappedXML(InputStream, String)
+	 * @see net.vhati.modmanager.core.SloppyXMLOutputProcessor
+	 */
+	public static InputStream encodeWrappedXML( WrappedDocument wrappedDoc, String encoding ) throws IOException {
+		ByteArrayOutputStream tmpData = new ByteArrayOutputStream();
+		encodeWrappedXML( wrappedDoc, encoding, tmpData );
+		return new ByteArrayInputStream( tmpData.toByteArray() );
+	}
+
+	/**
+	 * Sloppy prints and encodes a wrapped document, written to a stream.
+	 *
+	 * The stream will be flushed, but not closed.
+	 *
+	 * @see #encodeWrappedXML(WrappedDocument, String)
+	 */
+	public static void encodeWrappedXML( WrappedDocument wrappedDoc, String encoding, OutputStream dstStream ) throws IOException {
+		Element root = wrappedDoc.doc.getRootElement();
+		List<Content> rootContentList = null;
+		Element ftlNode = null;
 
 		// Add FTL tags and move all content inside them.
 		// Collect live getContent() results in an Arraylist to avoid
 		// ConcurrentModificationException when detaching in the loop.
-		if ( mainHadRootTags ) {
-			Element mergedRoot = mergedDoc.getRootElement();
-			Element ftlNode = new Element( "FTL" );
-			List<Content> mergedContentList = new ArrayList<Content>( mergedRoot.getContent() );
-			for ( Content c : mergedContentList ) {  // 
+		if ( wrappedDoc.hadRootTags ) {
+			ftlNode = new Element( "FTL" );
+			rootContentList = new ArrayList<Content>( root.getContent() );
+			for ( Content c : rootContentList ) {
 				c.detach();
 			}
-			ftlNode.addContent( mergedContentList );
-			mergedRoot.addContent( ftlNode );
+			ftlNode.addContent( rootContentList );
+			root.addContent( ftlNode );
 		}
 
-		// Bake XML into text, filtering the stream to standardize newlines and encode.
-
-		CharsetEncoder encoder = Charset.forName( encoding ).newEncoder();
-		ByteArrayOutputStream tmpData = new ByteArrayOutputStream();
-		Writer writer = new EOLWriter( new OutputStreamWriter( tmpData, encoder ), "\r\n" );
-
-		SloppyXMLOutputProcessor.sloppyPrint( mergedDoc, writer, encoding, false );
-		writer.flush();
-		InputStream result = new ByteArrayInputStream( tmpData.toByteArray() );
-
-		return result;
+		try {
+			getSloppySerializer( encoding ).print( wrappedDoc.doc, dstStream );
+		}
+		finally {
+			// Move the content back out.
+			if ( ftlNode != null ) {
+				ftlNode.detach();
+				for ( Content c : rootContentList ) {
+					c.detach();
+				}
+				root.addContent( rootContentList );
+			}
+		}
 	}
 
 	/**
@@ -374,31 +671,38 @@ public class ModUtilities {
 	 * @see net.vhati.modmanager.core.SloppyXMLOutputProcessor
 	 */
 	public static InputStream rebuildXMLFile( InputStream srcStream, String encoding, String srcDescription ) throws IOException, JDOMException {
-		Pattern xmlDeclPtn = Pattern.compile( "<[?]xml [^>]*?[?]>\n*" );
+		ByteArrayOutputStream tmpData = new ByteArrayOutputStream();
+		rebuildXMLFile( srcStream, encoding, srcDescription, tmpData );
 
-		String srcText = decodeText( srcStream, srcDescription ).text;
-		srcText = xmlDeclPtn.matcher( srcText ).replaceFirst( "" );
-		srcText = "<wrapper" +
-				" xmlns:mod='mod'" +
-				" xmlns:mod-append='mod-append'" +
-				" xmlns:mod-overwrite='mod-overwrite'" +
-				" xmlns:mod-prepend='mod-prepend'" +
-				" xmlns:mod-before='mod-before'" +
-				" xmlns:mod-after='mod-after'>"+ srcText +"</wrapper>";
-		Document doc = parseStrictOrSloppyXML( srcText, srcDescription+" (wrapped)" );
-		srcText = null;
+		InputStream result = new ByteArrayInputStream( tmpData.toByteArray() );
+		return result;
+	}
 
-		// Bake XML into text, filtering the stream to standardize newlines and encode.
+	/**
+	 * Decodes, parses, sloppy prints, and reencodes an XML stream, written to another stream.
+	 *
+	 * The destination stream will be flushed, but not closed.
+	 *
+	 * @see #rebuildXMLFile(InputStream, String, String)
+	 */
+	public static void rebuildXMLFile( InputStream srcStream, String encoding, String srcDescription, OutputStream dstStream ) throws IOException, JDOMException {
+		String wrapperOpenTag = "<wrapper" +
+								" xmlns:mod='mod'" +
+								" xmlns:mod-append='mod-append'" +
+								" xmlns:mod-overwrite='mod-overwrite'" +
+								" xmlns:mod-prepend='mod-prepend'" +
+								" xmlns:mod-before='mod-before'" +
+								" xmlns:mod-after='mod-after'>";
+		String wrapperCloseTag = "</wrapper>";
 
-		CharsetEncoder encoder = Charset.forName( encoding ).newEncoder();
-		ByteArrayOutputStream tmpData = new ByteArrayOutputStream();
-		Writer writer = new EOLWriter( new OutputStreamWriter( tmpData, encoder ), "\r\n" );
+		CharBuffer chars = decodeChars( srcStream, srcDescription, wrapperOpenTag.length(), wrapperCloseTag.length() ).chars;
+		scrubTags( chars, false );
+		chars = wrapChars( chars, wrapperOpenTag, wrapperCloseTag );
 
-		SloppyXMLOutputProcessor.sloppyPrint( doc, writer, encoding, false );
-		writer.flush();
-		InputStream result = new ByteArrayInputStream( tmpData.toByteArray() );
+		Document doc = parseStrictOrSloppyXML( chars, srcDescription+" (wrapped)" );
+		chars = null;
 
-		return result;
+		getSloppySerializer( encoding ).print( doc, dstStream );
 	}
 
 
@@ -406,6 +710,13 @@ public class ModUtilities {
 	 * Returns an XML Document, parsed strictly if possible, or sloppily.
 	 * Exceptions during strict parsing will be ignored.
 	 *
+	 * Texts that strict parsing has failed on before go straight to the
+	 * sloppy parser.
+	 *
+	 * A CharBuffer backed by an accessible array is read in place, by both
+	 * parsers. Other CharSequences are copied into a String for the strict
+	 * parser.
+	 *
 	 * This method does NOT strip the XML declaration and add a wrapper
 	 * tag with namespaces. That must be done beforehand.
 	 *
@@ -415,14 +726,17 @@ public class ModUtilities {
 	public static Document parseStrictOrSloppyXML( CharSequence srcSeq, String srcDescription ) throws IOException, JDOMException {
 		Document doc = null;
 
-		try {
-			SAXBuilder strictParser = new SAXBuilder();
-			strictParser.setSAXHandlerFactory( new EmptyAwareSAXHandlerFactory() );
-			doc = strictParser.build( new StringReader( srcSeq.toString() ) );
+		if ( !parseStrategyCache.isKnownSloppy( srcSeq ) ) {
+			try {
+				doc = strictParsers.get().build( getCharsReader( srcSeq ) );
+			}
+			catch ( JDOMParseException e ) {
+				// Ignore the error, and do a sloppy parse instead.
+				parseStrategyCache.setSloppy( srcSeq );
+			}
 		}
-		catch ( JDOMParseException e ) {
-			// Ignore the error, and do a sloppy parse instead.
 
+		if ( doc == null ) {
 			try {
 				SloppyXMLParser sloppyParser = new SloppyXMLParser();
 				doc = sloppyParser.build( srcSeq );
@@ -1178,42 +1492,17 @@ public class ModUtilities {
 	 * Gets the result of an XSL transformation as a new document. Given document remains intact.
 	 * @param sourceDoc - the Document upon which to apply the transform
 	 * @param stylesheet - the input stream containing the stylesheet
+	 * @param stylesheetCache - a cache to compile the stylesheet with, or null
 	 */
-	public static Document transformDocument( Document sourceDoc, InputStream stylesheet, final AbstractPack pack ) throws IOException {
+	public static Document transformDocument( Document sourceDoc, InputStream stylesheet, final AbstractPack pack, StylesheetCache stylesheetCache ) throws IOException {
 		Document input = sourceDoc.clone();
 		ByteArrayOutputStream os = new ByteArrayOutputStream(1024);
 
-		Processor p = new Processor( false );
-		XsltCompiler c = p.newXsltCompiler();
-		c.setResourceResolver( new ResourceResolver() {
-			@Override
-			public Source resolve( ResourceRequest request ) throws XPathException {
-				String relativeUri = "data/" + request.relativeUri;
-				if ( pack.contains( relativeUri ) ) {
-					log.info( "Using library file: " + relativeUri );
-					InputStream is;
-					try {
-						is = pack.getInputStream( relativeUri );
-					} catch ( IOException e ) {
-						throw new RuntimeException( "Encountered an error retrieving stream from pack.", e );
-					}
-					StreamSource s = new StreamSource( is );
-					s.setSystemId( "referenced-stylesheet-" + relativeUri );
-					return s;
-				}
-				throw new XPathException(
-						"Could not find stylesheet within current mod or previous mods.\n" +
-					 "   Please verify the pathname: " + request.relativeUri
-				);
-			}
-		});
+		if ( stylesheetCache == null ) stylesheetCache = new StylesheetCache( 0 );
+		Processor p = stylesheetCache.getProcessor();
 		XsltExecutable exe;
 		try {
-			//InputSource iss = new InputSource( stylesheet );
-			//SAXSource sax = new SAXSource( iss );
-			StreamSource main = new StreamSource( stylesheet );
-			main.setSystemId( "main-stylesheet" );
-			exe = c.compile( main );
+			exe = stylesheetCache.compile( stylesheet, pack );
 		} catch (SaxonApiException e) {
 			throw new IllegalArgumentException(
 					"Error compiling stylesheet (probable XSL syntax error) — see log for details.", e
@@ -1287,59 +1576,54 @@ public class ModUtilities {
 	 * @see net.vhati.modmanager.core.SloppyXMLOutputProcessor
 	 */
 	public static InputStream transformXMLFile( InputStream mainStream, InputStream transformStream, String encoding, String mainDescription, String transformDescription, AbstractPack pack ) throws IOException, JDOMException {
-		// XML declaration, or root FTL tags.
-		Pattern comboPtn = Pattern.compile( "(<[?]xml [^>]*?[?]>\n*)|(</?FTL>)" );
-		Matcher m = null;
-		boolean mainHadRootTags = false;
+		WrappedDocument transformedDoc = transformWrappedXML( mainStream, transformStream, mainDescription, transformDescription, pack, null );
+
+		return encodeWrappedXML( transformedDoc, encoding );
+	}
+
+	/**
+	 * Decodes, parses, and transforms mainStream, using the stylesheet given by transformStream.
+	 *
+	 * If the mainStream had &lt;FTL&gt; tags, the result will note it, for
+	 * encodeWrappedXML() to add them back.
+	 *
+	 * @param stylesheetCache a cache to compile the stylesheet with, or null
+	 * @see #transformXMLFile(InputStream, InputStream, String, String, String, AbstractPack)
+	 * @see #encodeWrappedXML(WrappedDocument, String, OutputStream)
+	 */
+	public static WrappedDocument transformWrappedXML( InputStream mainStream, InputStream transformStream, String mainDescription, String transformDescription, AbstractPack pack, StylesheetCache stylesheetCache ) throws IOException, JDOMException {
 		String wrapperOpenTag = "<wrapper>";
 		String wrapperCloseTag = "</wrapper>";
-		StringBuffer buf = null;
 
-		String mainText = decodeText( mainStream, mainDescription ).text;
-		buf = new StringBuffer( wrapperOpenTag.length() + mainText.length() + wrapperCloseTag.length() );
-		buf.append( wrapperOpenTag );
-		m = comboPtn.matcher( mainText );
-		while ( m.find() ) {
-			if ( m.group( 2 ) != null ) mainHadRootTags = true;
-			m.appendReplacement( buf, "" );
-		}
-		m.appendTail( buf );
-		buf.append( wrapperCloseTag );
-		mainText = null;
-		Document mainDoc = parseStrictOrSloppyXML( buf, mainDescription+" (wrapped)" );
-		buf.setLength( 0 );
+		CharBuffer chars = decodeChars( mainStream, mainDescription, wrapperOpenTag.length(), wrapperCloseTag.length() ).chars;
+		boolean mainHadRootTags = scrubTags( chars, true );
+		chars = wrapChars( chars, wrapperOpenTag, wrapperCloseTag );
 
-		buf.trimToSize();  // Free the buffer.
-		buf = null;
+		Document mainDoc = parseStrictOrSloppyXML( chars, mainDescription+" (wrapped)" );
+		chars = null;  // Free the buffer.
 
-		Document transformedDoc = transformDocument( mainDoc, transformStream, pack );
+		Document transformedDoc = transformDocument( mainDoc, transformStream, pack, stylesheetCache );
 		mainDoc = null;
 
-		// Add FTL tags and move all content inside them.
-		// Collect live getContent() results in an Arraylist to avoid
-		// ConcurrentModificationException when detaching in the loop.
-		if ( mainHadRootTags ) {
-			Element transformedRoot = transformedDoc.getRootElement();
-			Element ftlNode = new Element( "FTL" );
-			List<Content> mergedContentList = new ArrayList<Content>( transformedRoot.getContent() );
-			for ( Content c : mergedContentList ) {  //
-				c.detach();
-			}
-			ftlNode.addContent( mergedContentList );
-			transformedRoot.addContent( ftlNode );
-		}
-
-		// Bake XML into text, filtering the stream to standardize newlines and encode.
-
-		CharsetEncoder encoder = Charset.forName( encoding ).newEncoder();
-		ByteArrayOutputStream tmpData = new ByteArrayOutputStream();
-		Writer writer = new EOLWriter( new OutputStreamWriter( tmpData, encoder ), "\r\n" );
-
-		SloppyXMLOutputProcessor.sloppyPrint( transformedDoc, writer, encoding, false );
-		writer.flush();
-		InputStream result = new ByteArrayInputStream( tmpData.toByteArray() );
+		return new WrappedDocument( transformedDoc, mainHadRootTags );
+	}
 
-		return result;
+	/**
+	 * Returns a ContentWriter that sloppy prints and encodes a wrapped document.
+	 *
+	 * The document will be printed when it's written, so it must be left
+	 * as it is until then.
+	 *
+	 * @see #encodeWrappedXML(WrappedDocument, String, OutputStream)
+	 * @see net.vhati.ftldat.AbstractPack#addFrom(String, ContentWriter)
+	 */
+	public static ContentWriter getWrappedXMLWriter( final WrappedDocument wrappedDoc, final String encoding ) {
+		return new ContentWriter() {
+			@Override
+			public void writeTo( OutputStream os ) throws IOException {
+				encodeWrappedXML( wrappedDoc, encoding, os );
+			}
+		};
 	}
 
 
@@ -1376,6 +1660,41 @@ public class ModUtilities {
 
 
 
+	/**
+	 * A holder for results from parseWrappedXML().
+	 *
+	 * doc         - A document whose root is a wrapper element.
+	 * hadRootTags - True if the original had root FTL tags, which were scrubbed.
+	 */
+	public static class WrappedDocument {
+		public final Document doc;
+		public final boolean hadRootTags;
+
+		public WrappedDocument( Document doc, boolean hadRootTags ) {
+			this.doc = doc;
+			this.hadRootTags = hadRootTags;
+		}
+	}
+
+
+
+	/**
+	 * A holder for results from decodeChars().
+	 *
+	 * chars    - The decoded chars, between the buffer's position and limit.
+	 * encoding - The encoding used.
+	 * eol      - A constant describing the original line endings.
+	 * bom      - The BOM bytes found, or null.
+	 */
+	private static class DecodedChars {
+		public CharBuffer chars = null;
+		public String encoding = null;
+		public int eol = DecodeResult.EOL_NONE;
+		public byte[] bom = null;
+	}
+
+
+
 	/**
 	 * A holder for results from decodeText().
 	 *
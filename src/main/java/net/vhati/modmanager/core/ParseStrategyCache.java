@@ -0,0 +1,116 @@
+package net.vhati.modmanager.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Texts the strict XML parser is known to fail on.
+ *
+ * A strict parse of malformed XML may get most of the way through before
+ * failing, only for the sloppy parser to start over. Once a text is known
+ * to need the sloppy parser, later parses of the same text can skip the
+ * strict attempt.
+ *
+ * Texts are looked up by their length and a hash like String's hashCode,
+ * which is cheap enough for every parse. Only when that matches a known text, or when a strict
+ * parse fails, is an MD5 of the chars calculated to identify it for sure.
+ *
+ * The least recently used texts are forgotten beyond a maximum count.
+ *
+ * This class is thread-safe.
+ */
+public class ParseStrategyCache {
+
+	private final Map<Long, String> sloppyMap;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxSize the most texts to remember
+	 */
+	public ParseStrategyCache( final int maxSize ) {
+		sloppyMap = new LinkedHashMap<Long, String>( 16, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<Long, String> eldest ) {
+				return ( size() > maxSize );
+			}
+		};
+	}
+
+	/**
+	 * Returns true if strict parsing has failed on a text.
+	 */
+	public boolean isKnownSloppy( CharSequence text ) {
+		String digest;
+		synchronized ( sloppyMap ) {
+			digest = sloppyMap.get( calcQuickKey( text ) );  // Marks it as recently used.
+		}
+		if ( digest == null ) return false;
+
+		return digest.equals( calcDigest( text ) );
+	}
+
+	/**
+	 * Notes that strict parsing failed on a text.
+	 *
+	 * A different text that was noted with the same quick key is forgotten.
+	 */
+	public void setSloppy( CharSequence text ) {
+		String digest = calcDigest( text );
+		if ( digest == null ) return;
+
+		synchronized ( sloppyMap ) {
+			sloppyMap.put( calcQuickKey( text ), digest );
+		}
+	}
+
+	/**
+	 * Returns a cheap key that texts with equal chars share.
+	 */
+	private static Long calcQuickKey( CharSequence text ) {
+		int textLen = text.length();
+		int hash = 0;
+		for ( int i=0; i < textLen; i++ ) {
+			hash = 31*hash + text.charAt( i );
+		}
+		return Long.valueOf( ((long)textLen << 32) | (hash & 0xffffffffL) );
+	}
+
+	/**
+	 * Returns an MD5 of a text's chars, or null if MD5 is unavailable.
+	 */
+	private static String calcDigest( CharSequence text ) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance( "MD5" );
+		}
+		catch ( NoSuchAlgorithmException e ) {
+			return null;
+		}
+
+		byte[] buf = new byte[8192];
+		int pos = 0;
+		int textLen = text.length();
+		for ( int i=0; i < textLen; i++ ) {
+			char c = text.charAt( i );
+			buf[pos++] = (byte)(c >>> 8);
+			buf[pos++] = (byte)c;
+			if ( pos == buf.length ) {
+				md.update( buf, 0, pos );
+				pos = 0;
+			}
+		}
+		md.update( buf, 0, pos );
+
+		byte[] hashBytes = md.digest();
+		StringBuilder hashStringBuf = new StringBuilder();
+		for ( byte b : hashBytes ) {
+			hashStringBuf.append( Integer.toString( (b & 0xff) + 0x100, 16 ).substring( 1 ) );
+		}
+		return hashStringBuf.toString();
+	}
+}
@@ -0,0 +1,165 @@
+package net.vhati.modmanager.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.vhati.ftldat.PackUtilities;
+
+
+/**
+ * A size-bounded store of patch results, each in its own subdirectory.
+ *
+ * Entries are named by a key derived from everything that determines a
+ * patch's outcome. Whatever files an entry holds are up to the caller.
+ * When the total size exceeds a limit, the least recently used entries
+ * are deleted.
+ */
+public class PatchCache {
+
+	private static final Logger log = LoggerFactory.getLogger( PatchCache.class );
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private File cacheDir;
+	private long maxBytes;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param cacheDir a directory to hold entries (created as needed)
+	 * @param maxBytes the total size to keep entries within
+	 */
+	public PatchCache( File cacheDir, long maxBytes ) {
+		this.cacheDir = cacheDir;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns a key identifying a patch's outcome, as lowercase hex.
+	 *
+	 * @param vanillaDigests digests of the unmodded dats' verified checksums
+	 * @param modHashes MD5s of mods to install, in order
+	 * @param globalPanic the patch's globalPanic setting
+	 * @param appVersion the version of the app doing the patching
+	 */
+	public static String calcKey( List<String> vanillaDigests, List<String> modHashes, boolean globalPanic, String appVersion ) throws IOException {
+		StringBuilder buf = new StringBuilder();
+		buf.append( "version " ).append( appVersion ).append( "\n" );
+		buf.append( "panic " ).append( globalPanic ).append( "\n" );
+		for ( String digest : vanillaDigests ) {
+			buf.append( "vanilla " ).append( digest ).append( "\n" );
+		}
+		for ( String modHash : modHashes ) {
+			buf.append( "mod " ).append( modHash ).append( "\n" );
+		}
+
+		try {
+			return PackUtilities.calcStreamMD5( new ByteArrayInputStream( buf.toString().getBytes( "UTF-8" ) ) );
+		}
+		catch ( NoSuchAlgorithmException e ) {
+			throw new IOException( "MD5 is unavailable", e );
+		}
+	}
+
+	/**
+	 * Returns an entry's directory, or null if there is no such entry.
+	 *
+	 * The entry will be marked as recently used.
+	 */
+	public File get( String key ) {
+		File entryDir = new File( cacheDir, key );
+		if ( !entryDir.isDirectory() ) return null;
+
+		entryDir.setLastModified( System.currentTimeMillis() );
+		return entryDir;
+	}
+
+	/**
+	 * Returns an empty temporary directory, to fill before calling put().
+	 */
+	public File prepare( String key ) throws IOException {
+		File tmpDir = new File( cacheDir, key + TMP_SUFFIX );
+		if ( tmpDir.exists() ) FileUtils.deleteDirectory( tmpDir );
+
+		if ( !tmpDir.mkdirs() ) {
+			throw new IOException( String.format( "Could not create cache dir: %s", tmpDir.getPath() ) );
+		}
+		return tmpDir;
+	}
+
+	/**
+	 * Turns a directory from prepare() into an entry, then evicts old entries.
+	 */
+	public void put( String key, File tmpDir ) throws IOException {
+		File entryDir = new File( cacheDir, key );
+		if ( entryDir.exists() ) FileUtils.deleteDirectory( entryDir );
+
+		if ( !tmpDir.renameTo( entryDir ) ) {
+			FileUtils.deleteDirectory( tmpDir );
+			throw new IOException( String.format( "Could not rename cache dir: %s", tmpDir.getPath() ) );
+		}
+		entryDir.setLastModified( System.currentTimeMillis() );
+
+		evict();
+	}
+
+	/**
+	 * Deletes an entry, if it exists.
+	 */
+	public void remove( String key ) throws IOException {
+		File entryDir = new File( cacheDir, key );
+		if ( entryDir.exists() ) FileUtils.deleteDirectory( entryDir );
+	}
+
+	/**
+	 * Deletes least recently used entries until the cache fits its limit.
+	 *
+	 * Leftover temporary dirs are deleted as well.
+	 */
+	public void evict() throws IOException {
+		File[] dirs = cacheDir.listFiles();
+		if ( dirs == null ) return;
+
+		List<File> entryDirs = new ArrayList<File>( dirs.length );
+		for ( File dir : dirs ) {
+			if ( !dir.isDirectory() ) continue;
+
+			if ( dir.getName().endsWith( TMP_SUFFIX ) ) {
+				FileUtils.deleteDirectory( dir );
+			} else {
+				entryDirs.add( dir );
+			}
+		}
+
+		// Newest first.
+		Collections.sort( entryDirs, new Comparator<File>() {
+			@Override
+			public int compare( File a, File b ) {
+				long aModified = a.lastModified();
+				long bModified = b.lastModified();
+				return ( aModified > bModified ? -1 : (aModified < bModified ? 1 : 0) );
+			}
+		});
+
+		long totalBytes = 0;
+		for ( File entryDir : entryDirs ) {
+			totalBytes += FileUtils.sizeOfDirectory( entryDir );
+			if ( totalBytes > maxBytes ) {
+				log.debug( String.format( "Evicting cached patch: %s", entryDir.getName() ) );
+				FileUtils.deleteDirectory( entryDir );
+			}
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package net.vhati.modmanager.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.vhati.ftldat.PackUtilities;
+
+
+/**
+ * A record of a successful patch, allowing the next one to resume from it.
+ *
+ * Mods are identified by MD5 in the order they were installed. For each
+ * mod, the innerPaths it touched are recorded (per-entry provenance), so
+ * a later patch sharing a prefix of the mod list can undo just what the
+ * rest of the list did.
+ *
+ * Checkpoint file structure (UTF-8 text):
+ *   A header line.
+ *   "version <appVersion>", "panic <true|false>".
+ *   One "mod <md5>" line per mod, in order.
+ *   One "dat <name> <fingerprint>" line per dat, as left by the patch.
+ *   "touch <modIndex> <innerPath>" lines for innerPaths a mod claimed.
+ *   "xsl <modIndex> <innerPath>" lines for innerPaths involving XSL.
+ */
+public class PatchCheckpoint {
+
+	private static final String HEADER = "# Slipstream patch checkpoint v1";
+
+	private String appVersion;
+	private boolean globalPanic;
+	private List<String> modHashes = new ArrayList<String>();
+	private Map<String, String> datFingerprintMap = new TreeMap<String, String>();
+
+	// Per-mod innerPaths, in the order they were first touched.
+	private List<Set<String>> touchedPathsList = new ArrayList<Set<String>>();
+	private List<Set<String>> xslPathsList = new ArrayList<Set<String>>();
+
+
+	/**
+	 * Constructs an empty checkpoint.
+	 *
+	 * @param appVersion the version of the app doing the patching
+	 * @param globalPanic the patch's globalPanic setting
+	 * @param modHashes MD5s of mods to install, in order
+	 */
+	public PatchCheckpoint( String appVersion, boolean globalPanic, List<String> modHashes ) {
+		this.appVersion = appVersion;
+		this.globalPanic = globalPanic;
+		for ( String modHash : modHashes ) {
+			this.modHashes.add( modHash );
+			touchedPathsList.add( new LinkedHashSet<String>() );
+			xslPathsList.add( new LinkedHashSet<String>() );
+		}
+	}
+
+	public String getAppVersion() {
+		return appVersion;
+	}
+
+	public boolean getGlobalPanic() {
+		return globalPanic;
+	}
+
+	public List<String> getModHashes() {
+		return new ArrayList<String>( modHashes );
+	}
+
+	public void setDatFingerprint( String datName, String fingerprint ) {
+		datFingerprintMap.put( datName, fingerprint );
+	}
+
+	/**
+	 * Returns the fingerprint a dat had after the patch, or null.
+	 */
+	public String getDatFingerprint( String datName ) {
+		return datFingerprintMap.get( datName );
+	}
+
+	/**
+	 * Records that a mod claimed an innerPath (whether or not it wrote to it).
+	 */
+	public void touch( int modIndex, String innerPath ) {
+		touchedPathsList.get( modIndex ).add( innerPath );
+	}
+
+	/**
+	 * Records that an innerPath was a stylesheet, or was transformed by one.
+	 *
+	 * Stylesheets may read other innerPaths, so their results can't be
+	 * reproduced in isolation.
+	 */
+	public void touchXSL( int modIndex, String innerPath ) {
+		touch( modIndex, innerPath );
+		xslPathsList.get( modIndex ).add( innerPath );
+	}
+
+	/**
+	 * Copies records of the first count mods from another checkpoint.
+	 */
+	public void copyRecords( PatchCheckpoint other, int count ) {
+		for ( int i=0; i < count; i++ ) {
+			touchedPathsList.get( i ).addAll( other.touchedPathsList.get( i ) );
+			xslPathsList.get( i ).addAll( other.xslPathsList.get( i ) );
+		}
+	}
+
+	/**
+	 * Returns the number of leading mods this checkpoint has in common with a list.
+	 */
+	public int getSharedPrefixLength( List<String> otherHashes ) {
+		int result = 0;
+		while ( result < modHashes.size() && result < otherHashes.size() && modHashes.get( result ).equals( otherHashes.get( result ) ) ) {
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns innerPaths touched by mods in a range, in the order first touched.
+	 *
+	 * @param fromIndex the first mod index (inclusive)
+	 * @param toIndex the last mod index (exclusive)
+	 */
+	public Set<String> getTouchedPaths( int fromIndex, int toIndex ) {
+		Set<String> result = new LinkedHashSet<String>();
+		for ( int i=fromIndex; i < toIndex; i++ ) {
+			result.addAll( touchedPathsList.get( i ) );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns innerPaths involving XSL among mods in a range.
+	 */
+	public Set<String> getXSLPaths( int fromIndex, int toIndex ) {
+		Set<String> result = new LinkedHashSet<String>();
+		for ( int i=fromIndex; i < toIndex; i++ ) {
+			result.addAll( xslPathsList.get( i ) );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns indices of mods in a range that touched any of the given innerPaths.
+	 */
+	public List<Integer> getModsTouching( Set<String> innerPaths, int fromIndex, int toIndex ) {
+		List<Integer> result = new ArrayList<Integer>();
+		for ( int i=fromIndex; i < toIndex; i++ ) {
+			for ( String innerPath : touchedPathsList.get( i ) ) {
+				if ( innerPaths.contains( innerPath ) ) {
+					result.add( i );
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Writes a checkpoint file.
+	 *
+	 * The content is written to a temporary file first, then renamed.
+	 */
+	public void save( File f ) throws IOException {
+		File tmpFile = new File( f.getAbsoluteFile().getParentFile(), f.getName() +".tmp" );
+
+		BufferedWriter bw = null;
+		try {
+			bw = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( tmpFile ), "UTF-8" ) );
+			bw.write( HEADER );
+			bw.write( "\n" );
+			bw.write( String.format( "version %s\n", appVersion ) );
+			bw.write( String.format( "panic %b\n", globalPanic ) );
+			for ( String modHash : modHashes ) {
+				bw.write( String.format( "mod %s\n", modHash ) );
+			}
+			for ( Map.Entry<String, String> entry : datFingerprintMap.entrySet() ) {
+				bw.write( String.format( "dat %s %s\n", entry.getKey(), entry.getValue() ) );
+			}
+			for ( int i=0; i < modHashes.size(); i++ ) {
+				for ( String innerPath : touchedPathsList.get( i ) ) {
+					bw.write( String.format( "touch %d %s\n", i, innerPath ) );
+				}
+				for ( String innerPath : xslPathsList.get( i ) ) {
+					bw.write( String.format( "xsl %d %s\n", i, innerPath ) );
+				}
+			}
+		}
+		finally {
+			try {if ( bw != null ) bw.close();}
+			catch ( IOException e ) {}
+		}
+
+		PackUtilities.replaceFile( tmpFile, f );
+	}
+
+	/**
+	 * Reads a checkpoint file.
+	 */
+	public static PatchCheckpoint load( File f ) throws IOException {
+		String appVersion = null;
+		Boolean globalPanic = null;
+		List<String> modHashes = new ArrayList<String>();
+		Map<String, String> datFingerprintMap = new HashMap<String, String>();
+		Map<String, List<String[]>> recordsMap = new LinkedHashMap<String, List<String[]>>();
+		recordsMap.put( "touch", new ArrayList<String[]>() );
+		recordsMap.put( "xsl", new ArrayList<String[]>() );
+
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader( new InputStreamReader( new FileInputStream( f ), "UTF-8" ) );
+
+			String line = br.readLine();
+			if ( !HEADER.equals( line ) ) {
+				throw new IOException( String.format( "Unexpected header in checkpoint file: %s", f.getName() ) );
+			}
+
+			while ( (line = br.readLine()) != null ) {
+				if ( line.length() == 0 ) continue;
+
+				String[] chunks = line.split( " ", 2 );
+				if ( chunks.length != 2 ) {
+					throw new IOException( String.format( "Malformed line in checkpoint file (%s): %s", f.getName(), line ) );
+				}
+
+				if ( chunks[0].equals( "version" ) ) {
+					appVersion = chunks[1];
+				}
+				else if ( chunks[0].equals( "panic" ) ) {
+					globalPanic = Boolean.valueOf( chunks[1] );
+				}
+				else if ( chunks[0].equals( "mod" ) ) {
+					modHashes.add( chunks[1] );
+				}
+				else if ( chunks[0].equals( "dat" ) || recordsMap.containsKey( chunks[0] ) ) {
+					String[] args = chunks[1].split( " ", 2 );
+					if ( args.length != 2 ) {
+						throw new IOException( String.format( "Malformed line in checkpoint file (%s): %s", f.getName(), line ) );
+					}
+					if ( chunks[0].equals( "dat" ) ) {
+						datFingerprintMap.put( args[0], args[1] );
+					} else {
+						recordsMap.get( chunks[0] ).add( args );
+					}
+				}
+				else {
+					throw new IOException( String.format( "Malformed line in checkpoint file (%s): %s", f.getName(), line ) );
+				}
+			}
+		}
+		finally {
+			try {if ( br != null ) br.close();}
+			catch ( IOException e ) {}
+		}
+
+		if ( appVersion == null || globalPanic == null ) {
+			throw new IOException( String.format( "Incomplete checkpoint file: %s", f.getName() ) );
+		}
+
+		PatchCheckpoint result = new PatchCheckpoint( appVersion, globalPanic.booleanValue(), modHashes );
+		result.datFingerprintMap.putAll( datFingerprintMap );
+		try {
+			for ( String[] args : recordsMap.get( "touch" ) ) {
+				result.touch( Integer.parseInt( args[0] ), args[1] );
+			}
+			for ( String[] args : recordsMap.get( "xsl" ) ) {
+				result.touchXSL( Integer.parseInt( args[0] ), args[1] );
+			}
+		}
+		catch ( NumberFormatException e ) {
+			throw new IOException( String.format( "Malformed mod index in checkpoint file: %s", f.getName() ), e );
+		}
+		catch ( IndexOutOfBoundsException e ) {
+			throw new IOException( String.format( "Mod index out of range in checkpoint file: %s", f.getName() ), e );
+		}
+
+		return result;
+	}
+}
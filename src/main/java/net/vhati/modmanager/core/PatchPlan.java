@@ -0,0 +1,183 @@
+package net.vhati.modmanager.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.vhati.ftldat.AbstractPack;
+import net.vhati.modmanager.core.ModArchive;
+import net.vhati.modmanager.core.ModArchive.ModEntry;
+
+
+/**
+ * Every operation a patch will perform, in the order mods call for them.
+ *
+ * Operations on different innerPaths are independent, except for XSL
+ * transforms, since stylesheets can read any innerPath. So the plan is
+ * split into stages at each transform. Within a stage, operations are
+ * grouped into chains by innerPath, preserving their order, and chains
+ * may be executed concurrently. A stage's transform runs after all of
+ * its chains have finished.
+ */
+public class PatchPlan {
+
+	private List<PatchOp> opList = new ArrayList<PatchOp>();
+
+
+	public PatchPlan() {
+	}
+
+	/**
+	 * Adds an operation, after all others so far.
+	 */
+	public PatchOp add( int modIndex, ModArchive archive, ModEntry modEntry, AbstractPack pack, String innerPath ) {
+		PatchOp op = new PatchOp();
+		op.seq = opList.size();
+		op.type = modEntry.type;
+		op.modIndex = modIndex;
+		op.archive = archive;
+		op.modEntry = modEntry;
+		op.pack = pack;
+		op.innerPath = innerPath;
+		opList.add( op );
+		return op;
+	}
+
+	public int size() {
+		return opList.size();
+	}
+
+	/**
+	 * Returns all operations, in order.
+	 */
+	public List<PatchOp> getOps() {
+		return Collections.unmodifiableList( opList );
+	}
+
+	/**
+	 * Returns the plan's operations grouped into stages.
+	 */
+	public List<PatchStage> getStages() {
+		List<PatchStage> result = new ArrayList<PatchStage>();
+
+		Map<String, PatchChain> chainMap = new LinkedHashMap<String, PatchChain>();
+		for ( PatchOp op : opList ) {
+			if ( op.type == OpType.TRANSFORM ) {
+				PatchStage stage = new PatchStage();
+				stage.chains.addAll( chainMap.values() );
+				stage.transformChain = new PatchChain( op.pack, op.innerPath );
+				stage.transformChain.ops.add( op );
+				result.add( stage );
+
+				chainMap.clear();
+				continue;
+			}
+
+			PatchChain chain = chainMap.get( op.innerPath );
+			if ( chain == null ) {
+				chain = new PatchChain( op.pack, op.innerPath );
+				chainMap.put( op.innerPath, chain );
+			}
+			chain.ops.add( op );
+		}
+		if ( !chainMap.isEmpty() ) {
+			PatchStage stage = new PatchStage();
+			stage.chains.addAll( chainMap.values() );
+			result.add( stage );
+		}
+
+		return result;
+	}
+
+
+
+	public static enum OpType {
+		/** Append and modify XML (*.xml.append). */
+		APPEND,
+		/** Append XML as raw text (*.xml.rawappend). */
+		RAWAPPEND,
+		/** Copy XML as raw text (*.xml.rawclobber). */
+		RAWCLOBBER,
+		/** Copy a rebuilt XML file (*.xml). */
+		XML,
+		/** Copy a stylesheet, for others to include (*.xsl). */
+		STYLESHEET,
+		/** Copy a text file with normalized line endings (*.txt). */
+		TXT,
+		/** Copy any other file as-is. */
+		OTHER,
+		/** Transform an XML file with a stylesheet (*.xsl, again). */
+		TRANSFORM;
+
+		/**
+		 * Returns true if this operation only copies bytes, without decoding them.
+		 */
+		public boolean isCopy() {
+			return ( this == STYLESHEET || this == OTHER );
+		}
+	}
+
+
+
+	/**
+	 * A single operation from a mod.
+	 */
+	public static class PatchOp {
+		/** This operation's position within the plan. */
+		public int seq = 0;
+
+		public OpType type = null;
+		public int modIndex = 0;
+		public ModArchive archive = null;
+		public ModEntry modEntry = null;
+
+		/** The pack and innerPath (case-corrected) to modify. */
+		public AbstractPack pack = null;
+		public String innerPath = null;
+
+		/**
+		 * Returns a description of the mod entry, for messages.
+		 */
+		public String getSourceDescription() {
+			return archive.describe( modEntry );
+		}
+	}
+
+
+
+	/**
+	 * Operations on a single innerPath, in order.
+	 */
+	public static class PatchChain {
+		public AbstractPack pack = null;
+		public String innerPath = null;
+		public List<PatchOp> ops = new ArrayList<PatchOp>();
+
+		public PatchChain( AbstractPack pack, String innerPath ) {
+			this.pack = pack;
+			this.innerPath = innerPath;
+		}
+
+		/**
+		 * Returns true if every operation only copies bytes.
+		 */
+		public boolean isCopyOnly() {
+			for ( PatchOp op : ops ) {
+				if ( !op.type.isCopy() ) return false;
+			}
+			return true;
+		}
+	}
+
+
+
+	/**
+	 * Independent chains, followed by a transform (or null at the end).
+	 */
+	public static class PatchStage {
+		public List<PatchChain> chains = new ArrayList<PatchChain>();
+		public PatchChain transformChain = null;
+	}
+}
@@ -0,0 +1,429 @@
+package net.vhati.modmanager.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import org.jdom2.JDOMException;
+
+import net.vhati.ftldat.PackUtilities;
+import net.vhati.modmanager.core.DocumentStore;
+import net.vhati.modmanager.core.ModArchive;
+import net.vhati.modmanager.core.ModArchive.ModEntry;
+import net.vhati.modmanager.core.ModUtilities;
+import net.vhati.modmanager.core.ModUtilities.WrappedDocument;
+import net.vhati.modmanager.core.PatchPlan.OpType;
+import net.vhati.modmanager.core.PatchPlan.PatchOp;
+
+
+/**
+ * Reads mods and decodes their entries ahead of the operations that need them.
+ *
+ * None of this depends on what's in the dats, so it can begin while they
+ * are still being backed up or restored. A reader thread first hashes and
+ * opens every mod, in order. Then it decodes entries: parsing append
+ * documents, and rebuilding XML files that will clobber others. (Raw
+ * text is transcoded as it's added, so it needn't be held in memory.)
+ *
+ * Decoded entries waiting to be taken are limited by a memory budget.
+ * When it runs out, the reader waits. An operation that needs an entry
+ * the reader hasn't started on decodes it itself, rather than waiting.
+ *
+ * Append documents can be kept in a DocumentStore, by mod hash and entry
+ * path, so that later patches with the same mods needn't parse them.
+ *
+ * The reader never notifies a ModPatchObserver. Progress is reported by
+ * whoever waits on it.
+ */
+public class PatchPrefetcher {
+
+	private final List<File> modFiles;
+	private final String[] modHashes;
+	private final ModArchive[] modArchives;
+	private final Throwable[] modFailures;
+	private int modsRead = 0;
+
+	private final Map<ModEntry, Slot> slotMap = new ConcurrentHashMap<ModEntry, Slot>();
+	private final List<Slot> slotList = new ArrayList<Slot>();
+	private final Semaphore budget;
+	private final int budgetKB;
+	private final String encoding;
+	private DocumentStore appendStore = null;
+
+	private Thread readerThread = null;
+	private volatile boolean keepRunning = true;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param modFiles mods in the order they'll be installed
+	 * @param budgetBytes memory to allow for decoded entries not yet taken
+	 * @param encoding the encoding to use for files that clobber others
+	 */
+	public PatchPrefetcher( List<File> modFiles, long budgetBytes, String encoding ) {
+		this.modFiles = new ArrayList<File>( modFiles );
+		this.modHashes = new String[modFiles.size()];
+		this.modArchives = new ModArchive[modFiles.size()];
+		this.modFailures = new Throwable[modFiles.size()];
+		this.budgetKB = (int)Math.max( 1, Math.min( Integer.MAX_VALUE, budgetBytes / 1024 ) );
+		this.budget = new Semaphore( budgetKB );
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Sets a store to look up append documents in, and to keep them in after parsing.
+	 *
+	 * This must be called before start().
+	 */
+	public void setAppendStore( DocumentStore appendStore ) {
+		this.appendStore = appendStore;
+	}
+
+	/**
+	 * Returns true if operations of a type decode their entry here.
+	 */
+	public static boolean isPrefetchable( OpType type ) {
+		return ( type == OpType.APPEND || type == OpType.XML );
+	}
+
+	/**
+	 * Starts the reader thread.
+	 */
+	public void start() {
+		readerThread = new Thread( "PatchPrefetcher" ) {
+			@Override
+			public void run() {
+				try {
+					readAll();
+					prefetchAll();
+				}
+				catch ( InterruptedException e ) {
+					// Stopped.
+				}
+			}
+		};
+		readerThread.setDaemon( true );
+		readerThread.start();
+	}
+
+	/**
+	 * Stops the reader thread, waits for it to end, and closes all mods.
+	 */
+	public void close() {
+		keepRunning = false;
+		if ( readerThread != null ) {
+			readerThread.interrupt();
+			boolean interrupted = false;
+			try {
+				while ( readerThread.isAlive() ) {
+					try {
+						readerThread.join();
+					}
+					catch ( InterruptedException e ) {
+						interrupted = true;
+					}
+				}
+			}
+			finally {
+				if ( interrupted ) Thread.currentThread().interrupt();
+			}
+		}
+
+		for ( ModArchive modArchive : modArchives ) {
+			if ( modArchive == null ) continue;
+			try {modArchive.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Hashes and opens each mod, noting failures for later.
+	 *
+	 * This never waits on the budget, so it always finishes.
+	 */
+	private void readAll() {
+		for ( int i=0; i < modFiles.size(); i++ ) {
+			if ( !keepRunning ) break;
+
+			File modFile = modFiles.get( i );
+			try {
+				String modHash = PackUtilities.calcFileMD5( modFile );
+				ModArchive modArchive = new ModArchive( modFile );
+
+				for ( ModEntry modEntry : modArchive.getEntries() ) {
+					if ( !modEntry.isExpected() || !isPrefetchable( modEntry.type ) ) continue;
+
+					Slot slot = new Slot( modHash, modArchive, modEntry );
+					slotMap.put( modEntry, slot );
+					slotList.add( slot );
+				}
+
+				modHashes[i] = modHash;
+				modArchives[i] = modArchive;
+			}
+			catch ( Throwable t ) {
+				modFailures[i] = t;  // Rethrown when requested.
+			}
+
+			synchronized ( this ) {
+				modsRead = i+1;
+				this.notifyAll();
+			}
+		}
+
+		// If stopped early, release anyone waiting.
+		synchronized ( this ) {
+			modsRead = modFiles.size();
+			this.notifyAll();
+		}
+	}
+
+	private void prefetchAll() throws InterruptedException {
+		for ( Slot slot : slotList ) {
+			if ( !keepRunning ) return;
+
+			synchronized ( slot ) {
+				if ( slot.state != Slot.PENDING ) continue;
+			}
+
+			int permits = estimateKB( slot.modEntry );
+			budget.acquire( permits );
+
+			synchronized ( slot ) {
+				if ( slot.state != Slot.PENDING ) {
+					budget.release( permits );
+					continue;
+				}
+				slot.state = Slot.READING;
+				slot.permits = permits;
+			}
+
+			Object payload = null;
+			Throwable failure = null;
+			try {
+				payload = decode( slot.modHash, slot.modArchive, slot.modEntry );
+			}
+			catch ( Throwable t ) {
+				failure = t;  // Rethrown when taken.
+			}
+
+			synchronized ( slot ) {
+				if ( slot.skipped ) {
+					release( slot );
+				}
+				else {
+					slot.payload = payload;
+					slot.failure = failure;
+					slot.state = Slot.DONE;
+				}
+				slot.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits until a mod has been read, then rethrows any failure.
+	 */
+	private void awaitMod( int modIndex ) throws IOException {
+		synchronized ( this ) {
+			try {
+				while ( modsRead <= modIndex ) this.wait();
+			}
+			catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new IOException( "Interrupted while reading mods", e );
+			}
+		}
+
+		Throwable failure = modFailures[modIndex];
+		if ( failure instanceof NoSuchAlgorithmException ) throw new IOException( "MD5 is unavailable", failure );
+		if ( failure instanceof IOException ) throw (IOException)failure;
+		if ( failure instanceof RuntimeException ) throw (RuntimeException)failure;
+		if ( failure instanceof Error ) throw (Error)failure;
+
+		if ( modArchives[modIndex] == null ) {
+			throw new IOException( String.format( "Reading stopped before mod: %s", modFiles.get( modIndex ).getName() ) );
+		}
+	}
+
+	/**
+	 * Returns the MD5 of a mod file, waiting for it if necessary.
+	 */
+	public String getModHash( int modIndex ) throws IOException {
+		awaitMod( modIndex );
+		return modHashes[modIndex];
+	}
+
+	/**
+	 * Returns a mod, opened for random access, waiting for it if necessary.
+	 */
+	public ModArchive getArchive( int modIndex ) throws IOException {
+		awaitMod( modIndex );
+		return modArchives[modIndex];
+	}
+
+	/**
+	 * Skips every entry except those given, as the rest won't be needed.
+	 */
+	public void retain( Collection<ModEntry> modEntries ) {
+		Set<ModEntry> keepSet = new HashSet<ModEntry>( modEntries );
+		for ( Map.Entry<ModEntry, Slot> entry : slotMap.entrySet() ) {
+			if ( !keepSet.contains( entry.getKey() ) ) skip( entry.getValue() );
+		}
+	}
+
+	/**
+	 * Returns the decoded form of an operation's entry.
+	 *
+	 * If the reader hasn't started on it yet, it will be decoded on the
+	 * calling thread.
+	 *
+	 * @return a Document for APPEND, or byte[] for XML
+	 * @throws IOException or JDOMException, if decoding failed
+	 */
+	public Object take( PatchOp op ) throws IOException, JDOMException {
+		Slot slot = slotMap.get( op.modEntry );
+
+		if ( slot != null ) {
+			synchronized ( slot ) {
+				try {
+					while ( slot.state == Slot.READING ) slot.wait();
+				}
+				catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					throw new IOException( "Interrupted while waiting for a prefetched entry", e );
+				}
+
+				if ( slot.state == Slot.DONE ) {
+					Object payload = slot.payload;
+					Throwable failure = slot.failure;
+					release( slot );
+
+					if ( failure instanceof IOException ) throw (IOException)failure;
+					if ( failure instanceof JDOMException ) throw (JDOMException)failure;
+					if ( failure instanceof RuntimeException ) throw (RuntimeException)failure;
+					if ( failure instanceof Error ) throw (Error)failure;
+					return payload;
+				}
+				slot.state = Slot.TAKEN;
+			}
+		}
+
+		return decode( modHashes[op.modIndex], op.archive, op.modEntry );
+	}
+
+	/**
+	 * Forgets an operation's entry, when it turns out not to be needed.
+	 */
+	public void skip( PatchOp op ) {
+		Slot slot = slotMap.get( op.modEntry );
+		if ( slot != null ) skip( slot );
+	}
+
+	private void skip( Slot slot ) {
+		synchronized ( slot ) {
+			if ( slot.state == Slot.PENDING ) {
+				slot.state = Slot.TAKEN;
+			}
+			else if ( slot.state == Slot.READING ) {
+				slot.skipped = true;
+			}
+			else if ( slot.state == Slot.DONE ) {
+				release( slot );
+			}
+		}
+	}
+
+	private void release( Slot slot ) {
+		slot.state = Slot.TAKEN;
+		slot.payload = null;
+		slot.failure = null;
+		budget.release( slot.permits );
+		slot.permits = 0;
+	}
+
+	/**
+	 * Guesses how much memory an entry will occupy once decoded.
+	 */
+	private int estimateKB( ModEntry modEntry ) {
+		long size = modEntry.zipEntry.getSize();
+		if ( size < 0 ) size = Math.max( 0, modEntry.zipEntry.getCompressedSize() ) * 4;
+
+		// Documents take up several times more than their text.
+		if ( modEntry.type == OpType.APPEND ) size *= 4;
+
+		return (int)Math.max( 1, Math.min( budgetKB, size / 1024 ) );
+	}
+
+	/**
+	 * Reads and decodes an entry.
+	 */
+	private Object decode( String modHash, ModArchive modArchive, ModEntry modEntry ) throws IOException, JDOMException {
+		String sourceDescription = modArchive.describe( modEntry );
+
+		String storeKey = null;
+		if ( modEntry.type == OpType.APPEND && appendStore != null ) {
+			storeKey = appendStore.calcKey( "append", modHash, modEntry.path );
+
+			WrappedDocument wrappedDoc = appendStore.get( storeKey );
+			if ( wrappedDoc != null ) return wrappedDoc.doc;
+		}
+
+		InputStream is = null;
+		try {
+			is = modArchive.getInputStream( modEntry );
+
+			if ( modEntry.type == OpType.APPEND ) {
+				WrappedDocument wrappedDoc = ModUtilities.parseWrappedXML( is, sourceDescription );
+				if ( storeKey != null ) appendStore.put( storeKey, wrappedDoc );
+
+				return wrappedDoc.doc;
+			}
+			else {
+				ByteArrayOutputStream tmpData = new ByteArrayOutputStream();
+				ModUtilities.rebuildXMLFile( is, encoding, sourceDescription, tmpData );
+				return tmpData.toByteArray();
+			}
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+
+
+	private static class Slot {
+		public static final int PENDING = 0;
+		public static final int READING = 1;
+		public static final int DONE = 2;
+		public static final int TAKEN = 3;
+
+		public final String modHash;
+		public final ModArchive modArchive;
+		public final ModEntry modEntry;
+
+		public int state = PENDING;
+		public int permits = 0;
+		public boolean skipped = false;
+		public Object payload = null;
+		public Throwable failure = null;
+
+		public Slot( String modHash, ModArchive modArchive, ModEntry modEntry ) {
+			this.modHash = modHash;
+			this.modArchive = modArchive;
+			this.modEntry = modEntry;
+		}
+	}
+}
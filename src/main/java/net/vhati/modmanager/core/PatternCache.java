@@ -0,0 +1,74 @@
+package net.vhati.modmanager.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ * Compiled regular expressions, shared across a patching session.
+ *
+ * Mods tend to repeat the same regexes in many find tags and files.
+ * The least recently used patterns are forgotten beyond a maximum count.
+ * Patterns with syntax errors are never cached, so each use reports them.
+ *
+ * This class is thread-safe.
+ */
+public class PatternCache {
+
+	private final Map<String, Pattern> patternMap;
+	private long hitCount = 0;
+	private long missCount = 0;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxSize the most patterns to keep
+	 */
+	public PatternCache( final int maxSize ) {
+		patternMap = new LinkedHashMap<String, Pattern>( 16, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<String, Pattern> eldest ) {
+				return ( size() > maxSize );
+			}
+		};
+	}
+
+	/**
+	 * Returns a compiled pattern, compiling it if necessary.
+	 *
+	 * @throws PatternSyntaxException if the regex is invalid
+	 * @see java.util.regex.Pattern#compile(String)
+	 */
+	public Pattern compile( String regex ) {
+		synchronized ( patternMap ) {
+			Pattern result = patternMap.get( regex );
+			if ( result != null ) {
+				hitCount++;
+				return result;
+			}
+			missCount++;
+		}
+
+		Pattern result = Pattern.compile( regex );
+
+		synchronized ( patternMap ) {
+			patternMap.put( regex, result );
+		}
+		return result;
+	}
+
+	public long getHitCount() {
+		synchronized ( patternMap ) {
+			return hitCount;
+		}
+	}
+
+	public long getMissCount() {
+		synchronized ( patternMap ) {
+			return missCount;
+		}
+	}
+}
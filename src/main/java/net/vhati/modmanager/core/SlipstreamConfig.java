@@ -24,6 +24,7 @@ public class SlipstreamConfig {
 	public static final String UPDATE_APP = "update_app";
 	public static final String USE_DEFAULT_UI = "use_default_ui";
 	public static final String REMEMBER_GEOMETRY = "remember_geometry";
+	public static final String PATCH_CACHE_SIZE = "patch_cache_size";
 	public static final String MANAGER_GEOMETRY = "manager_geometry";
 
 	private Properties config;
@@ -90,6 +91,7 @@ public class SlipstreamConfig {
 			userFieldsMap.put( UPDATE_APP,        "If a number greater than 0, check for newer app versions every N days." );
 			userFieldsMap.put( USE_DEFAULT_UI,    "If true, no attempt will be made to resemble a native GUI. Default: false." );
 			userFieldsMap.put( REMEMBER_GEOMETRY, "If true, window geometry will be saved on exit and restored on startup." );
+			userFieldsMap.put( PATCH_CACHE_SIZE,  "Megabytes of patch results to keep, for quickly switching mod lists. 0 disables. Default: 256." );
 
 			appFieldsMap.put( MANAGER_GEOMETRY,   "Last saved position/size/etc of the main window." );
 
@@ -34,7 +34,10 @@ import org.jdom2.util.NamespaceStack;
  *
  * Or just call the static sloppyPrint() method below.
  *
+ * To print encoded bytes to a stream, SloppyXMLSerializer is faster.
+ *
  * @see org.jdom2.output.XMLOutputter
+ * @see net.vhati.modmanager.core.SloppyXMLSerializer
  */
 public class SloppyXMLOutputProcessor extends AbstractXMLOutputProcessor {
 
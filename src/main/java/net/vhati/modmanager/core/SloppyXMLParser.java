@@ -1,8 +1,6 @@
 package net.vhati.modmanager.core;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -57,28 +55,23 @@ import org.jdom2.input.JDOMParseException;
  */
 public class SloppyXMLParser {
 
-	private Pattern declPtn = Pattern.compile( "(\\s*)<[?]xml [^?]*[?]>" );
-	private Pattern emptyCommentPtn = Pattern.compile( "(\\s*)<!---->" );
-	private Pattern commentPtn = Pattern.compile( "(?s)(\\s*)<!--((?:.(?!-->))*.)-->" );
-	private Pattern emptyCDATAPtn = Pattern.compile( "(\\s*)<!\\[CDATA\\[\\]\\]>" );
-	private Pattern cdataPtn = Pattern.compile( "(?s)(\\s*)<!\\[CDATA\\[((?:.(?!\\]\\]>))*.)\\]\\]>" );
-	private Pattern sTagPtn = Pattern.compile( "(\\s*)<(?:([\\w.-]+):)?([\\w.-]+)((?: [^>]+?)??)\\s*(/?)>" );
-	private Pattern eTagPtn = Pattern.compile( "([^<]*)</\\s*([^>]+)>" );
-	private Pattern endSpacePtn = Pattern.compile( "\\s+$" );
-	private Pattern strayCharsPtn = Pattern.compile( "(\\s*)(?:-->|[-.>,])" );
-
-	private Pattern attrPtn = Pattern.compile( "\\s*(?:([\\w.-]+):)?([\\w.-]+)\\s*=\\s*(\"[^\"]*\"|'[^']*')" );
 	private Pattern entityPtn = Pattern.compile( "&(?:(?:#([0-9]+))|(?:#x([0-9A-Fa-f]+))|([^;]+));" );
 
 	private Pattern breakPtn = Pattern.compile( "\n" );
 
-	private List<Pattern> chunkPtns = new ArrayList<Pattern>();
 	private Map<String,String> entityMap = new HashMap<String,String>();
 
 	private JDOMFactory factory;
 
 	private int pos = -1;
 
+	// Details of the last start tag matched.
+	private String tagPrefix = null;
+	private String tagName = null;
+	private int attrStart = -1;
+	private int attrEnd = -1;
+	private boolean selfClosing = false;
+
 
 	public SloppyXMLParser() {
 		this( null );
@@ -88,16 +81,6 @@ public class SloppyXMLParser {
 		if ( factory == null ) factory = new DefaultJDOMFactory();
 		this.factory = factory;
 
-		chunkPtns.add( declPtn );
-		chunkPtns.add( emptyCommentPtn );
-		chunkPtns.add( commentPtn );
-		chunkPtns.add( emptyCDATAPtn );
-		chunkPtns.add( cdataPtn );
-		chunkPtns.add( sTagPtn );
-		chunkPtns.add( eTagPtn );
-		chunkPtns.add( endSpacePtn );
-		chunkPtns.add( strayCharsPtn );
-
 		entityMap.put( "lt", "<" );
 		entityMap.put( "gt", ">" );
 		entityMap.put( "amp", "&" );
@@ -106,200 +89,146 @@ public class SloppyXMLParser {
 	}
 
 
-	public Document build( CharSequence s ) throws JDOMParseException {
+	/**
+	 * Parses text into a document.
+	 *
+	 * The text is consumed in chunks. At each position, the first kind of
+	 * chunk that fits is used, in this order:
+	 *
+	 *   XML declaration:  (\s*)<[?]xml [^?]*[?]>
+	 *   Empty comment:    (\s*)<!---->
+	 *   Comment:          (\s*)<!--(.+?)-->
+	 *   Empty CDATA:      (\s*)<!\[CDATA\[\]\]>
+	 *   CDATA:            (\s*)<!\[CDATA\[(.+?)\]\]>
+	 *   Start tag:        (\s*)<(?:([\w.-]+):)?([\w.-]+)((?: [^>]+?)??)\s*(/?)>
+	 *   End tag:          ([^<]*)</\s*([^>]+)>
+	 *   Trailing space:   \s+$
+	 *   Stray chars:      (\s*)(?:-->|[-.>,])
+	 *
+	 * Each is recognized by scanning characters, rather than with regexes.
+	 * The text is read in place, without copying it into a String first;
+	 * only the pieces that become nodes are copied.
+	 */
+	public Document build( CharSequence text ) throws JDOMParseException {
 		Element rootNode = factory.element( "wrapper" );
 		Document doc = factory.document( rootNode );
 
 		Parent parentNode = rootNode;
-		int sLen = s.length();
+		int sLen = text.length();
 		int lastPos = -1;
 		pos = 0;
 		int[] lastLineAndCol = new int[] {0, 0};  // Counts \n's and chars after the last \n.
-		String tmp = null;
-		Matcher m = declPtn.matcher( s );
 
 		try {
 			while ( pos > lastPos && pos < sLen ) {
-				m.region( pos, sLen );
-				boolean matchedChunk = false;
+				int wsEnd = skipSpace( text, pos, sLen );
+				String whitespace = text.subSequence( pos, wsEnd ).toString();
+				int chunkEnd;
 
-				for ( Pattern chunkPtn : chunkPtns ) {
-					m.usePattern( chunkPtn );
-					if ( !m.lookingAt() ) continue;
+				if ( (chunkEnd = matchDecl( text, wsEnd )) != -1 ) {
+					// Don't care.
+					addLineAndCol( lastLineAndCol, text, pos, chunkEnd );
+				}
+				else if ( (chunkEnd = matchLiteral( text, wsEnd, "<!---->" )) != -1 ) {
+					if ( whitespace.length() > 0 )
+						factory.addContent( parentNode, factory.text( whitespace ) );
 
-					if ( chunkPtn == declPtn ) {
-						// Don't care.
-						addLineAndCol( lastLineAndCol, m.group(0) );
-					}
-					else if ( chunkPtn == emptyCommentPtn ) {
-						String whitespace = m.group( 1 );
-						if ( whitespace.length() > 0 )
-							factory.addContent( parentNode, factory.text( whitespace ) );
+					addLineAndCol( lastLineAndCol, text, pos, chunkEnd );
+				}
+				else if ( (chunkEnd = matchDelimited( text, wsEnd, "<!--", "-->" )) != -1 ) {
+					if ( whitespace.length() > 0 )
+						factory.addContent( parentNode, factory.text( whitespace ) );
 
-						addLineAndCol( lastLineAndCol, s, m.start(), m.end() );
-					}
-					else if ( chunkPtn == commentPtn ) {
-						String whitespace = m.group( 1 );
-						if ( whitespace.length() > 0 )
-							factory.addContent( parentNode, factory.text( whitespace ) );
-
-						tmp = m.group( 2 );
-						if ( tmp.length() == 0 ) {
-							factory.addContent( parentNode, factory.comment( "" ) );
-						}
-						else {
-							Matcher splicedMatcher = Pattern.compile( "(\\s*)<!--" ).matcher( tmp );
-							int commentStart = 0;
-							while ( splicedMatcher.find() ) {
-								if ( splicedMatcher.start() - commentStart > 0 ) {
-									String splicedChunk = tmp.substring( commentStart, splicedMatcher.start() );
-									splicedChunk = splicedChunk.replaceAll( "^-+|(?<=-)-+|-+$", "" );
-									if ( splicedChunk.startsWith( " " ) ) splicedChunk += " ";
-									Comment commentNode = factory.comment( splicedChunk );
-									factory.addContent( parentNode, commentNode );
-								}
-								if ( splicedMatcher.group(1).length() > 0 ) {
-									// Whitespace between comments.
-									factory.addContent( parentNode, factory.text( splicedMatcher.group(1) ) );
-								}
-								commentStart = splicedMatcher.end();
-							}
-							if ( commentStart < tmp.length() ) {
-								String finalChunk = tmp.substring( commentStart );
-								finalChunk = finalChunk.replaceAll( "^-+|(?<=-)-+|-+$", "" );
-								Comment commentNode = factory.comment( finalChunk );
-								factory.addContent( parentNode, commentNode );
-							}
-						}
+					addComments( parentNode, text.subSequence( wsEnd+4, chunkEnd-3 ).toString() );
 
-						addLineAndCol( lastLineAndCol, s, m.start(), m.end() );
-					}
-					else if ( chunkPtn == emptyCDATAPtn ) {
-						String whitespace = m.group( 1 );
-						if ( whitespace.length() > 0 )
-							factory.addContent( parentNode, factory.text( whitespace ) );
+					addLineAndCol( lastLineAndCol, text, pos, chunkEnd );
+				}
+				else if ( (chunkEnd = matchLiteral( text, wsEnd, "<![CDATA[]]>" )) != -1 ) {
+					if ( whitespace.length() > 0 )
+						factory.addContent( parentNode, factory.text( whitespace ) );
 
-						addLineAndCol( lastLineAndCol, s, m.start(), m.end() );
-					}
-					else if ( chunkPtn == cdataPtn ) {
-						String whitespace = m.group( 1 );
-						if ( whitespace.length() > 0 )
-							factory.addContent( parentNode, factory.text( whitespace ) );
+					addLineAndCol( lastLineAndCol, text, pos, chunkEnd );
+				}
+				else if ( (chunkEnd = matchDelimited( text, wsEnd, "<![CDATA[", "]]>" )) != -1 ) {
+					if ( whitespace.length() > 0 )
+						factory.addContent( parentNode, factory.text( whitespace ) );
 
-						CDATA cdataNode = factory.cdata( m.group(2) );
-						factory.addContent( parentNode, cdataNode );
+					CDATA cdataNode = factory.cdata( text.subSequence( wsEnd+9, chunkEnd-3 ).toString() );
+					factory.addContent( parentNode, cdataNode );
 
-						addLineAndCol( lastLineAndCol, s, m.start(), m.end() );
+					addLineAndCol( lastLineAndCol, text, pos, chunkEnd );
+				}
+				else if ( (chunkEnd = matchStartTag( text, wsEnd )) != -1 ) {
+					if ( whitespace.length() > 0 )
+						factory.addContent( parentNode, factory.text( whitespace ) );
+
+					String nodePrefix = tagPrefix;  // Might be null.
+					String nodeName = tagName;
+					boolean nodeSelfClosing = selfClosing;
+
+					addLineAndCol( lastLineAndCol, text, pos, chunkEnd );
+
+					Element tagNode;
+					if ( nodePrefix != null ) {
+						Namespace nodeNS = Namespace.getNamespace( nodePrefix, nodePrefix );  // URI? *shrug*
+						factory.addNamespaceDeclaration( rootNode, nodeNS );
+						tagNode = factory.element( lastLineAndCol[0]+1, lastLineAndCol[1]+1+1, nodeName, nodeNS );
+					} else {
+						tagNode = factory.element( lastLineAndCol[0]+1, lastLineAndCol[1]+1+1, nodeName );
 					}
-					else if ( chunkPtn == sTagPtn ) {
-						String whitespace = m.group( 1 );
-						if ( whitespace.length() > 0 )
-							factory.addContent( parentNode, factory.text( whitespace ) );
-
-						String nodePrefix = m.group( 2 );  // Might be null.
-						String nodeName = m.group( 3 );
-						String attrString = m.group( 4 );
-						boolean selfClosing = ( m.group( 5 ).length() > 0 );
-
-						addLineAndCol( lastLineAndCol, s, m.start(), m.end() );
-
-						Element tagNode;
-						if ( nodePrefix != null ) {
-							Namespace nodeNS = Namespace.getNamespace( nodePrefix, nodePrefix );  // URI? *shrug*
-							factory.addNamespaceDeclaration( rootNode, nodeNS );
-							tagNode = factory.element( lastLineAndCol[0]+1, lastLineAndCol[1]+1+1, nodeName, nodeNS );
-						} else {
-							tagNode = factory.element( lastLineAndCol[0]+1, lastLineAndCol[1]+1+1, nodeName );
-						}
 
-						if ( attrString.length() > 0 ) {
-							Matcher am = attrPtn.matcher( attrString );
-							while ( am.lookingAt() ) {
-								String attrPrefix = am.group( 1 );  // Might be null.
-								String attrName = am.group( 2 );
-								String attrValue = am.group( 3 );
-								attrValue = attrValue.substring( 1, attrValue.length()-1 );
-								attrValue = unescape( attrValue );
-
-								if ( attrPrefix != null ) {
-									if ( attrPrefix.equals( "xmlns" ) ) {
-										// This is a pseudo attribute declaring a namespace prefix.
-										// Move it to the root node.
-										Namespace attrNS = Namespace.getNamespace( attrName, attrName );  // URI? *shrug*
-										factory.addNamespaceDeclaration( rootNode, attrNS );
-									}
-									else {
-										Namespace attrNS = Namespace.getNamespace( attrPrefix, attrPrefix );  // URI? *shrug*
-										factory.addNamespaceDeclaration( rootNode, attrNS );
-										Attribute attrObj = factory.attribute( attrName, attrValue, AttributeType.UNDECLARED, attrNS );
-										factory.setAttribute( tagNode, attrObj );
-									}
-								} else if ( attrName.equals("xmlns") ) {
-									// New default namespace URI within this node.
-									Namespace attrNS = Namespace.getNamespace( attrValue );
-									factory.addNamespaceDeclaration( tagNode, attrNS );
-								} else {
-									// Normal attribute.
-									Attribute attrObj = factory.attribute( attrName, attrValue, AttributeType.UNDECLARED, Namespace.NO_NAMESPACE );
-									factory.setAttribute( tagNode, attrObj );
-								}
-								am.region( am.end(), am.regionEnd() );
-							}
-							if ( am.regionStart() < attrString.length() ) {
-								int nonspacePos = findNextNonspace( s, pos );
-								int errorPos = ( (nonspacePos != -1) ? nonspacePos : pos );
-
-								int[] lineAndCol = getLineAndCol( s, errorPos );
-								int lineNum = lineAndCol[0];
-								int colNum = lineAndCol[1];
-
-								SAXParseException cause = new SAXParseException( String.format( "At line %d, column %d: Strange attributes.", lineNum, colNum ), null, null, lineNum, colNum );
-								throw new JDOMParseException( String.format( "Error on line %d: %s", lineNum, cause.getMessage() ), cause );
-							}
-						}
-
-						factory.addContent( parentNode, tagNode );
-						if ( !selfClosing ) parentNode = tagNode;
-					}
-					else if ( chunkPtn == eTagPtn ) {
-						String interimText = m.group( 1 );
-						interimText = unescape( interimText );
+					if ( attrEnd > attrStart ) {
+						int attrPos = addAttributes( rootNode, tagNode, text, attrStart, attrEnd );
+						if ( attrPos < attrEnd ) {
+							int nonspacePos = findNextNonspace( text, pos );
+							int errorPos = ( (nonspacePos != -1) ? nonspacePos : pos );
 
-						factory.addContent( parentNode, factory.text( interimText ) );
-						parentNode = parentNode.getParent();
+							int[] lineAndCol = getLineAndCol( text, errorPos );
+							int lineNum = lineAndCol[0];
+							int colNum = lineAndCol[1];
 
-						addLineAndCol( lastLineAndCol, s, m.start(), m.end() );
-					}
-					else if ( chunkPtn == endSpacePtn ) {
-						// This is the end of the document.
+							SAXParseException cause = new SAXParseException( String.format( "At line %d, column %d: Strange attributes.", lineNum, colNum ), null, null, lineNum, colNum );
+							throw new JDOMParseException( String.format( "Error on line %d: %s", lineNum, cause.getMessage() ), cause );
+						}
 					}
-					else if ( chunkPtn == strayCharsPtn ) {
-						// Non-space junk between an end tag and a start tag.
 
-						String whitespace = m.group( 1 );
-						if ( whitespace.length() > 0 )
-							factory.addContent( parentNode, factory.text( whitespace ) );
+					factory.addContent( parentNode, tagNode );
+					if ( !nodeSelfClosing ) parentNode = tagNode;
+				}
+				else if ( (chunkEnd = matchEndTag( text, pos )) != -1 ) {
+					String interimText = text.subSequence( pos, indexOf( text, '<', pos ) ).toString();
+					interimText = unescape( interimText );
 
-						addLineAndCol( lastLineAndCol, s, m.start(), m.end() );
-					}
+					factory.addContent( parentNode, factory.text( interimText ) );
+					parentNode = parentNode.getParent();
 
-					matchedChunk = true;
-					lastPos = pos;
-					pos = m.end();
-					break;
+					addLineAndCol( lastLineAndCol, text, pos, chunkEnd );
+				}
+				else if ( (chunkEnd = matchTrailingSpace( text, pos, wsEnd )) != -1 ) {
+					// This is the end of the document.
 				}
+				else if ( (chunkEnd = matchStrayChars( text, wsEnd )) != -1 ) {
+					// Non-space junk between an end tag and a start tag.
 
-				if ( !matchedChunk ) {
-					int nonspacePos = findNextNonspace( s, pos );
+					if ( whitespace.length() > 0 )
+						factory.addContent( parentNode, factory.text( whitespace ) );
+
+					addLineAndCol( lastLineAndCol, text, pos, chunkEnd );
+				}
+				else {
+					int nonspacePos = findNextNonspace( text, pos );
 					int errorPos = ( (nonspacePos != -1) ? nonspacePos : pos );
 
-					int[] lineAndCol = getLineAndCol( s, errorPos );
+					int[] lineAndCol = getLineAndCol( text, errorPos );
 					int lineNum = lineAndCol[0];
 					int colNum = lineAndCol[1];
 
 					SAXParseException cause = new SAXParseException( String.format( "At line %d, column %d: Unexpected characters.", lineNum, colNum ), null, null, lineNum, colNum );
 					throw new JDOMParseException( String.format( "Error on line %d: %s", lineNum, cause.getMessage() ), cause );
 				}
+
+				lastPos = pos;
+				pos = chunkEnd;
 			}
 
 			if ( rootNode.getChildren().size() == 1 ) {
@@ -315,10 +244,10 @@ public class SloppyXMLParser {
 
 		}
 		catch( IllegalAddException e ) {
-			int nonspacePos = findNextNonspace( s, pos );
+			int nonspacePos = findNextNonspace( text, pos );
 			int errorPos = ( (nonspacePos != -1) ? nonspacePos : pos );
 
-			int[] lineAndCol = getLineAndCol( s, errorPos );
+			int[] lineAndCol = getLineAndCol( text, errorPos );
 			int lineNum = lineAndCol[0];
 			int colNum = lineAndCol[1];
 
@@ -334,6 +263,329 @@ public class SloppyXMLParser {
 	}
 
 
+	/**
+	 * Returns the end of an XML declaration at i, or -1.
+	 */
+	private int matchDecl( CharSequence s, int i ) {
+		if ( !startsWith( s, "<?xml ", i ) ) return -1;
+
+		int q = indexOf( s, '?', i+6 );
+		if ( q == -1 || q+1 >= s.length() || s.charAt( q+1 ) != '>' ) return -1;
+		return q+2;
+	}
+
+	/**
+	 * Returns the end of a literal string at i, or -1.
+	 */
+	private int matchLiteral( CharSequence s, int i, String literal ) {
+		return ( startsWith( s, literal, i ) ? i + literal.length() : -1 );
+	}
+
+	/**
+	 * Returns the end of a non-empty span between two delimiters at i, or -1.
+	 *
+	 * The span ends at the first closing delimiter after its first char.
+	 */
+	private int matchDelimited( CharSequence s, int i, String opening, String closing ) {
+		if ( !startsWith( s, opening, i ) ) return -1;
+
+		int closingPos = indexOf( s, closing, i + opening.length() + 1 );
+		return ( closingPos != -1 ? closingPos + closing.length() : -1 );
+	}
+
+	/**
+	 * Returns the end of a start tag at i, or -1.
+	 *
+	 * Details are stored in tagPrefix, tagName, attrStart, attrEnd, and selfClosing.
+	 */
+	private int matchStartTag( CharSequence s, int i ) {
+		int sLen = s.length();
+		if ( i >= sLen || s.charAt( i ) != '<' ) return -1;
+
+		int nameStart = i+1;
+		int nameEnd = skipNameChars( s, nameStart, sLen );
+		if ( nameEnd == nameStart ) return -1;
+
+		String prefix = null;
+		if ( nameEnd < sLen && s.charAt( nameEnd ) == ':' ) {
+			prefix = s.subSequence( nameStart, nameEnd ).toString();
+			nameStart = nameEnd+1;
+			nameEnd = skipNameChars( s, nameStart, sLen );
+			if ( nameEnd == nameStart ) return -1;
+		}
+
+		int result = -1;
+		boolean slash = false;
+		int attrsEnd = nameEnd;
+
+		// Without attributes, only space and an optional slash may precede '>'.
+		int closePos = skipSpace( s, nameEnd, sLen );
+		if ( closePos < sLen && s.charAt( closePos ) == '>' ) {
+			result = closePos+1;
+		}
+		else if ( closePos+1 < sLen && s.charAt( closePos ) == '/' && s.charAt( closePos+1 ) == '>' ) {
+			result = closePos+2;
+			slash = true;
+		}
+		else if ( nameEnd < sLen && s.charAt( nameEnd ) == ' ' ) {
+			// Attributes are a space and at least one char, up to the first '>',
+			// less any space and slash just before it.
+			closePos = indexOf( s, '>', nameEnd+1 );
+			if ( closePos < nameEnd+2 ) return -1;
+
+			attrsEnd = closePos;
+			if ( s.charAt( attrsEnd-1 ) == '/' ) {
+				attrsEnd--;
+				slash = true;
+			}
+			while ( attrsEnd > nameEnd+2 && isSpace( s.charAt( attrsEnd-1 ) ) ) {
+				attrsEnd--;
+			}
+			result = closePos+1;
+		}
+		else {
+			return -1;
+		}
+
+		tagPrefix = prefix;
+		tagName = s.subSequence( nameStart, nameEnd ).toString();
+		attrStart = nameEnd;
+		attrEnd = attrsEnd;
+		selfClosing = slash;
+		return result;
+	}
+
+	/**
+	 * Returns the end of an end tag, and any text before it, at i, or -1.
+	 */
+	private int matchEndTag( CharSequence s, int i ) {
+		int ltPos = indexOf( s, '<', i );
+		if ( ltPos == -1 || ltPos+1 >= s.length() || s.charAt( ltPos+1 ) != '/' ) return -1;
+
+		// At least one char (even a space) must precede '>'.
+		int gtPos = indexOf( s, '>', ltPos+2 );
+		if ( gtPos <= ltPos+2 ) return -1;
+		return gtPos+1;
+	}
+
+	/**
+	 * Returns the end of the text, if only space remains after i, or -1.
+	 *
+	 * As with the regex "$", a final line terminator may remain unmatched.
+	 *
+	 * @param wsEnd the first non-space char at or after i
+	 */
+	private int matchTrailingSpace( CharSequence s, int i, int wsEnd ) {
+		if ( wsEnd == i ) return -1;
+
+		int sLen = s.length();
+		if ( wsEnd == sLen ) return sLen;
+
+		if ( wsEnd == sLen-1 ) {
+			char c = s.charAt( wsEnd );
+			if ( c == '\u0085' || c == '\u2028' || c == '\u2029' ) return wsEnd;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the end of a stray "-->", '-', '.', '>', or ',' at i, or -1.
+	 */
+	private int matchStrayChars( CharSequence s, int i ) {
+		if ( startsWith( s, "-->", i ) ) return i+3;
+		if ( i < s.length() && "-.>,".indexOf( s.charAt( i ) ) != -1 ) return i+1;
+		return -1;
+	}
+
+	/**
+	 * Adds one or more comments, from the content between "&lt;!--" and "--&gt;".
+	 *
+	 * Nested "&lt;!--" starts another comment. Extra dashes are discarded.
+	 */
+	private void addComments( Parent parentNode, String content ) {
+		int commentStart = 0;
+		int openingPos;
+		while ( (openingPos = content.indexOf( "<!--", commentStart )) != -1 ) {
+			int spliceStart = openingPos;
+			while ( spliceStart > commentStart && isSpace( content.charAt( spliceStart-1 ) ) ) {
+				spliceStart--;
+			}
+
+			if ( spliceStart - commentStart > 0 ) {
+				String splicedChunk = trimDashes( content.substring( commentStart, spliceStart ) );
+				if ( splicedChunk.startsWith( " " ) ) splicedChunk += " ";
+				Comment commentNode = factory.comment( splicedChunk );
+				factory.addContent( parentNode, commentNode );
+			}
+			if ( openingPos > spliceStart ) {
+				// Whitespace between comments.
+				factory.addContent( parentNode, factory.text( content.substring( spliceStart, openingPos ) ) );
+			}
+			commentStart = openingPos+4;
+		}
+		if ( commentStart < content.length() ) {
+			String finalChunk = trimDashes( content.substring( commentStart ) );
+			Comment commentNode = factory.comment( finalChunk );
+			factory.addContent( parentNode, commentNode );
+		}
+	}
+
+	/**
+	 * Removes leading and trailing dashes, and shortens runs of dashes to one.
+	 */
+	private String trimDashes( String s ) {
+		int start = 0;
+		int end = s.length();
+
+		// As with the regex "$", trailing dashes may precede a final line terminator.
+		int tailStart = end;
+		if ( s.endsWith( "\r\n" ) ) {
+			tailStart = end-2;
+		}
+		else if ( end > 0 ) {
+			char c = s.charAt( end-1 );
+			if ( c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029' ) tailStart = end-1;
+		}
+
+		while ( start < tailStart && s.charAt( start ) == '-' ) start++;
+		end = tailStart;
+		while ( end > start && s.charAt( end-1 ) == '-' ) end--;
+
+		StringBuilder buf = new StringBuilder( end - start + s.length() - tailStart );
+		for ( int i=start; i < end; i++ ) {
+			char c = s.charAt( i );
+			if ( c == '-' && s.charAt( i-1 ) == '-' ) continue;
+			buf.append( c );
+		}
+		buf.append( s, tailStart, s.length() );
+		return buf.toString();
+	}
+
+	/**
+	 * Sets attributes on an element, from the text between its name and '>'.
+	 *
+	 * Namespace declarations are moved to the root node.
+	 *
+	 * @return the position where recognizable attributes ended
+	 */
+	private int addAttributes( Element rootNode, Element tagNode, CharSequence s, int start, int end ) {
+		int attrPos = start;
+		while ( true ) {
+			int nameStart = skipSpace( s, attrPos, end );
+			int nameEnd = skipNameChars( s, nameStart, end );
+			if ( nameEnd == nameStart ) break;
+
+			String attrPrefix = null;  // Might be null.
+			if ( nameEnd < end && s.charAt( nameEnd ) == ':' ) {
+				attrPrefix = s.subSequence( nameStart, nameEnd ).toString();
+				nameStart = nameEnd+1;
+				nameEnd = skipNameChars( s, nameStart, end );
+				if ( nameEnd == nameStart ) break;
+			}
+			String attrName = s.subSequence( nameStart, nameEnd ).toString();
+
+			int eqPos = skipSpace( s, nameEnd, end );
+			if ( eqPos >= end || s.charAt( eqPos ) != '=' ) break;
+
+			int quotePos = skipSpace( s, eqPos+1, end );
+			if ( quotePos >= end ) break;
+			char quote = s.charAt( quotePos );
+			if ( quote != '"' && quote != '\'' ) break;
+
+			int closingPos = indexOf( s, quote, quotePos+1 );
+			if ( closingPos == -1 || closingPos >= end ) break;
+
+			String attrValue = unescape( s.subSequence( quotePos+1, closingPos ).toString() );
+			attrPos = closingPos+1;
+
+			if ( attrPrefix != null ) {
+				if ( attrPrefix.equals( "xmlns" ) ) {
+					// This is a pseudo attribute declaring a namespace prefix.
+					// Move it to the root node.
+					Namespace attrNS = Namespace.getNamespace( attrName, attrName );  // URI? *shrug*
+					factory.addNamespaceDeclaration( rootNode, attrNS );
+				}
+				else {
+					Namespace attrNS = Namespace.getNamespace( attrPrefix, attrPrefix );  // URI? *shrug*
+					factory.addNamespaceDeclaration( rootNode, attrNS );
+					Attribute attrObj = factory.attribute( attrName, attrValue, AttributeType.UNDECLARED, attrNS );
+					factory.setAttribute( tagNode, attrObj );
+				}
+			} else if ( attrName.equals("xmlns") ) {
+				// New default namespace URI within this node.
+				Namespace attrNS = Namespace.getNamespace( attrValue );
+				factory.addNamespaceDeclaration( tagNode, attrNS );
+			} else {
+				// Normal attribute.
+				Attribute attrObj = factory.attribute( attrName, attrValue, AttributeType.UNDECLARED, Namespace.NO_NAMESPACE );
+				factory.setAttribute( tagNode, attrObj );
+			}
+		}
+		return attrPos;
+	}
+
+	/**
+	 * Returns true if a literal string occurs at i.
+	 */
+	private static boolean startsWith( CharSequence s, String literal, int i ) {
+		if ( i + literal.length() > s.length() ) return false;
+
+		for ( int j=0; j < literal.length(); j++ ) {
+			if ( s.charAt( i+j ) != literal.charAt( j ) ) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the first position at or after i of a char, or -1.
+	 */
+	private static int indexOf( CharSequence s, char c, int i ) {
+		int sLen = s.length();
+		for ( ; i < sLen; i++ ) {
+			if ( s.charAt( i ) == c ) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the first position at or after i of a literal string, or -1.
+	 */
+	private static int indexOf( CharSequence s, String literal, int i ) {
+		while ( (i = indexOf( s, literal.charAt( 0 ), i )) != -1 ) {
+			if ( startsWith( s, literal, i ) ) return i;
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the first position at or after i that isn't whitespace (as in regex "\s").
+	 */
+	private static int skipSpace( CharSequence s, int i, int end ) {
+		while ( i < end && isSpace( s.charAt( i ) ) ) i++;
+		return i;
+	}
+
+	/**
+	 * Returns the first position at or after i that isn't a name char (as in regex "[\w.-]").
+	 */
+	private static int skipNameChars( CharSequence s, int i, int end ) {
+		while ( i < end ) {
+			char c = s.charAt( i );
+			if ( (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '.' || c == '-' ) {
+				i++;
+			} else {
+				break;
+			}
+		}
+		return i;
+	}
+
+	private static boolean isSpace( char c ) {
+		return ( c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r' );
+	}
+
+
 	/**
 	 * Unescapes standard named entities and numeric character references.
 	 * This applies to attributes and element values.
@@ -341,6 +593,8 @@ public class SloppyXMLParser {
 	 * They are: lt, gt, quot, apos, amp, #1234, #x1a2b.
 	 */
 	public String unescape( String s ) {
+		if ( s.indexOf( '&' ) == -1 ) return s;
+
 		StringBuffer buf = new StringBuffer( s.length() );
 		Matcher m = entityPtn.matcher( s );
 		String decRef;
@@ -403,13 +657,13 @@ public class SloppyXMLParser {
 	private void addLineAndCol( int[] lastLineAndCol, CharSequence s, int start, int end ) {
 		if ( s.length() == 0 || start == end ) return;
 
-		Matcher breakMatcher = breakPtn.matcher( s );
-		breakMatcher.region( start, end );
 		int breakCount = 0;
 		int lastBreakPos = -1;
-		while ( breakMatcher.find() ) {
-			lastBreakPos = breakMatcher.start();
-			breakCount++;
+		for ( int i=start; i < end; i++ ) {
+			if ( s.charAt( i ) == '\n' ) {
+				lastBreakPos = i;
+				breakCount++;
+			}
 		}
 		if ( lastBreakPos == -1 ) {
 			// Same line, a few more chars in. Increment col.
@@ -421,10 +675,6 @@ public class SloppyXMLParser {
 		}
 	}
 
-	private void addLineAndCol( int[] lastLineAndCol, CharSequence s ) {
-		addLineAndCol( lastLineAndCol, s, 0, s.length() );
-	}
-
 
 	/**
 	 * Returns lineNum and colNum for a position in text.
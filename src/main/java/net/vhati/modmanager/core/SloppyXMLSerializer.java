@@ -0,0 +1,424 @@
+package net.vhati.modmanager.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.List;
+
+import org.jdom2.Attribute;
+import org.jdom2.CDATA;
+import org.jdom2.Comment;
+import org.jdom2.Content;
+import org.jdom2.DocType;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.EntityRef;
+import org.jdom2.Namespace;
+import org.jdom2.ProcessingInstruction;
+import org.jdom2.Text;
+import org.jdom2.Verifier;
+import org.jdom2.util.NamespaceStack;
+
+
+/**
+ * Prints XML trees the way SloppyXMLOutputProcessor does, as encoded bytes.
+ *
+ * The output is identical to SloppyXMLOutputProcessor.sloppyPrint(), with
+ * escaping disallowed, written through an EOLWriter("\r\n") wrapped around
+ * an OutputStreamWriter: the root element is invisible, text is preserved
+ * as-is, line endings are CR-LF, and unmappable characters cause an
+ * UnmappableCharacterException.
+ *
+ * Rather than going through XMLOutputter's Writers and per-string escaping,
+ * chars are escaped and line endings standardized straight into a reused
+ * buffer, which is encoded in bulk into another reused buffer.
+ *
+ * This class is not thread-safe. Instances may be reused, one document at
+ * a time.
+ *
+ * @see net.vhati.modmanager.core.SloppyXMLOutputProcessor
+ * @see net.vhati.modmanager.core.EOLWriter
+ */
+public class SloppyXMLSerializer {
+
+	private static final String TRAX_DISABLE_ESCAPING = "javax.xml.transform.disable-output-escaping";
+	private static final String TRAX_ENABLE_ESCAPING = "javax.xml.transform.enable-output-escaping";
+
+	private final String encoding;
+	private final CharsetEncoder encoder;
+
+	private final char[] chars = new char[8192];
+	private final int charsLimit = chars.length - 8;  // Room for an entity or EOL after any check.
+	private final ByteBuffer bytes = ByteBuffer.allocate( 8192 );
+	private int charsLen = 0;
+	private boolean sawCR = false;
+
+	private OutputStream os = null;
+	private NamespaceStack nstack = null;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param encoding the encoding to write, and to name in the XML declaration
+	 */
+	public SloppyXMLSerializer( String encoding ) {
+		this.encoding = encoding;
+		this.encoder = Charset.forName( encoding ).newEncoder();
+	}
+
+
+	/**
+	 * Prints and encodes an XML tree, written to a stream.
+	 *
+	 * The stream will be flushed, but not closed.
+	 */
+	public void print( Document doc, OutputStream os ) throws IOException {
+		this.os = os;
+		nstack = new NamespaceStack();
+		encoder.reset();
+		bytes.clear();
+		charsLen = 0;
+		sawCR = false;
+
+		try {
+			put( "<?xml version=\"1.0\" encoding=\"" );
+			put( encoding );
+			put( "\"?>" );
+			putEOL();
+
+			List<Content> content = doc.getContent();
+			boolean escape = true;
+			for ( Content c : content ) {
+				switch ( c.getCType() ) {
+					case Comment:
+						printComment( (Comment)c );
+						break;
+					case DocType:
+						printDocType( (DocType)c );
+						break;
+					case Element:
+						printElement( (Element)c, escape );
+						break;
+					case ProcessingInstruction:
+						escape = printProcessingInstruction( (ProcessingInstruction)c, escape );
+						break;
+					case Text:
+						String text = ((Text)c).getText();
+						if ( text != null && Verifier.isAllXMLWhitespace( text ) ) put( text );
+						break;
+					default:
+						break;  // XMLOutputter ignores anything else here.
+				}
+			}
+			if ( !content.isEmpty() ) putEOL();
+
+			drainChars();
+			drainBytes();
+			os.flush();
+		}
+		finally {
+			this.os = null;
+			nstack = null;
+		}
+	}
+
+	/**
+	 * Prints an element, or only its content if it's the root.
+	 *
+	 * @param escape true if output escaping is enabled, as of this element
+	 */
+	private void printElement( Element element, boolean escape ) throws IOException {
+		nstack.push( element );
+		try {
+			List<Content> content = element.getContent();
+			boolean isRoot = element.isRootElement();
+
+			if ( !isRoot ) {
+				put( '<' );
+				putQualifiedName( element.getNamespacePrefix(), element.getName() );
+
+				for ( Namespace ns : nstack.addedForward() ) {
+					put( " xmlns" );
+					if ( ns.getPrefix().length() > 0 ) {
+						put( ':' );
+						put( ns.getPrefix() );
+					}
+					put( "=\"" );
+					putAttributeValue( ns.getURI(), escape );
+					put( '"' );
+				}
+				if ( element.hasAttributes() ) {
+					for ( Attribute attribute : element.getAttributes() ) {
+						put( ' ' );
+						putQualifiedName( attribute.getNamespacePrefix(), attribute.getName() );
+						put( "=\"" );
+						putAttributeValue( attribute.getValue(), escape );
+						put( '"' );
+					}
+				}
+
+				if ( content.isEmpty() ) {
+					put( " />" );
+					return;
+				}
+				put( '>' );
+			}
+
+			// Escaping toggled within this element reverts at its end.
+			for ( Content c : content ) {
+				switch ( c.getCType() ) {
+					case CDATA:
+						put( "<![CDATA[" );
+						put( ((CDATA)c).getText() );
+						put( "]]>" );
+						break;
+					case Comment:
+						printComment( (Comment)c );
+						break;
+					case DocType:
+						printDocType( (DocType)c );
+						break;
+					case Element:
+						printElement( (Element)c, escape );
+						break;
+					case EntityRef:
+						put( '&' );
+						put( ((EntityRef)c).getName() );
+						put( ';' );
+						break;
+					case ProcessingInstruction:
+						escape = printProcessingInstruction( (ProcessingInstruction)c, escape );
+						break;
+					case Text:
+						putText( ((Text)c).getText(), escape );
+						break;
+					default:
+						break;
+				}
+			}
+
+			if ( !isRoot ) {
+				put( "</" );
+				putQualifiedName( element.getNamespacePrefix(), element.getName() );
+				put( '>' );
+			}
+		}
+		finally {
+			nstack.pop();
+		}
+	}
+
+	private void printComment( Comment comment ) throws IOException {
+		put( "<!--" );
+		put( comment.getText() );
+		put( "-->" );
+	}
+
+	private void printDocType( DocType docType ) throws IOException {
+		String publicID = docType.getPublicID();
+		String systemID = docType.getSystemID();
+		String internalSubset = docType.getInternalSubset();
+
+		put( "<!DOCTYPE " );
+		put( docType.getElementName() );
+		if ( publicID != null ) {
+			put( " PUBLIC \"" );
+			put( publicID );
+			put( '"' );
+		}
+		if ( systemID != null ) {
+			if ( publicID == null ) put( " SYSTEM" );
+			put( " \"" );
+			put( systemID );
+			put( '"' );
+		}
+		if ( internalSubset != null && internalSubset.length() > 0 ) {
+			put( " [" );
+			putEOL();
+			put( internalSubset );
+			put( ']' );
+		}
+		put( '>' );
+	}
+
+	/**
+	 * Prints a processing instruction, unless it toggles output escaping.
+	 *
+	 * @return whether output escaping is enabled afterward
+	 */
+	private boolean printProcessingInstruction( ProcessingInstruction pi, boolean escape ) throws IOException {
+		String target = pi.getTarget();
+
+		if ( TRAX_DISABLE_ESCAPING.equals( target ) ) return false;
+		if ( TRAX_ENABLE_ESCAPING.equals( target ) ) return true;
+
+		String data = pi.getData();
+		put( "<?" );
+		put( target );
+		if ( !"".equals( data ) ) {
+			put( ' ' );
+			put( data );
+		}
+		put( "?>" );
+		return escape;
+	}
+
+	private void putQualifiedName( String prefix, String name ) throws IOException {
+		if ( prefix.length() > 0 ) {
+			put( prefix );
+			put( ':' );
+		}
+		put( name );
+	}
+
+	/**
+	 * Buffers element text, escaping markup chars.
+	 *
+	 * A \n counts as a complete line break, even right after a \r.
+	 */
+	private void putText( String s, boolean escape ) throws IOException {
+		if ( !escape ) {
+			put( s );
+			return;
+		}
+
+		int len = s.length();
+		for ( int i=0; i < len; i++ ) {
+			if ( charsLen > charsLimit ) drainChars();
+
+			char c = s.charAt( i );
+			switch ( c ) {
+				case '<':  putRaw( "&lt;" ); break;
+				case '>':  putRaw( "&gt;" ); break;
+				case '&':  putRaw( "&amp;" ); break;
+				case '\r': putRaw( "&#xD;" ); break;
+				case '\n': putEOL(); break;
+				default:
+					chars[charsLen++] = c;
+					sawCR = false;
+			}
+		}
+	}
+
+	/**
+	 * Buffers an attribute value, escaping markup chars and whitespace.
+	 */
+	private void putAttributeValue( String s, boolean escape ) throws IOException {
+		if ( !escape ) {
+			put( s );
+			return;
+		}
+
+		int len = s.length();
+		for ( int i=0; i < len; i++ ) {
+			if ( charsLen > charsLimit ) drainChars();
+
+			char c = s.charAt( i );
+			switch ( c ) {
+				case '<':  putRaw( "&lt;" ); break;
+				case '>':  putRaw( "&gt;" ); break;
+				case '&':  putRaw( "&amp;" ); break;
+				case '\r': putRaw( "&#xD;" ); break;
+				case '"':  putRaw( "&quot;" ); break;
+				case '\t': putRaw( "&#x9;" ); break;
+				case '\n': putRaw( "&#xA;" ); break;
+				default:
+					chars[charsLen++] = c;
+					sawCR = false;
+			}
+		}
+	}
+
+	/**
+	 * Buffers a short string known to have no line breaks, without checking for room.
+	 */
+	private void putRaw( String s ) {
+		int len = s.length();
+		s.getChars( 0, len, chars, charsLen );
+		charsLen += len;
+		sawCR = false;
+	}
+
+	/**
+	 * Buffers a line break.
+	 */
+	private void putEOL() throws IOException {
+		if ( charsLen > charsLimit ) drainChars();
+		chars[charsLen++] = '\r';
+		chars[charsLen++] = '\n';
+		sawCR = false;
+	}
+
+	/**
+	 * Buffers a string, standardizing line breaks as EOLWriter would.
+	 */
+	private void put( String s ) throws IOException {
+		int len = s.length();
+		for ( int i=0; i < len; i++ ) {
+			if ( charsLen > charsLimit ) drainChars();
+
+			char c = s.charAt( i );
+			if ( c == '\r' ) {
+				chars[charsLen++] = '\r';
+				chars[charsLen++] = '\n';
+				sawCR = true;
+			}
+			else if ( c == '\n' ) {
+				// If in the middle of \r\n, don't bother adding another eol.
+				if ( !sawCR ) {
+					chars[charsLen++] = '\r';
+					chars[charsLen++] = '\n';
+				}
+				sawCR = false;
+			}
+			else {
+				chars[charsLen++] = c;
+				sawCR = false;
+			}
+		}
+	}
+
+	/**
+	 * Buffers a char known not to be a line break.
+	 */
+	private void put( char c ) throws IOException {
+		if ( charsLen > charsLimit ) drainChars();
+		chars[charsLen++] = c;
+		sawCR = false;
+	}
+
+	/**
+	 * Encodes buffered chars, writing bytes to the stream as their buffer fills.
+	 *
+	 * A high surrogate at the end stays buffered, to be encoded along with
+	 * whatever follows. If nothing does, it's dropped, as an
+	 * OutputStreamWriter would when flushed.
+	 */
+	private void drainChars() throws IOException {
+		CharBuffer in = CharBuffer.wrap( chars, 0, charsLen );
+		while ( true ) {
+			CoderResult cr = encoder.encode( in, bytes, false );
+			if ( cr.isUnderflow() ) break;
+			if ( cr.isOverflow() ) {
+				drainBytes();
+				continue;
+			}
+			cr.throwException();
+		}
+		int remaining = in.remaining();
+		if ( remaining > 0 ) System.arraycopy( chars, in.position(), chars, 0, remaining );
+		charsLen = remaining;
+	}
+
+	private void drainBytes() throws IOException {
+		if ( bytes.position() > 0 ) {
+			os.write( bytes.array(), bytes.arrayOffset(), bytes.position() );
+			bytes.clear();
+		}
+	}
+}
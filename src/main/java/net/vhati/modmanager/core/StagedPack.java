@@ -0,0 +1,139 @@
+package net.vhati.modmanager.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.AbstractPack.ContentWriter;
+
+
+/**
+ * An in-memory overlay, staging changes to another pack.
+ *
+ * Reads fall through to the underlying pack until an innerPath has been
+ * added or removed here. Nothing is written to the underlying pack until
+ * commit() is called.
+ *
+ * Access to the underlying pack is synchronized on it, so other threads
+ * doing the same can safely share it.
+ */
+public class StagedPack extends AbstractPack {
+
+	private AbstractPack basePack;
+
+	// InnerPaths mapped to new contents, or to null if removed.
+	private Map<String, byte[]> stagedMap = new LinkedHashMap<String, byte[]>();
+
+
+	public StagedPack( AbstractPack basePack ) {
+		this.basePack = basePack;
+	}
+
+	public AbstractPack getBasePack() {
+		return basePack;
+	}
+
+	@Override
+	public String getName() {
+		return basePack.getName();
+	}
+
+	@Override
+	public void add( String innerPath, InputStream is ) throws IOException {
+		if ( contains( innerPath ) ) {
+			throw new IOException( "InnerPath already exists: "+ innerPath );
+		}
+		stagedMap.put( innerPath, IOUtils.toByteArray( is ) );
+	}
+
+	/**
+	 * Adds bytes from a ContentWriter, as innerPath.
+	 *
+	 * The bytes are collected in memory, and kept as they are.
+	 */
+	@Override
+	public void addFrom( String innerPath, ContentWriter writer ) throws IOException {
+		if ( contains( innerPath ) ) {
+			throw new IOException( "InnerPath already exists: "+ innerPath );
+		}
+		ByteArrayOutputStream tmpData = new ByteArrayOutputStream();
+		writer.writeTo( tmpData );
+		stagedMap.put( innerPath, tmpData.toByteArray() );
+	}
+
+	@Override
+	public void remove( String innerPath ) throws FileNotFoundException, IOException {
+		if ( !contains( innerPath ) ) {
+			throw new FileNotFoundException( "InnerPath does not exist: "+ innerPath );
+		}
+		stagedMap.put( innerPath, null );
+	}
+
+	@Override
+	public boolean contains( String innerPath ) {
+		if ( stagedMap.containsKey( innerPath ) ) {
+			return ( stagedMap.get( innerPath ) != null );
+		}
+		synchronized ( basePack ) {
+			return basePack.contains( innerPath );
+		}
+	}
+
+	/**
+	 * Returns true if an innerPath has been added or removed here, since the last commit.
+	 */
+	public boolean isStaged( String innerPath ) {
+		return stagedMap.containsKey( innerPath );
+	}
+
+	/**
+	 * Returns an InputStream to get bytes from an innerFile.
+	 *
+	 * Bytes from the underlying pack are read into memory first.
+	 */
+	@Override
+	public InputStream getInputStream( String innerPath ) throws FileNotFoundException, IOException {
+		if ( stagedMap.containsKey( innerPath ) ) {
+			byte[] data = stagedMap.get( innerPath );
+			if ( data == null ) {
+				throw new FileNotFoundException( "InnerPath does not exist: "+ innerPath );
+			}
+			return new ByteArrayInputStream( data );
+		}
+
+		synchronized ( basePack ) {
+			InputStream is = null;
+			try {
+				is = basePack.getInputStream( innerPath );
+				return new ByteArrayInputStream( IOUtils.toByteArray( is ) );
+			}
+			finally {
+				try {if ( is != null ) is.close();}
+				catch ( IOException e ) {}
+			}
+		}
+	}
+
+	/**
+	 * Writes staged changes to the underlying pack, then forgets them.
+	 */
+	public void commit() throws IOException {
+		synchronized ( basePack ) {
+			for ( Map.Entry<String, byte[]> entry : stagedMap.entrySet() ) {
+				String innerPath = entry.getKey();
+				byte[] data = entry.getValue();
+
+				if ( basePack.contains( innerPath ) ) basePack.remove( innerPath );
+				if ( data != null ) basePack.add( innerPath, new ByteArrayInputStream( data ) );
+			}
+		}
+		stagedMap.clear();
+	}
+}
@@ -0,0 +1,243 @@
+package net.vhati.modmanager.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.lib.ResourceRequest;
+import net.sf.saxon.lib.ResourceResolver;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.trans.XPathException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.PackChecksums;
+import net.vhati.ftldat.PackChecksums.EntryChecksum;
+
+
+/**
+ * Compiled XSL stylesheets, shared across a patching session.
+ *
+ * Stylesheets are compiled by a single Saxon Processor, and identified by
+ * an MD5 of their bytes. Libraries they import or include from "data/" in
+ * a pack are read once and remembered too. A compiled stylesheet is reused
+ * only while every library it resolved is unchanged in the pack.
+ *
+ * A library is considered unchanged while the pack's tracked checksum for
+ * it matches. Packs that don't track checksums have the library read again
+ * and compared, which is still much cheaper than compiling.
+ *
+ * The least recently used stylesheets and libraries are forgotten beyond a
+ * maximum count. Stylesheets that fail to compile are never cached, so each
+ * use reports them.
+ *
+ * This class is thread-safe.
+ */
+public class StylesheetCache {
+
+	private static final Logger log = LoggerFactory.getLogger( StylesheetCache.class );
+
+	private final Processor processor = new Processor( false );
+	private final Map<String, CachedStylesheet> stylesheetMap;
+	private final Map<String, CachedLibrary> libraryMap;
+	private long hitCount = 0;
+	private long missCount = 0;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxSize the most stylesheets, and libraries, to keep
+	 */
+	public StylesheetCache( final int maxSize ) {
+		stylesheetMap = new LinkedHashMap<String, CachedStylesheet>( 16, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<String, CachedStylesheet> eldest ) {
+				return ( size() > maxSize );
+			}
+		};
+		libraryMap = new LinkedHashMap<String, CachedLibrary>( 16, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<String, CachedLibrary> eldest ) {
+				return ( size() > maxSize );
+			}
+		};
+	}
+
+	/**
+	 * Returns the Processor that compiles stylesheets.
+	 *
+	 * Transformations using them should serialize with it as well.
+	 */
+	public Processor getProcessor() {
+		return processor;
+	}
+
+	/**
+	 * Returns a compiled stylesheet, compiling it if necessary.
+	 *
+	 * @param stylesheet a stream to read the stylesheet from (not closed)
+	 * @param pack the pack to resolve libraries from
+	 * @throws SaxonApiException if the stylesheet has errors
+	 */
+	public synchronized XsltExecutable compile( InputStream stylesheet, AbstractPack pack ) throws IOException, SaxonApiException {
+		byte[] bytes = IOUtils.toByteArray( stylesheet );
+		String key = calcKey( bytes );
+
+		CachedStylesheet cached = ( key != null ? stylesheetMap.get( key ) : null );
+		if ( cached != null && Arrays.equals( cached.bytes, bytes ) && isCurrent( cached, pack ) ) {
+			hitCount++;
+			return cached.exe;
+		}
+		missCount++;
+
+		cached = new CachedStylesheet();
+		cached.bytes = bytes;
+		cached.exe = compile( bytes, pack, cached.libraryMap );
+
+		if ( key != null ) stylesheetMap.put( key, cached );
+		return cached.exe;
+	}
+
+	/**
+	 * Compiles a stylesheet, noting the libraries it resolved.
+	 */
+	private XsltExecutable compile( byte[] bytes, final AbstractPack pack, final Map<String, CachedLibrary> resolvedMap ) throws SaxonApiException {
+		XsltCompiler c = processor.newXsltCompiler();
+		c.setResourceResolver( new ResourceResolver() {
+			@Override
+			public Source resolve( ResourceRequest request ) throws XPathException {
+				String relativeUri = "data/" + request.relativeUri;
+				if ( pack.contains( relativeUri ) ) {
+					CachedLibrary library;
+					try {
+						library = getLibrary( pack, relativeUri );
+					} catch ( IOException e ) {
+						throw new RuntimeException( "Encountered an error retrieving stream from pack.", e );
+					}
+					resolvedMap.put( relativeUri, library );
+
+					StreamSource s = new StreamSource( new ByteArrayInputStream( library.bytes ) );
+					s.setSystemId( "referenced-stylesheet-" + relativeUri );
+					return s;
+				}
+				throw new XPathException(
+						"Could not find stylesheet within current mod or previous mods.\n" +
+					 "   Please verify the pathname: " + request.relativeUri
+				);
+			}
+		});
+
+		StreamSource main = new StreamSource( new ByteArrayInputStream( bytes ) );
+		main.setSystemId( "main-stylesheet" );
+		return c.compile( main );
+	}
+
+	/**
+	 * Returns true if every library a compiled stylesheet resolved is unchanged in a pack.
+	 */
+	private boolean isCurrent( CachedStylesheet cached, AbstractPack pack ) throws IOException {
+		for ( Map.Entry<String, CachedLibrary> entry : cached.libraryMap.entrySet() ) {
+			String innerPath = entry.getKey();
+			if ( !pack.contains( innerPath ) ) return false;
+			if ( getLibrary( pack, innerPath ) != entry.getValue() ) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a library's bytes, reading them if they may have changed.
+	 *
+	 * The same object is returned for as long as the library is unchanged.
+	 */
+	private CachedLibrary getLibrary( AbstractPack pack, String innerPath ) throws IOException {
+		log.info( "Using library file: " + innerPath );
+
+		String key = pack.getName() +":"+ innerPath;
+		CachedLibrary cached = libraryMap.get( key );
+
+		PackChecksums checksums = pack.getChecksums();
+		EntryChecksum checksum = ( checksums != null ? checksums.get( innerPath ) : null );
+		if ( cached != null && checksum != null && cached.checksum != null ) {
+			if ( checksum.size == cached.checksum.size && checksum.crc == cached.checksum.crc ) return cached;
+		}
+
+		byte[] bytes;
+		InputStream is = null;
+		try {
+			is = pack.getInputStream( innerPath );
+			bytes = IOUtils.toByteArray( is );
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+		}
+
+		if ( cached == null || !Arrays.equals( cached.bytes, bytes ) ) {
+			cached = new CachedLibrary();
+			cached.bytes = bytes;
+			libraryMap.put( key, cached );
+		}
+		cached.checksum = ( checksum != null ? new EntryChecksum( checksum.size, checksum.crc ) : null );
+		return cached;
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns a key identifying a stylesheet, or null if MD5 is unavailable.
+	 */
+	private static String calcKey( byte[] bytes ) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance( "MD5" );
+		}
+		catch ( NoSuchAlgorithmException e ) {
+			return null;
+		}
+
+		byte[] hashBytes = md.digest( bytes );
+		StringBuilder hashStringBuf = new StringBuilder();
+		for ( byte b : hashBytes ) {
+			hashStringBuf.append( Integer.toString( (b & 0xff) + 0x100, 16 ).substring( 1 ) );
+		}
+		return hashStringBuf.toString();
+	}
+
+
+
+	private static class CachedStylesheet {
+		public byte[] bytes = null;
+		public XsltExecutable exe = null;
+
+		/** Libraries resolved while compiling, by innerPath. */
+		public Map<String, CachedLibrary> libraryMap = new LinkedHashMap<String, CachedLibrary>();
+	}
+
+
+
+	private static class CachedLibrary {
+		public byte[] bytes = null;
+
+		/** The pack's checksum when the bytes were last read, or null. */
+		public EntryChecksum checksum = null;
+	}
+}
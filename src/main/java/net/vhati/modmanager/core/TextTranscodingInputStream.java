@@ -0,0 +1,381 @@
+package net.vhati.modmanager.core;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A stream that decodes text, standardizes line endings, and reencodes it.
+ *
+ * The result is the same as ModUtilities.decodeText(), replacing every
+ * line ending with CR-LF, then ModUtilities.encodeText(). But the text is
+ * transcoded a buffer at a time as it's read, in constant memory.
+ *
+ * The source encoding is determined by a BOM, which is dropped. Without
+ * one, UTF-8 is guessed. If that proves wrong while only ASCII has been
+ * read, windows-1252 takes over seamlessly. Otherwise, since bytes
+ * decoded as UTF-8 have already been returned, a GuessRevokedException
+ * is thrown. The caller should discard what it read and try again with a
+ * new stream from the same source, constructed with that exception, to
+ * decode it all as windows-1252.
+ *
+ * Bad chars in the source or destination encoding throw
+ * CharacterCodingExceptions, except when guessing. Decoding errors take
+ * precedence, as if the whole text had been decoded before encoding.
+ *
+ * @see net.vhati.modmanager.core.ModUtilities#decodeText(InputStream, String)
+ */
+public class TextTranscodingInputStream extends InputStream {
+
+	private static final byte[] BOM_UTF8 = new byte[] {(byte)0xEF,(byte)0xBB,(byte)0xBF};
+	private static final byte[] BOM_UTF16LE = new byte[] {(byte)0xFF,(byte)0xFE};
+	private static final byte[] BOM_UTF16BE = new byte[] {(byte)0xFE,(byte)0xFF};
+
+	private static final String[] GUESSES = new String[] {"UTF-8", "windows-1252"};
+
+	private InputStream in;
+	private final String description;
+	private final CharsetEncoder encoder;
+	private CharsetDecoder decoder = null;
+
+	private final ByteBuffer inBytes = ByteBuffer.allocate( 8192 );
+	private final CharBuffer chars = CharBuffer.allocate( 8192 );
+	private final CharBuffer eolChars = CharBuffer.allocate( 8192*2 );
+	private final ByteBuffer outBytes = ByteBuffer.allocate( 8192 );
+
+	private Map<String, Exception> guessErrorMap = new LinkedHashMap<String, Exception>();
+	private int guessIndex = -1;
+	private boolean guessing = false;
+	private boolean readNonAscii = false;
+
+	private boolean started = false;
+	private boolean inEOF = false;
+	private boolean decoderDone = false;
+	private boolean sawCR = false;
+	private boolean finished = false;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in a stream to read
+	 * @param encoding the encoding to write
+	 * @param description how error messages should refer to the stream, or null
+	 */
+	public TextTranscodingInputStream( InputStream in, String encoding, String description ) {
+		this( in, encoding, description, null );
+	}
+
+	/**
+	 * Constructor, to retry after a revoked guess.
+	 *
+	 * @param in a new stream, from the start of the same source
+	 * @param encoding the encoding to write
+	 * @param description how error messages should refer to the stream, or null
+	 * @param revoked an exception thrown by the previous attempt, or null
+	 */
+	public TextTranscodingInputStream( InputStream in, String encoding, String description, GuessRevokedException revoked ) {
+		this.in = in;
+		this.description = description;
+		this.encoder = Charset.forName( encoding ).newEncoder();
+
+		if ( revoked != null ) {
+			guessIndex = revoked.guessIndex;
+			guessErrorMap.putAll( revoked.guessErrorMap );
+		}
+		eolChars.flip();  // Empty, ready to be encoded.
+		outBytes.flip();  // Empty, ready to be read.
+	}
+
+
+	@Override
+	public int read() throws IOException {
+		if ( !fill() ) return -1;
+		return outBytes.get() & 0xff;
+	}
+
+	@Override
+	public int read( byte[] b, int off, int len ) throws IOException {
+		if ( len == 0 ) return 0;
+		if ( !fill() ) return -1;
+
+		int n = Math.min( len, outBytes.remaining() );
+		outBytes.get( b, off, n );
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return outBytes.remaining();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if ( in != null ) {
+			in.close();
+			in = null;
+		}
+	}
+
+	/**
+	 * Transcodes until there are bytes to read.
+	 *
+	 * @return false if there are none left
+	 */
+	private boolean fill() throws IOException {
+		if ( in == null ) throw new IOException( "Stream closed" );
+
+		if ( !started ) {
+			start();
+			started = true;
+		}
+
+		while ( !outBytes.hasRemaining() && !finished ) {
+			outBytes.clear();
+			transcode();
+			outBytes.flip();
+		}
+		return outBytes.hasRemaining();
+	}
+
+	/**
+	 * Reads the BOM, if any, and picks a decoder.
+	 */
+	private void start() throws IOException {
+		while ( inBytes.position() < BOM_UTF8.length && !inEOF ) {
+			readBytes();
+		}
+		inBytes.flip();
+
+		String encoding = null;
+		byte[] bom = null;
+
+		if ( startsWith( inBytes, BOM_UTF8 ) ) {
+			encoding = "UTF-8";
+			bom = BOM_UTF8;
+		}
+		else if ( startsWith( inBytes, BOM_UTF16LE ) ) {
+			encoding = "UTF-16LE";
+			bom = BOM_UTF16LE;
+		}
+		else if ( startsWith( inBytes, BOM_UTF16BE ) ) {
+			encoding = "UTF-16BE";
+			bom = BOM_UTF16BE;
+		}
+
+		if ( encoding != null ) {
+			inBytes.position( bom.length );
+		}
+		else {
+			guessing = true;
+			guessIndex++;
+			encoding = GUESSES[guessIndex];
+		}
+		decoder = Charset.forName( encoding ).newDecoder();
+		inBytes.compact();
+	}
+
+	/**
+	 * Reads from the underlying stream into inBytes, which must be in write mode.
+	 */
+	private void readBytes() throws IOException {
+		int count = in.read( inBytes.array(), inBytes.arrayOffset() + inBytes.position(), inBytes.remaining() );
+		if ( count < 0 ) {
+			inEOF = true;
+		} else {
+			inBytes.position( inBytes.position() + count );
+		}
+	}
+
+	private static boolean startsWith( ByteBuffer buf, byte[] prefix ) {
+		if ( buf.remaining() < prefix.length ) return false;
+		for ( int i=0; i < prefix.length; i++ ) {
+			if ( buf.get( buf.position() + i ) != prefix[i] ) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes chars into outBytes, decoding more as needed, until it's full or all input is done.
+	 */
+	private void transcode() throws IOException {
+		while ( true ) {
+			// Unlike encodeText()'s writer, never end input, so a trailing
+			// lone surrogate would be dropped rather than an error.
+			CoderResult cr = encoder.encode( eolChars, outBytes, false );
+			if ( cr.isError() ) {
+				// encodeText() would never have seen these chars if decoding
+				// failed later on, or if the guess was wrong.
+				decodeRemainder();
+				cr.throwException();
+			}
+			if ( cr.isOverflow() ) break;
+
+			eolChars.compact();  // Keep any high surrogate awaiting the rest of its pair.
+
+			if ( decoderDone && chars.position() == 0 ) {
+				eolChars.flip();
+				finished = true;
+				break;
+			}
+
+			decodeChars();
+			chars.flip();
+			convertLineEndings();
+			chars.compact();
+			eolChars.flip();
+		}
+	}
+
+	/**
+	 * Copies chars into eolChars, replacing CR, LF, or CR-LF with CR-LF.
+	 *
+	 * Chars that don't fit are left in place.
+	 */
+	private void convertLineEndings() {
+		char[] src = chars.array();
+		int srcEnd = chars.limit();
+		int i = chars.position();
+		char[] dst = eolChars.array();
+		int n = eolChars.position();
+		int dstLimit = eolChars.limit() - 2;
+
+		for ( ; i < srcEnd && n <= dstLimit; i++ ) {
+			char c = src[i];
+			if ( c == '\r' ) {
+				dst[n++] = '\r';
+				dst[n++] = '\n';
+				sawCR = true;
+			}
+			else if ( c == '\n' ) {
+				// If in the middle of \r\n, don't bother adding another eol.
+				if ( !sawCR ) {
+					dst[n++] = '\r';
+					dst[n++] = '\n';
+				}
+				sawCR = false;
+			}
+			else {
+				dst[n++] = c;
+				sawCR = false;
+			}
+		}
+		chars.position( i );
+		eolChars.position( n );
+	}
+
+	/**
+	 * Decodes from the underlying stream into chars.
+	 *
+	 * Returns after decoding anything, or once all input has been decoded.
+	 */
+	private void decodeChars() throws IOException {
+		while ( !decoderDone ) {
+			if ( !inEOF && inBytes.hasRemaining() ) readBytes();
+			inBytes.flip();
+
+			int startPos = inBytes.position();
+			int startChars = chars.position();
+			CoderResult cr = decoder.decode( inBytes, chars, inEOF );
+			if ( guessing && !readNonAscii ) noteNonAscii( startPos, inBytes.position() );
+			inBytes.compact();
+
+			if ( cr.isError() ) {
+				guessFailed( cr );
+				continue;
+			}
+
+			if ( cr.isUnderflow() && inEOF ) {
+				// All input was decoded.
+				cr = decoder.flush( chars );
+				if ( cr.isOverflow() ) break;
+				decoderDone = true;
+				break;
+			}
+
+			if ( cr.isOverflow() || chars.position() > startChars ) break;
+		}
+	}
+
+	/**
+	 * Decodes all remaining input, discarding the chars, to raise any decoding errors.
+	 */
+	private void decodeRemainder() throws IOException {
+		while ( !decoderDone ) {
+			chars.clear();
+			decodeChars();
+		}
+		chars.clear();
+	}
+
+	/**
+	 * Handles a decoding error, moving on to the next guess if possible.
+	 */
+	private void guessFailed( CoderResult cr ) throws IOException {
+		if ( !guessing ) cr.throwException();
+
+		try {
+			cr.throwException();
+		}
+		catch ( CharacterCodingException e ) {
+			guessErrorMap.put( GUESSES[guessIndex], e );
+		}
+
+		if ( guessIndex+1 >= GUESSES.length ) {
+			// All guesses failed!?
+			String msg = String.format( "Could not guess encoding for %s.", (description!=null ? "\""+description+"\"" : "a file") );
+			for ( Map.Entry<String,Exception> entry : guessErrorMap.entrySet() ) {
+				msg += String.format( "\nFailed to decode as %s: %s", entry.getKey(), entry.getValue() );
+			}
+			throw new IOException( msg );
+		}
+
+		if ( readNonAscii ) {
+			// Chars decoded with the failed guess have already been returned.
+			throw new GuessRevokedException( description, guessIndex, guessErrorMap );
+		}
+
+		// Everything decoded so far was ASCII, which every guess agrees on.
+		guessIndex++;
+		decoder = Charset.forName( GUESSES[guessIndex] ).newDecoder();
+	}
+
+	/**
+	 * Notes whether any bytes consumed while guessing were non-ASCII.
+	 */
+	private void noteNonAscii( int from, int to ) {
+		byte[] a = inBytes.array();
+		int off = inBytes.arrayOffset();
+		for ( int i=from; i < to; i++ ) {
+			if ( a[off+i] < 0 ) {
+				readNonAscii = true;
+				break;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Thrown when a guessed encoding fails after its chars have been returned.
+	 */
+	public static class GuessRevokedException extends IOException {
+		private final int guessIndex;
+		private final Map<String, Exception> guessErrorMap;
+
+		public GuessRevokedException( String description, int guessIndex, Map<String, Exception> guessErrorMap ) {
+			super( String.format( "Guessed encoding for %s was wrong: %s", (description!=null ? "\""+description+"\"" : "a file"), GUESSES[guessIndex] ) );
+			this.guessIndex = guessIndex;
+			this.guessErrorMap = new LinkedHashMap<String, Exception>( guessErrorMap );
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package net.vhati.modmanager.core;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jdom2.Content;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.Text;
+
+import net.vhati.ftldat.AbstractPack;
+import net.vhati.ftldat.PackChecksums;
+import net.vhati.ftldat.PackChecksums.EntryChecksum;
+import net.vhati.modmanager.core.ChildIndex;
+import net.vhati.modmanager.core.DocumentStore;
+import net.vhati.modmanager.core.ModUtilities;
+import net.vhati.modmanager.core.ModUtilities.WrappedDocument;
+import net.vhati.modmanager.core.PatternCache;
+import net.vhati.modmanager.core.StagedPack;
+
+
+/**
+ * Parsed XML documents from packs, held across a patching session.
+ *
+ * When many mods append to the same innerPath, parsing and printing it
+ * once, rather than once per mod, saves a great deal of time.
+ *
+ * Modified documents are only written back to their packs when committed.
+ * Anything else that reads or replaces an innerPath in a pack must first
+ * commit or discard its document here.
+ *
+ * Vanilla documents can also be loaded from a DocumentStore, rather than
+ * parsed, if their pack tracks checksums and its backup's are known. An
+ * innerPath is considered vanilla while its checksum matches the backup.
+ */
+public class XMLDocumentCache {
+
+	private Map<String, CachedDocument> cachedMap = new LinkedHashMap<String, CachedDocument>();
+	private String encoding;
+	private PatternCache patternCache;
+
+	private DocumentStore vanillaStore = null;
+	private Map<AbstractPack, PackOrigin> originMap = Collections.emptyMap();
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param encoding the encoding to use when writing documents to packs
+	 * @param patternCache a cache to compile regexes with, or null
+	 */
+	public XMLDocumentCache( String encoding, PatternCache patternCache ) {
+		this.encoding = encoding;
+		this.patternCache = patternCache;
+	}
+
+	/**
+	 * Sets a store to look up vanilla documents in, and to keep them in after parsing.
+	 *
+	 * @param originMap packs mapped to their backups (StagedPacks' underlying packs)
+	 */
+	public void setVanillaStore( DocumentStore vanillaStore, Map<AbstractPack, PackOrigin> originMap ) {
+		this.vanillaStore = vanillaStore;
+		this.originMap = originMap;
+	}
+
+	/**
+	 * Appends and modifies an innerPath's document, using content from appendDoc.
+	 *
+	 * The result is the same as ModUtilities.patchXMLFile() would produce
+	 * from the innerPath's current bytes.
+	 *
+	 * @param appendDoc a document from ModUtilities.parseWrappedXML()
+	 * @see net.vhati.modmanager.core.ModUtilities#patchXMLFile(InputStream, InputStream, String, boolean, String, String)
+	 */
+	public void patch( AbstractPack pack, String innerPath, Document appendDoc, boolean globalPanic ) throws IOException, JDOMException {
+		WrappedDocument mainDoc = get( pack, innerPath );
+		CachedDocument cached = cachedMap.get( innerPath );
+
+		// The document is patched in place. If that fails, it's left intact.
+		if ( cached.printed ) {
+			// Printing a document, then parsing it again, would leave the
+			// newline after its last tag inside the wrapper. Mimic that.
+			Element root = mainDoc.doc.getRootElement();
+			Content lastContent = ( root.getContentSize() > 0 ? root.getContent( root.getContentSize()-1 ) : null );
+			Text addedText = null;
+			String oldText = null;
+
+			if ( lastContent != null && lastContent.getCType() == Content.CType.Text ) {
+				oldText = ((Text)lastContent).getText();
+				((Text)lastContent).setText( oldText +"\n" );
+			}
+			else if ( lastContent != null ) {
+				addedText = new Text( "\n" );
+				root.addContent( addedText );
+			}
+
+			boolean patched = false;
+			try {
+				ModUtilities.patchWrappedXMLInPlace( mainDoc, appendDoc, globalPanic, cached.childIndex, patternCache );
+				patched = true;
+			}
+			finally {
+				if ( !patched ) {
+					if ( oldText != null ) ((Text)lastContent).setText( oldText );
+					if ( addedText != null ) addedText.detach();
+				}
+			}
+		}
+		else {
+			ModUtilities.patchWrappedXMLInPlace( mainDoc, appendDoc, globalPanic, cached.childIndex, patternCache );
+		}
+
+		cached.printed = true;
+		cached.dirty = true;
+	}
+
+	/**
+	 * Returns the document for an innerPath, parsing it if necessary.
+	 */
+	private WrappedDocument get( AbstractPack pack, String innerPath ) throws IOException, JDOMException {
+		CachedDocument cached = cachedMap.get( innerPath );
+		if ( cached != null ) return cached.wrappedDoc;
+
+		cached = new CachedDocument();
+		cached.pack = pack;
+
+		String storeKey = getVanillaKey( pack, innerPath );
+		if ( storeKey != null ) {
+			cached.wrappedDoc = vanillaStore.get( storeKey );
+		}
+
+		if ( cached.wrappedDoc == null ) {
+			InputStream is = null;
+			try {
+				is = pack.getInputStream( innerPath );
+				cached.wrappedDoc = ModUtilities.parseWrappedXML( is, pack.getName()+":"+innerPath );
+			}
+			finally {
+				try {if ( is != null ) is.close();}
+				catch ( IOException e ) {}
+			}
+
+			if ( storeKey != null ) vanillaStore.put( storeKey, cached.wrappedDoc );
+		}
+
+		cachedMap.put( innerPath, cached );
+		return cached.wrappedDoc;
+	}
+
+	/**
+	 * Returns a vanillaStore key for an innerPath, or null if it isn't vanilla.
+	 */
+	private String getVanillaKey( AbstractPack pack, String innerPath ) throws IOException {
+		if ( vanillaStore == null ) return null;
+
+		if ( pack instanceof StagedPack ) {
+			if ( ((StagedPack)pack).isStaged( innerPath ) ) return null;
+			pack = ((StagedPack)pack).getBasePack();
+		}
+
+		PackOrigin origin = originMap.get( pack );
+		if ( origin == null || pack.getChecksums() == null ) return null;
+
+		EntryChecksum current = pack.getChecksums().get( innerPath );
+		EntryChecksum vanilla = origin.checksums.get( innerPath );
+		if ( current == null || vanilla == null ) return null;
+		if ( current.size != vanilla.size || current.crc != vanilla.crc ) return null;
+
+		return vanillaStore.calcKey( "vanilla", origin.fingerprint, innerPath, Long.toString( vanilla.size ), Long.toHexString( vanilla.crc ) );
+	}
+
+	/**
+	 * Writes an innerPath's document to its pack, if modified, and forgets it.
+	 */
+	public void commit( String innerPath ) throws IOException {
+		CachedDocument cached = cachedMap.remove( innerPath );
+		if ( cached != null && cached.dirty ) {
+			write( innerPath, cached );
+		}
+	}
+
+	/**
+	 * Writes all modified documents to their packs.
+	 *
+	 * Documents stay cached, no longer considered modified.
+	 */
+	public void commitAll() throws IOException {
+		for ( Map.Entry<String, CachedDocument> entry : cachedMap.entrySet() ) {
+			CachedDocument cached = entry.getValue();
+			if ( cached.dirty ) {
+				write( entry.getKey(), cached );
+				cached.dirty = false;
+			}
+		}
+	}
+
+	/**
+	 * Forgets an innerPath's document, without writing it.
+	 *
+	 * Call this before replacing the innerPath in its pack.
+	 */
+	public void discard( String innerPath ) {
+		cachedMap.remove( innerPath );
+	}
+
+	private void write( String innerPath, CachedDocument cached ) throws IOException {
+		// Print straight into the pack.
+		if ( cached.pack.contains( innerPath ) ) cached.pack.remove( innerPath );
+		cached.pack.addFrom( innerPath, ModUtilities.getWrappedXMLWriter( cached.wrappedDoc, encoding ) );
+	}
+
+
+
+	/**
+	 * What a pack was restored from.
+	 */
+	public static class PackOrigin {
+		/** The backup's fingerprint. */
+		public String fingerprint = null;
+
+		/** The backup's checksums. */
+		public PackChecksums checksums = null;
+
+		public PackOrigin( String fingerprint, PackChecksums checksums ) {
+			this.fingerprint = fingerprint;
+			this.checksums = checksums;
+		}
+	}
+
+
+
+	private static class CachedDocument {
+		public AbstractPack pack = null;
+		public WrappedDocument wrappedDoc = null;
+
+		/** Lookups of the document's elements' children, kept up to date as it's patched. */
+		public ChildIndex childIndex = new ChildIndex();
+		public boolean dirty = false;
+
+		/** True if the document is meant to be printed, rather than parsed from a pack. */
+		public boolean printed = false;
+	}
+}
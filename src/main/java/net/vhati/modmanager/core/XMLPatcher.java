@@ -1,14 +1,14 @@
 package net.vhati.modmanager.core;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Set;
-import java.util.TreeMap;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -39,6 +39,13 @@ public class XMLPatcher {
 	protected Namespace modBeforeNS;
 	protected Namespace modAfterNS;
 
+	// Changes made so far, while patching in place.
+	protected UndoLog undoLog = null;
+
+	protected ChildIndex childIndex = new ChildIndex();
+
+	protected PatternCache patternCache = null;
+
 
 	public XMLPatcher() {
 		modNS = Namespace.getNamespace( "mod", "mod" );
@@ -53,12 +60,65 @@ public class XMLPatcher {
 		globalPanic = b;
 	}
 
+	/**
+	 * Sets an index to search children with, when patching in place.
+	 *
+	 * An index kept with a document can be reused by later patches.
+	 * Nothing else may modify the document in between.
+	 */
+	public void setChildIndex( ChildIndex childIndex ) {
+		this.childIndex = childIndex;
+	}
 
+	/**
+	 * Sets a cache to compile regexes with, or null to always compile them.
+	 */
+	public void setPatternCache( PatternCache patternCache ) {
+		this.patternCache = patternCache;
+	}
+
+
+	/**
+	 * Returns a copy of mainDoc, modified with instructions from appendDoc.
+	 */
 	public Document patch( Document mainDoc, Document appendDoc ) {
 		Document resultDoc = mainDoc.clone();
-		Element resultRoot = resultDoc.getRootElement();
-		Element appendRoot = appendDoc.getRootElement();
 
+		// The copy's elements are all new.
+		ChildIndex mainIndex = childIndex;
+		childIndex = new ChildIndex();
+		try {
+			patchRoot( resultDoc.getRootElement(), appendDoc.getRootElement() );
+		}
+		finally {
+			childIndex = mainIndex;
+		}
+		return resultDoc;
+	}
+
+	/**
+	 * Modifies mainDoc itself, with instructions from appendDoc.
+	 *
+	 * Rather than copying the whole document up front, changes are logged
+	 * as they're made. If an exception is thrown, they're undone, leaving
+	 * mainDoc as it was.
+	 */
+	public void patchInPlace( Document mainDoc, Document appendDoc ) {
+		undoLog = new UndoLog();
+		try {
+			patchRoot( mainDoc.getRootElement(), appendDoc.getRootElement() );
+		}
+		catch ( RuntimeException e ) {
+			undoLog.rollback();
+			childIndex.clear();
+			throw e;
+		}
+		finally {
+			undoLog = null;
+		}
+	}
+
+	protected void patchRoot( Element resultRoot, Element appendRoot ) {
 		ElementFilter modFilter = new ElementFilter( modNS );
 		for ( Content content : appendRoot.getContent() ) {
 			if ( modFilter.matches( content ) ) {
@@ -78,11 +138,9 @@ public class XMLPatcher {
 				}
 			}
 			else {
-				resultRoot.addContent( content.clone() );
+				addContent( resultRoot, content.clone() );
 			}
 		}
-
-		return resultDoc;
 	}
 
 
@@ -125,7 +183,7 @@ public class XMLPatcher {
 				attrMap.put( "name", searchName );
 				LikeFilter searchFilter;
 				try {
-					searchFilter = new LikeFilter( searchType, attrMap, null, useRegex );
+					searchFilter = new LikeFilter( searchType, attrMap, null, useRegex, patternCache );
 				}
 				catch ( ModFindRegexException exception ) {
 					throw new ModFindRegexException (
@@ -134,7 +192,13 @@ public class XMLPatcher {
 					);
 				}
 	
-				List<Element> matchedNodes = new ArrayList<Element>( contextNode.getContent( searchFilter ) );
+				// Without regexes, the index can narrow down the children to check.
+				List<Element> matchedNodes;
+				if ( useRegex ) {
+					matchedNodes = new ArrayList<Element>( contextNode.getContent( searchFilter ) );
+				} else {
+					matchedNodes = childIndex.getChildren( contextNode, searchType, attrMap, null );
+				}
 				if ( searchReverse ) Collections.reverse( matchedNodes );
 	
 				if ( searchStart < matchedNodes.size() ) {
@@ -190,7 +254,7 @@ public class XMLPatcher {
 
 				LikeFilter searchFilter;
 				try {
-					searchFilter = new LikeFilter(searchType, attrMap, searchValue, useRegex);
+					searchFilter = new LikeFilter( searchType, attrMap, searchValue, useRegex, patternCache );
 				}
 				catch ( ModFindRegexException exception ) {
 					throw new ModFindRegexException (
@@ -199,7 +263,12 @@ public class XMLPatcher {
 					);
 				}
 	
-				List<Element> matchedNodes = new ArrayList<Element>( contextNode.getContent( searchFilter ) );
+				List<Element> matchedNodes;
+				if ( useRegex ) {
+					matchedNodes = new ArrayList<Element>( contextNode.getContent( searchFilter ) );
+				} else {
+					matchedNodes = childIndex.getChildren( contextNode, searchType, attrMap, searchFilter );
+				}
 				if ( searchReverse ) Collections.reverse( matchedNodes );
 	
 				if ( searchStart < matchedNodes.size() ) {
@@ -255,8 +324,8 @@ public class XMLPatcher {
 				LikeFilter searchChildFilter;
 				WithChildFilter searchFilter;
 				try {
-					searchChildFilter = new LikeFilter( searchChildType, attrMap, searchValue, useRegex );
-					searchFilter = new WithChildFilter( searchType, searchChildFilter, useRegex );
+					searchChildFilter = new LikeFilter( searchChildType, attrMap, searchValue, useRegex, patternCache );
+					searchFilter = new WithChildFilter( searchType, searchChildFilter, useRegex, patternCache );
 				}
 				catch ( ModFindRegexException exception ) {
 					throw new ModFindRegexException(
@@ -265,7 +334,12 @@ public class XMLPatcher {
 					);
 				}
 
-				List<Element> matchedNodes = new ArrayList<Element>( contextNode.getContent( searchFilter ) );
+				List<Element> matchedNodes;
+				if ( useRegex ) {
+					matchedNodes = new ArrayList<Element>( contextNode.getContent( searchFilter ) );
+				} else {
+					matchedNodes = childIndex.getChildrenWithChild( contextNode, searchType, searchChildType, attrMap, searchFilter );
+				}
 				if ( searchReverse ) Collections.reverse( matchedNodes );
 	
 				if ( searchStart < matchedNodes.size() ) {
@@ -333,53 +407,73 @@ public class XMLPatcher {
 		List<Element> result = null;
 
 		if ( node.getNamespace().equals( modNS ) && node.getName().equals( "par" ) ) {
-			String parOp = node.getAttributeValue( "op" );
+			// Number the children once, so sets of them can be bits.
+			List<Element> children = new ArrayList<Element>( contextNode.getChildren() );
+			Map<Element,Integer> positionMap = new IdentityHashMap<Element,Integer>( children.size() );
+			for ( int i=0; i < children.size(); i++ ) {
+				positionMap.put( children.get( i ), i );
+			}
 
-			if ( parOp == null || (!parOp.equals("AND") && !parOp.equals("OR") && !parOp.equals("NOR") && !parOp.equals("NAND")) )
-				throw new IllegalArgumentException( String.format( "Invalid \"op\" attribute (%s). Must be 'AND', 'OR', 'NAND', or 'NOR'.", getPathToRoot(node) ) );
+			BitSet matchedBits = handleModPar( contextNode, node, positionMap );
 
-			boolean isAnd = (parOp.equals("AND") || parOp.equals("NAND"));
-			boolean isOr = (parOp.equals("OR") || parOp.equals("NOR"));
-			boolean isNot = (parOp.equals("NOR") || parOp.equals("NAND"));
+			List<Element> matchedNodes = new ArrayList<Element>( matchedBits.cardinality() );
+			for ( int i=matchedBits.nextSetBit( 0 ); i >= 0; i=matchedBits.nextSetBit( i+1 ) ) {
+				matchedNodes.add( children.get( i ) );
+			}
 
-			Set<Element> candidateSet = new HashSet<Element>();
-			boolean firstPass = true;
-			for ( Element criteriaNode : node.getChildren() ) {
-				List<Element> candidates;
-				if ( criteriaNode.getName().equals( "par" ) && criteriaNode.getNamespace().equals( modNS ) ) {
-					candidates = handleModPar( contextNode, criteriaNode );
-				} else {
-					candidates = handleModFind( contextNode, criteriaNode );
-					if ( candidates == null )
-						throw new IllegalArgumentException( String.format( "Invalid <par> search criteria <%s> (%s). Must be a <find...> or <par>.", criteriaNode.getName(), getPathToRoot( criteriaNode ) ) );
-				}
+			result = matchedNodes;
+		}
 
-				if ( firstPass ) {
-					candidateSet.addAll( candidates );
-					firstPass = false;
-				} else if ( isOr ) {
-					candidateSet.addAll( candidates );
-				} else {
-					candidateSet.retainAll( candidates );
+		return result;
+	}
+
+	/**
+	 * Returns a par's results as positions among contextNode's children.
+	 *
+	 * AND, OR, and NOT become bitwise operations.
+	 */
+	protected BitSet handleModPar( Element contextNode, Element node, Map<Element,Integer> positionMap ) {
+		String parOp = node.getAttributeValue( "op" );
+
+		if ( parOp == null || (!parOp.equals("AND") && !parOp.equals("OR") && !parOp.equals("NOR") && !parOp.equals("NAND")) )
+			throw new IllegalArgumentException( String.format( "Invalid \"op\" attribute (%s). Must be 'AND', 'OR', 'NAND', or 'NOR'.", getPathToRoot(node) ) );
+
+		boolean isAnd = (parOp.equals("AND") || parOp.equals("NAND"));
+		boolean isOr = (parOp.equals("OR") || parOp.equals("NOR"));
+		boolean isNot = (parOp.equals("NOR") || parOp.equals("NAND"));
+
+		BitSet candidateBits = new BitSet( positionMap.size() );
+		boolean firstPass = true;
+		for ( Element criteriaNode : node.getChildren() ) {
+			BitSet bits;
+			if ( criteriaNode.getName().equals( "par" ) && criteriaNode.getNamespace().equals( modNS ) ) {
+				bits = handleModPar( contextNode, criteriaNode, positionMap );
+			} else {
+				List<Element> candidates = handleModFind( contextNode, criteriaNode );
+				if ( candidates == null )
+					throw new IllegalArgumentException( String.format( "Invalid <par> search criteria <%s> (%s). Must be a <find...> or <par>.", criteriaNode.getName(), getPathToRoot( criteriaNode ) ) );
+
+				bits = new BitSet( positionMap.size() );
+				for ( Element candidate : candidates ) {
+					Integer pos = positionMap.get( candidate );
+					if ( pos != null ) bits.set( pos );
 				}
 			}
-			if ( isNot ) {
-				Set<Element> complementSet = new HashSet<Element>( contextNode.getChildren() );
-				complementSet.removeAll( candidateSet );
-				candidateSet = complementSet;
-			}
-			Map<Integer,Element> orderedCandidateMap = new TreeMap<Integer,Element>();
-			for ( Element candidate : candidateSet ) {
-				int index = contextNode.indexOf( candidate );
-				orderedCandidateMap.put(index, candidate );
-			}
-
-			List<Element> matchedNodes = new ArrayList<Element>( orderedCandidateMap.values() );
 
-			result = matchedNodes;
+			if ( firstPass ) {
+				candidateBits.or( bits );
+				firstPass = false;
+			} else if ( isOr ) {
+				candidateBits.or( bits );
+			} else {
+				candidateBits.and( bits );
+			}
+		}
+		if ( isNot ) {
+			candidateBits.flip( 0, positionMap.size() );
 		}
 
-		return result;
+		return candidateBits;
 	}
 
 
@@ -416,22 +510,22 @@ public class XMLPatcher {
 				else if ( cmdNode.getName().equals( "setAttributes" ) ) {
 					handled = true;
 					for ( Attribute attrib : cmdNode.getAttributes() ) {
-						contextNode.setAttribute( attrib.clone() );
+						setAttribute( contextNode, attrib.clone() );
 					}
 				}
 				else if ( cmdNode.getName().equals( "removeAttributes" ) ) {
 					handled = true;
 					for ( Attribute attrib : cmdNode.getAttributes() ) {
-						contextNode.removeAttribute( attrib.getName() );
+						removeAttribute( contextNode, attrib.getName() );
 					}
 				}
 				else if ( cmdNode.getName().equals( "setValue" ) ) {
 					handled = true;
-					contextNode.setText( cmdNode.getTextTrim() );
+					setText( contextNode, cmdNode.getTextTrim() );
 				}
 				else if ( cmdNode.getName().equals( "removeTag" ) ) {
 					handled = true;
-					contextNode.detach();
+					removeContent( contextNode );
 					break;
 				} else if ( cmdNode.getName().equals( "insertByFind" ) ) {
 					handled = true;
@@ -466,11 +560,11 @@ public class XMLPatcher {
 				Element newNode = cmdNode.clone();
 				newNode.setNamespace( null );
 
-				Element doomedNode = contextNode.getChild( cmdNode.getName(), null );
+				Element doomedNode = childIndex.getFirstChild( contextNode, cmdNode.getName() );
 				if ( doomedNode != null ) {
 					int doomedIndex = contextNode.indexOf( doomedNode );
-					doomedNode.detach();
-					contextNode.addContent( doomedIndex, newNode );
+					removeContent( doomedNode );
+					addContent( contextNode, doomedIndex, newNode );
 				}
 				else {
 					handleModAppend( contextNode, newNode );
@@ -555,7 +649,7 @@ public class XMLPatcher {
 			else if ( beforeIndex > numChildren - 1 )
 				appendListOptionalSpacing( contextNode, beforeNodes, spacing );
 			else
-				contextNode.addContent( beforeIndex, beforeNodes );
+				addContent( contextNode, beforeIndex, beforeNodes );
 			// recalculate since contextNode might have more children now
 			numChildren = contextNode.getContentSize();
 			int afterIndex = contextNode.indexOf( last ) + 1;
@@ -564,7 +658,7 @@ public class XMLPatcher {
 			else if ( afterIndex > numChildren - 1 )
 				appendListOptionalSpacing( contextNode, afterNodes, spacing );
 			else
-				contextNode.addContent( afterIndex, afterNodes );
+				addContent( contextNode, afterIndex, afterNodes );
 		}
 	}
 
@@ -581,7 +675,7 @@ public class XMLPatcher {
 			if ( context.getContentSize() == 0 )
 				nodes.add( new Text( removeLastChar( whitespace.getText() ) ) );
 		}
-		context.addContent( 0, nodes );
+		addContent( context, 0, nodes );
 	}
 
 	/**
@@ -595,7 +689,7 @@ public class XMLPatcher {
 			trimLastText( context );
 			nodes.add( new Text( removeLastChar( whitespace.getText() ) ) );
 		}
-		context.addContent( nodes );
+		addContent( context, context.getContentSize(), nodes );
 	}
 
 	/**
@@ -608,14 +702,14 @@ public class XMLPatcher {
 			// trim existing last Text right before closing tag
 			trimLastText( contextNode );
 			// add the spacing with correct amount of tabs
-			contextNode.addContent( spacing );
+			addContent( contextNode, spacing );
 			// add the new node
-			contextNode.addContent( newNode );
+			addContent( contextNode, newNode );
 			// space correctly with the closing tag
-			contextNode.addContent( new Text( removeLastChar( spacing.getText() ) ) );
+			addContent( contextNode, new Text( removeLastChar( spacing.getText() ) ) );
 		}
 		else {
-			contextNode.addContent( newNode );
+			addContent( contextNode, newNode );
 		}
 	}
 
@@ -627,15 +721,15 @@ public class XMLPatcher {
 		boolean initiallyEmpty = contextNode.getContentSize() == 0;
 		final Text spacing = getIndentedText( contextNode );
 		if ( spacing != null ) {
-			contextNode.addContent( 0, spacing );
-			contextNode.addContent( 1, newNode );
+			addContent( contextNode, 0, spacing );
+			addContent( contextNode, 1, newNode );
 			// if not empty existing first Text before insertion is the right spacing, will be at index 2
 			if ( initiallyEmpty ) {
-				contextNode.addContent( 2, new Text( removeLastChar( spacing.getText() ) ));
+				addContent( contextNode, 2, new Text( removeLastChar( spacing.getText() ) ));
 			}
 		}
 		else {
-			contextNode.addContent( 0, newNode );
+			addContent( contextNode, 0, newNode );
 		}
 	}
 
@@ -679,10 +773,70 @@ public class XMLPatcher {
 	protected void trimLastText( Element contextNode ) {
 		List<Text> contextNodeTexts = contextNode.getContent( Filters.textOnly() );
 		if ( !contextNodeTexts.isEmpty() ) {
-			contextNodeTexts.remove( contextNodeTexts.size() - 1 );
+			removeContent( contextNodeTexts.get( contextNodeTexts.size() - 1 ) );
+		}
+	}
+
+
+	/**
+	 * Appends content to a node, logging the change if patching in place.
+	 *
+	 * All changes to the document being patched go through these methods.
+	 */
+	protected void addContent( Element node, Content child ) {
+		addContent( node, node.getContentSize(), child );
+	}
+
+	protected void addContent( Element node, int index, Content child ) {
+		node.addContent( index, child );
+		childIndex.added( node, child );
+		if ( undoLog != null ) undoLog.added( child );
+	}
+
+	protected void addContent( Element node, int index, Collection<? extends Content> children ) {
+		node.addContent( index, children );
+		for ( Content child : children ) {
+			childIndex.added( node, child );
+			if ( undoLog != null ) undoLog.added( child );
 		}
 	}
 
+	protected void removeContent( Content child ) {
+		Parent parent = child.getParent();
+		if ( parent == null ) return;
+
+		int index = parent.indexOf( child );
+		child.detach();
+		if ( parent instanceof Element ) childIndex.removed( (Element)parent, child );
+		if ( undoLog != null ) undoLog.removed( parent, index, child );
+	}
+
+	protected void setAttribute( Element node, Attribute attrib ) {
+		Attribute oldAttrib = node.getAttribute( attrib.getName(), attrib.getNamespace() );
+		node.setAttribute( attrib );
+		if ( attrib.getNamespace().equals( Namespace.NO_NAMESPACE ) ) childIndex.attributeChanged( node, attrib.getName(), attrib.getValue() );
+		if ( undoLog != null ) undoLog.attributeSet( node, oldAttrib, attrib );
+	}
+
+	protected void removeAttribute( Element node, String attrName ) {
+		Attribute oldAttrib = node.getAttribute( attrName );
+		if ( oldAttrib == null ) return;
+
+		int index = node.getAttributes().indexOf( oldAttrib );
+		node.removeAttribute( oldAttrib );
+		childIndex.attributeChanged( node, attrName, null );
+		if ( undoLog != null ) undoLog.attributeRemoved( node, index, oldAttrib );
+	}
+
+	protected void setText( Element node, String text ) {
+		List<Content> oldContent = null;
+		if ( undoLog != null ) oldContent = new ArrayList<Content>( node.getContent() );
+
+		node.setText( text );
+		childIndex.contentReplaced( node );
+		if ( undoLog != null ) undoLog.contentReplaced( node, oldContent );
+	}
+
 	/**
 	 * Returns a string describing this element's location.
 	 *
@@ -737,6 +891,79 @@ public class XMLPatcher {
 		}
 	}
 
+	/**
+	 * Changes made to a document, which can be undone in reverse order.
+	 *
+	 * Each change holds references to the nodes involved, not copies.
+	 */
+	protected static class UndoLog {
+		private List<Change> changeList = new ArrayList<Change>();
+
+		public void added( final Content child ) {
+			changeList.add(new Change() {
+				@Override
+				public void undo() {
+					child.detach();
+				}
+			});
+		}
+
+		public void removed( final Parent parent, final int index, final Content child ) {
+			changeList.add(new Change() {
+				@Override
+				public void undo() {
+					parent.addContent( index, child );
+				}
+			});
+		}
+
+		public void attributeSet( final Element node, final Attribute oldAttrib, final Attribute newAttrib ) {
+			changeList.add(new Change() {
+				@Override
+				public void undo() {
+					if ( oldAttrib != null ) {
+						node.setAttribute( oldAttrib );  // Takes the new one's place.
+					} else {
+						node.removeAttribute( newAttrib );
+					}
+				}
+			});
+		}
+
+		public void attributeRemoved( final Element node, final int index, final Attribute oldAttrib ) {
+			changeList.add(new Change() {
+				@Override
+				public void undo() {
+					node.getAttributes().add( index, oldAttrib );
+				}
+			});
+		}
+
+		public void contentReplaced( final Element node, final List<Content> oldContent ) {
+			changeList.add(new Change() {
+				@Override
+				public void undo() {
+					node.removeContent();
+					node.addContent( oldContent );
+				}
+			});
+		}
+
+		/**
+		 * Undoes every change, most recent first, and forgets them.
+		 */
+		public void rollback() {
+			for ( int i=changeList.size()-1; i >= 0; i-- ) {
+				changeList.get( i ).undo();
+			}
+			changeList.clear();
+		}
+
+		private static abstract class Change {
+			public abstract void undo();
+		}
+	}
+
 	/**
 	 * Indicates a problem occurred with regular expression syntax in mod find tags. <br>
 	 * Messages part of the stack trace can be retrieved by {@link ModFindRegexException#getLocalizedMessage()}.
@@ -799,6 +1026,16 @@ public class XMLPatcher {
 		 * has invalid syntax for a regular expression as defined by {@link java.util.regex.Pattern}
 		 */
 		public LikeFilter( String type, Map<String,String> attrMap, String value, boolean regex ) {
+			this( type, attrMap, value, regex, null );
+		}
+
+		/**
+		 * @param patternCache a cache to compile regexes with, or null
+		 * @throws ModFindRegexException <br>
+		 * if {@code regex} is true and {@code type}, any of the values in {@code attrMap}, or {@code value}
+		 * has invalid syntax for a regular expression as defined by {@link java.util.regex.Pattern}
+		 */
+		public LikeFilter( String type, Map<String,String> attrMap, String value, boolean regex, PatternCache patternCache ) {
 			super();
 			if ( type != null && type.length() == 0 ) type = null;
 			if ( value != null && value.length() == 0 ) value = null;
@@ -808,18 +1045,18 @@ public class XMLPatcher {
 			this.value = value;
 			if ( regex ) {
 				if ( type != null ) {
-					typePattern = getPattern( "type or child-type", type );
+					typePattern = getPattern( "type or child-type", type, patternCache );
 				}
 				if ( attrMap != null ) {
 					attrToPattern = new HashMap<String,Pattern>();
 					for ( Map.Entry<String,String> entry : attrMap.entrySet() ) {
 						String attribute = entry.getKey();
-						Pattern pattern = getPattern( attribute + " attribute", entry.getValue() );
+						Pattern pattern = getPattern( attribute + " attribute", entry.getValue(), patternCache );
 						attrToPattern.put( attribute, pattern );
 					}
 				}
 				if ( value != null ) {
-					valuePattern = getPattern( "selector tag value", value );
+					valuePattern = getPattern( "selector tag value", value, patternCache );
 				}
 			}
 		}
@@ -830,8 +1067,9 @@ public class XMLPatcher {
 		 * if {@code pattern} has invalid syntax as defined by {@link java.util.regex.Pattern}.
 		 * {@code location} details the context of {@code pattern}.
 		 */
-		protected static Pattern getPattern( String location, String pattern ) {
+		protected static Pattern getPattern( String location, String pattern, PatternCache patternCache ) {
 			try {
+				if ( patternCache != null ) return patternCache.compile( pattern );
 				return Pattern.compile( pattern );
 			} catch ( PatternSyntaxException pse ) {
 				String locationDescription = String.format( "Regular expression syntax error...\nCheck %s at listed path.\n", location );
@@ -910,10 +1148,20 @@ public class XMLPatcher {
 		 * for a regular expression as defined by {@link java.util.regex.Pattern}
 		 */
 		public WithChildFilter( String type, Filter<Element> childFilter, boolean regex ) {
+			this( type, childFilter, regex, null );
+		}
+
+		/**
+		 * @param patternCache a cache to compile regexes with, or null
+		 * @throws ModFindRegexException <br>
+		 * if {@code regex} is true and {@code type} has invalid syntax
+		 * for a regular expression as defined by {@link java.util.regex.Pattern}
+		 */
+		public WithChildFilter( String type, Filter<Element> childFilter, boolean regex, PatternCache patternCache ) {
 			this.type = type;
 			this.childFilter = childFilter;
 			if ( regex && type != null ) {
-				this.typePattern = LikeFilter.getPattern("find tag type", type );
+				this.typePattern = LikeFilter.getPattern( "find tag type", type, patternCache );
 			}
 		}
 
@@ -746,6 +746,7 @@ public class ManagerFrame extends JFrame implements ActionListener, ModsScanObse
 			log.info( "Patching..." );
 			log.info( "" );
 			ModPatchThread patchThread = new ModPatchThread( modFiles, datsDir, backupDir, false, patchDlg );
+			patchThread.setPatchCacheSize( appConfig.getPropertyAsInt( SlipstreamConfig.PATCH_CACHE_SIZE, 256 ) * 1024L * 1024L );
 			patchThread.start();
 
 			patchDlg.setVisible( true );
@@ -0,0 +1,247 @@
+package net.vhati.modmanager.core;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.jdom2.Attribute;
+import org.jdom2.Content;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.located.Located;
+import org.jdom2.located.LocatedJDOMFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import net.vhati.modmanager.core.RegexSloppyXMLParser;
+import net.vhati.modmanager.core.SloppyXMLParser;
+
+
+/**
+ * Compares SloppyXMLParser against the regex-driven parser it replaced.
+ *
+ * Both must give the same trees, element locations, and error messages.
+ * The new parser is also given each text as a slice of a CharBuffer, as
+ * ModUtilities passes it.
+ * Fuzzed texts come from fixed seeds, so failures are reproducible.
+ */
+public class SloppyXMLParserTest {
+
+	private static final String[] FIXTURES = new String[] {
+		"blueprints_append.xml",
+		"events_comments.xml",
+		"extra_close.xml",
+		"strange_attributes.xml",
+		"text_unicode.xml"
+	};
+
+	private static final String[] TOKENS = new String[] {
+		"<", ">", "/", "/>", "</", "<a", "<a:b", "<x.y-z", "</a>", " ", "\n", "\t", "\r", "\r\n", "\u0085", "\u2028", "\u00A0", "\f", "\u000B",
+		"<!--", "-->", "-", "--", "<!---->", "<![CDATA[", "]]>", "<![CDATA[]]>", "<?xml ", "?", "?>", "=", "\"", "'", "a", "b=", "xmlns", "xmlns:", ":",
+		"&", ";", "&amp;", "&lt;", "&#65;", "&#x41;", "&foo;", "&#;", "$", "\\", ".", ",", "_", "1", "\u00E9", " a=\"1\"", " p:q='v'", "<a b=\"c\"/>", "<b>", "</b>", "<!-- x -->"
+	};
+
+	private static final String[] SPACES = new String[] { "", " ", "\n", "  \n\t", "\r\n", "\u2028" };
+	private static final String[] TEXTS = new String[] { "", "x", "a &amp; b", "&lt;&foo;&#66;&#x43;", "& lone", "-", ".", ",", "$1", "\\", " -- ", "\n-\n" };
+	private static final String[] COMMENTS = new String[] { " c ", "-c-", "--c--", " a -- b ", "x<!--y", " a \n<!-- b", "--\n", "c-\n", "-\r\n", "c-\u0085", "<!--", "-" };
+
+
+	@Test
+	public void testFixtures() throws IOException {
+		for ( String fixture : FIXTURES ) {
+			String text = readFixture( fixture );
+			assertSameResult( fixture, text );
+			assertSameResult( fixture +" (wrapped)", "<wrapper>"+ text +"</wrapper>" );
+		}
+	}
+
+	/**
+	 * Texts that probe quirks of the old regexes.
+	 */
+	@Test
+	public void testRegexQuirks() {
+		String[] texts = new String[] {
+			// Attribute spans were lazy, and ended at the first '>'.
+			"<a b=\"1\" c=\"2\">x</a>", "<a b=\"x>y\"/>", "<a  b=\"1\"/>", "<a b=\"1\"  />", "<a b=\"1\"/ >",
+			"<a/>", "<a />", "<a x>", "<a b='1'c='2'/>", "<a b = '1' />", "<a b='1' c>", "<a\tb='1'/>", "<a\nb='1'/>",
+
+			// '$' also matched before a final line terminator.
+			"<a/>  \u0085", "<a/>\u2028", "<a/>\u2029", "<a/>\n", "<a/> \r\n", "<a/>\u0085x", "<a/>\r", "<a/>\n\n",
+
+			// '\s' and '\w' were ASCII-only.
+			"<\u00E9/>", "<a\u00A0b='1'/>", "<a b\u00E9='1'/>", "\u00A0<a/>", "<a/>\u00A0", "<a b='1'\u00A0/>", "<a:\u00E9/>",
+
+			// Comments, CDATA, and stray chars.
+			"<!-- a -- b -->", "<!--->", "<!-- <!-- -->", "<!--\n-->", "<!--a--->", "<![CDATA[]]]>", "<![CDATA[a]]]]>",
+			"<a/>-->", "<a/>.,-><b/>", "<?xml version=\"1.0\"?>", "<?xml ?><a/>",
+
+			// Errors.
+			"<", "&", "<a>", "</a>", "<a></a></a>", "<a></a><b/>x"
+		};
+		for ( int i=0; i < texts.length; i++ ) {
+			assertSameResult( "quirk "+ i, texts[i] );
+		}
+	}
+
+	@Test
+	public void testFuzzedTokens() {
+		Random rng = new Random( 44 );
+		for ( int i=0; i < 40000; i++ ) {
+			StringBuilder buf = new StringBuilder();
+			int len = 1 + rng.nextInt( 14 );
+			for ( int j=0; j < len; j++ ) {
+				buf.append( TOKENS[rng.nextInt( TOKENS.length )] );
+			}
+			assertSameResult( "fuzz "+ i, buf.toString() );
+		}
+	}
+
+	@Test
+	public void testGeneratedTrees() {
+		Random rng = new Random( 4400 );
+		for ( int i=0; i < 30000; i++ ) {
+			StringBuilder buf = new StringBuilder();
+			generate( buf, rng, 0 );
+
+			// Sometimes break it.
+			if ( rng.nextInt( 3 ) == 0 && buf.length() > 0 ) {
+				int k = rng.nextInt( buf.length() );
+				if ( rng.nextBoolean() ) {
+					buf.deleteCharAt( k );
+				} else {
+					buf.insert( k, TOKENS[rng.nextInt( TOKENS.length )] );
+				}
+			}
+			assertSameResult( "tree "+ i, buf.toString() );
+		}
+	}
+
+
+	private void assertSameResult( String name, String text ) {
+		String expected = describe( new RegexSloppyXMLParser( new LocatedJDOMFactory() ), text );
+		String actual = describe( new SloppyXMLParser( new LocatedJDOMFactory() ), text );
+		assertEquals( name +": "+ text, expected, actual );
+
+		char[] a = ("<x>"+ text +"</x>").toCharArray();
+		String actualBuffered = describe( new SloppyXMLParser( new LocatedJDOMFactory() ), CharBuffer.wrap( a, 3, text.length() ) );
+		assertEquals( name +" (buffered): "+ text, expected, actualBuffered );
+	}
+
+	/**
+	 * Returns a parsed document's structure and locations, or the exception thrown.
+	 */
+	private String describe( Object parser, CharSequence text ) {
+		try {
+			Document doc;
+			if ( parser instanceof SloppyXMLParser ) {
+				doc = ((SloppyXMLParser)parser).build( text );
+			} else {
+				doc = ((RegexSloppyXMLParser)parser).build( text.toString() );
+			}
+
+			StringBuilder buf = new StringBuilder();
+			for ( Content c : doc.getContent() ) {
+				describe( buf, c );
+			}
+			return buf.toString();
+		}
+		catch ( Exception e ) {
+			return e.getClass().getName() +": "+ e.getMessage();
+		}
+	}
+
+	private void describe( StringBuilder buf, Content c ) {
+		if ( c instanceof Element ) {
+			Element e = (Element)c;
+			buf.append( "<" ).append( e.getQualifiedName() ).append( "|" ).append( e.getNamespaceURI() );
+			if ( e instanceof Located ) {
+				buf.append( "@" ).append( ((Located)e).getLine() ).append( "," ).append( ((Located)e).getColumn() );
+			}
+			for ( Namespace ns : e.getAdditionalNamespaces() ) {
+				buf.append( " ns:" ).append( ns.getPrefix() ).append( "=" ).append( ns.getURI() );
+			}
+			for ( Attribute a : e.getAttributes() ) {
+				buf.append( " " ).append( a.getQualifiedName() ).append( "=[" ).append( a.getValue() ).append( "]" );
+			}
+			buf.append( ">" );
+			for ( Content child : e.getContent() ) {
+				describe( buf, child );
+			}
+			buf.append( "</>" );
+		}
+		else {
+			buf.append( c.getCType() ).append( "[" ).append( c.getValue() ).append( "]" );
+		}
+	}
+
+	/**
+	 * Appends random, mostly well-formed markup.
+	 */
+	private void generate( StringBuilder buf, Random rng, int depth ) {
+		buf.append( SPACES[rng.nextInt( SPACES.length )] );
+
+		int kind = rng.nextInt( depth > 3 ? 4 : 7 );
+		if ( kind == 0 ) {
+			buf.append( TEXTS[rng.nextInt( TEXTS.length )] );
+		}
+		else if ( kind == 1 ) {
+			buf.append( "<!--" ).append( COMMENTS[rng.nextInt( COMMENTS.length )] ).append( "-->" );
+		}
+		else if ( kind == 2 ) {
+			buf.append( "<![CDATA[" ).append( TEXTS[rng.nextInt( TEXTS.length )] ).append( "]]>" );
+		}
+		else if ( kind == 3 ) {
+			buf.append( rng.nextBoolean() ? "<?xml version=\"1.0\"?>" : "-->" );
+		}
+		else {
+			String name = ( rng.nextInt( 4 ) == 0 ? "p:" : "" ) + ( rng.nextBoolean() ? "a" : "b.c-d_1" );
+			buf.append( "<" ).append( name );
+
+			int attrCount = rng.nextInt( 4 );
+			for ( int j=0; j < attrCount; j++ ) {
+				buf.append( rng.nextInt( 5 ) == 0 ? "" : SPACES[1 + rng.nextInt( 3 )] );
+				String attrName = new String[] { "k", "q:k", "xmlns", "xmlns:z", "k2" }[rng.nextInt( 5 )];
+				char quote = ( rng.nextBoolean() ? '"' : '\'' );
+				buf.append( attrName ).append( rng.nextBoolean() ? " = " : "=" );
+				buf.append( quote ).append( TEXTS[rng.nextInt( TEXTS.length )] ).append( quote );
+			}
+			buf.append( SPACES[rng.nextInt( 4 )] );
+
+			if ( rng.nextInt( 3 ) == 0 ) {
+				buf.append( "/>" );
+			}
+			else {
+				buf.append( ">" );
+				int childCount = rng.nextInt( 4 );
+				for ( int j=0; j < childCount; j++ ) {
+					generate( buf, rng, depth+1 );
+				}
+				buf.append( TEXTS[rng.nextInt( TEXTS.length )] );
+				buf.append( "</" ).append( rng.nextInt( 5 ) == 0 ? " x" : name ).append( ">" );
+			}
+		}
+
+		buf.append( SPACES[rng.nextInt( SPACES.length )] );
+	}
+
+	/**
+	 * Reads a fixture as UTF-8, with \n line endings, as the parser expects.
+	 */
+	private String readFixture( String name ) throws IOException {
+		InputStream is = null;
+		try {
+			is = getClass().getResourceAsStream( "sloppy/"+ name );
+			if ( is == null ) throw new IOException( "Missing fixture: "+ name );
+
+			return IOUtils.toString( is, "UTF-8" ).replace( "\r\n", "\n" );
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package net.vhati.modmanager.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.jdom2.CDATA;
+import org.jdom2.Comment;
+import org.jdom2.Content;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.EntityRef;
+import org.jdom2.IllegalAddException;
+import org.jdom2.IllegalDataException;
+import org.jdom2.JDOMException;
+import org.jdom2.Namespace;
+import org.jdom2.ProcessingInstruction;
+import org.jdom2.Text;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.vhati.modmanager.core.EOLWriter;
+import net.vhati.modmanager.core.ModUtilities;
+import net.vhati.modmanager.core.SloppyXMLOutputProcessor;
+import net.vhati.modmanager.core.SloppyXMLSerializer;
+
+
+/**
+ * Checks that SloppyXMLSerializer prints the same bytes as the XMLOutputter
+ * path it replaced: SloppyXMLOutputProcessor.sloppyPrint(), through an
+ * EOLWriter("\r\n") wrapped around an OutputStreamWriter.
+ *
+ * Golden files hold the expected bytes for each encoding FTL uses. Both
+ * paths must reproduce them. Random documents come from a fixed seed, so
+ * failures are reproducible.
+ */
+public class SloppyXMLSerializerTest {
+
+	private static final String TRAX_DISABLE_ESCAPING = "javax.xml.transform.disable-output-escaping";
+	private static final String TRAX_ENABLE_ESCAPING = "javax.xml.transform.enable-output-escaping";
+
+	private static final String[] ENCODINGS = new String[] { "UTF-8", "windows-1252", "UTF-16LE" };
+
+	private static final String[] DOC_NAMES = new String[] { "mixed_content", "line_breaks", "escaping_toggles" };
+
+	private static final String[] STRINGS = new String[] {
+		"", "x", " ", "\n", "\r", "\r\n", "\n\r", "\t", "<", ">", "&", "\"", "'", "\u00E9", "\u20AC", "a b", "--", "-", "]]>", "?>", "&amp;"
+	};
+
+
+	@Test
+	public void testGoldenFiles() throws IOException, JDOMException {
+		for ( String docName : DOC_NAMES ) {
+			for ( String encoding : ENCODINGS ) {
+				byte[] expected = readResource( docName +"."+ encoding +".xml" );
+				Document doc = buildDocument( docName );
+
+				assertArrayEquals( docName +" "+ encoding +" (old)", expected, printOld( doc, encoding ) );
+				assertArrayEquals( docName +" "+ encoding, expected, printNew( new SloppyXMLSerializer( encoding ), doc ) );
+			}
+		}
+	}
+
+	@Test
+	public void testRandomDocuments() {
+		Map<String, SloppyXMLSerializer> serializerMap = new HashMap<String, SloppyXMLSerializer>();
+		for ( String encoding : ENCODINGS ) {
+			serializerMap.put( encoding, new SloppyXMLSerializer( encoding ) );  // Reused, as ModUtilities does.
+		}
+
+		Random rng = new Random( 47 );
+		for ( int i=0; i < 3000; i++ ) {
+			Document doc = new Document( randomElement( rng, 0 ) );
+			for ( String encoding : ENCODINGS ) {
+				String expected = describeOld( doc, encoding );
+				String actual = describeNew( serializerMap.get( encoding ), doc );
+				assertEquals( "doc "+ i +" "+ encoding, expected, actual );
+			}
+		}
+	}
+
+	/**
+	 * Surrogate pairs split across buffer drains must be encoded whole.
+	 */
+	@Test
+	public void testSplitSurrogatePairs() {
+		for ( int padLen=8170; padLen < 8210; padLen++ ) {
+			StringBuilder buf = new StringBuilder();
+			for ( int i=0; i < padLen; i++ ) {
+				buf.append( (i % 50 == 49) ? '\r' : 'a' );
+			}
+			buf.append( "\uD83D\uDE00z" );
+
+			Element root = new Element( "wrapper" );
+			root.addContent( new Text( buf.toString() ) );
+			Document doc = new Document( root );
+
+			for ( String encoding : ENCODINGS ) {
+				assertEquals( "pad "+ padLen +" "+ encoding, describeOld( doc, encoding ), describeNew( new SloppyXMLSerializer( encoding ), doc ) );
+			}
+		}
+	}
+
+	/**
+	 * A high surrogate held back at the end of the chars must not be dropped.
+	 *
+	 * An OutputStreamWriter drops one that nothing follows. Documents always
+	 * end with a line break, so both paths report it as malformed instead.
+	 */
+	@Test
+	public void testTrailingHighSurrogate() {
+		for ( String value : new String[] { "\uD83D", "x\uD83D", "x\uD83D\r" } ) {
+			Element root = new Element( "wrapper" );
+			root.addContent( new Element( "a" ) );
+			root.addContent( new UncheckedText( value ) );
+			Document doc = new Document( root );
+
+			for ( String encoding : ENCODINGS ) {
+				String expected = describeOld( doc, encoding );
+				assertTrue( expected, expected.startsWith( MalformedInputException.class.getName() ) );
+				assertEquals( encoding, expected, describeNew( new SloppyXMLSerializer( encoding ), doc ) );
+			}
+		}
+	}
+
+
+	/**
+	 * Returns a document that golden files were printed from.
+	 */
+	static Document buildDocument( String docName ) throws IOException, JDOMException {
+		if ( "mixed_content".equals( docName ) ) {
+			InputStream is = null;
+			try {
+				is = SloppyXMLSerializerTest.class.getResourceAsStream( "serializer/mixed_content.xml" );
+				return ModUtilities.parseWrappedXML( is, docName ).doc;
+			}
+			finally {
+				try {if ( is != null ) is.close();}
+				catch ( IOException e ) {}
+			}
+		}
+		else if ( "line_breaks".equals( docName ) ) {
+			Element root = new Element( "wrapper" );
+
+			// A CR ending one write, and an LF starting the next.
+			Element textNode = new Element( "text" );
+			textNode.addContent( new Text( "line1\r" ) );
+			textNode.addContent( new Text( "\nline2\r\n" ) );
+			textNode.addContent( new Text( "\n\rline3\r" ) );
+			textNode.addContent( new CDATA( "\ncdata\r" ) );
+			textNode.addContent( new Text( "\n" ) );
+			root.addContent( textNode );
+
+			root.addContent( new Comment( "\r\na\rb\nc\r" ) );
+			root.addContent( new ProcessingInstruction( "pi", "d\r\ne\r" ) );
+			root.addContent( new Text( "\n" ) );
+
+			Element attrNode = new Element( "attrs" );
+			attrNode.setAttribute( "v", "tab\tlf\ncr\rcrlf\r\nend" );
+			root.addContent( attrNode );
+
+			// Long enough to drain the buffer several times, mid-CR-LF at some point.
+			StringBuilder buf = new StringBuilder();
+			for ( int i=0; i < 3000; i++ ) {
+				buf.append( (i % 3 == 0) ? "ab\r" : (i % 3 == 1) ? "\n\u00E9\r\n" : "\u20AC\n" );
+			}
+			Element longNode = new Element( "long" );
+			longNode.addContent( new Text( buf.toString() ) );
+			root.addContent( longNode );
+
+			// Unescaped, a CR and an LF split across writes make one line break.
+			Element rawNode = new Element( "raw" );
+			rawNode.addContent( new ProcessingInstruction( TRAX_DISABLE_ESCAPING ) );
+			rawNode.addContent( new Text( "raw1\r" ) );
+			rawNode.addContent( new Text( "\nraw2\r" ) );
+			rawNode.addContent( new CDATA( "\ncdata\r" ) );
+			rawNode.addContent( new Text( "\n\r\n" ) );
+			root.addContent( rawNode );
+
+			root.addContent( new Text( "\r" ) );
+			return new Document( root );
+		}
+		else if ( "escaping_toggles".equals( docName ) ) {
+			Namespace modNS = Namespace.getNamespace( "mod", "mod" );
+			Element root = new Element( "wrapper" );
+			root.addNamespaceDeclaration( modNS );
+
+			Element escapedNode = new Element( "escaped", modNS );
+			escapedNode.setAttribute( "v", "<&>\"'" );
+			escapedNode.addContent( new Text( "<&> \"q\" 'a'" ) );
+			escapedNode.addContent( new EntityRef( "amp" ) );
+			root.addContent( escapedNode );
+
+			Element rawNode = new Element( "raw" );
+			rawNode.addContent( new ProcessingInstruction( TRAX_DISABLE_ESCAPING ) );
+			rawNode.addContent( new Text( "<b>&amp;</b>\r" ) );
+
+			// Toggles revert at the end of the element they're in.
+			Element nestedNode = new Element( "nested" );
+			nestedNode.setAttribute( "v", "<still raw>" );
+			nestedNode.addContent( new Text( "<still raw>" ) );
+			nestedNode.addContent( new ProcessingInstruction( TRAX_ENABLE_ESCAPING ) );
+			nestedNode.addContent( new Text( "<escaped>" ) );
+			Element innerNode = new Element( "inner" );
+			innerNode.setAttribute( "v", "<escaped>\t" );
+			nestedNode.addContent( innerNode );
+			rawNode.addContent( nestedNode );
+
+			rawNode.addContent( new Text( "<raw again>" ) );
+			rawNode.addContent( new ProcessingInstruction( TRAX_ENABLE_ESCAPING, "ignored data" ) );
+			rawNode.addContent( new Text( "<escaped again>" ) );
+			root.addContent( rawNode );
+
+			root.addContent( new Text( "\n<escaped after>" ) );
+			Document doc = new Document( root );
+
+			// At the document level, a toggle applies to the root.
+			doc.addContent( 0, new Comment( " <top> " ) );
+			doc.addContent( 1, new ProcessingInstruction( TRAX_DISABLE_ESCAPING ) );
+			doc.addContent( 2, new ProcessingInstruction( TRAX_ENABLE_ESCAPING ) );
+			return doc;
+		}
+		throw new IllegalArgumentException( "Unknown document: "+ docName );
+	}
+
+	/**
+	 * Prints a document the way ModUtilities did before SloppyXMLSerializer.
+	 */
+	static byte[] printOld( Document doc, String encoding ) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		Writer writer = new EOLWriter( new OutputStreamWriter( os, Charset.forName( encoding ).newEncoder() ), "\r\n" );
+		SloppyXMLOutputProcessor.sloppyPrint( doc, writer, encoding, false );
+		writer.flush();
+		return os.toByteArray();
+	}
+
+	private static byte[] printNew( SloppyXMLSerializer serializer, Document doc ) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		serializer.print( doc, os );
+		return os.toByteArray();
+	}
+
+	private static String describeOld( Document doc, String encoding ) {
+		try {
+			return Arrays.toString( printOld( doc, encoding ) );
+		}
+		catch ( Exception e ) {
+			return e.getClass().getName() +": "+ e.getMessage();
+		}
+	}
+
+	private static String describeNew( SloppyXMLSerializer serializer, Document doc ) {
+		try {
+			return Arrays.toString( printNew( serializer, doc ) );
+		}
+		catch ( Exception e ) {
+			return e.getClass().getName() +": "+ e.getMessage();
+		}
+	}
+
+	private static Element randomElement( Random rng, int depth ) {
+		Namespace ns = randomNamespace( rng );
+		Element result = new Element( (rng.nextBoolean() ? "a" : "b-c"), ns );
+
+		int attrCount = rng.nextInt( 4 );
+		for ( int i=0; i < attrCount; i++ ) {
+			Namespace attrNS = randomNamespace( rng );
+			if ( attrNS.getPrefix().length() == 0 || attrNS.getPrefix().equals( ns.getPrefix() ) ) attrNS = Namespace.NO_NAMESPACE;
+			try {
+				result.setAttribute( "k"+ rng.nextInt( 3 ), randomString( rng ), attrNS );
+			}
+			catch ( IllegalAddException e ) {
+				// A prefix already bound to another URI.
+			}
+		}
+
+		int childCount = rng.nextInt( depth == 0 ? 8 : 5 );
+		for ( int i=0; i < childCount; i++ ) {
+			result.addContent( randomContent( rng, depth+1 ) );
+		}
+		return result;
+	}
+
+	private static Content randomContent( Random rng, int depth ) {
+		int kind = rng.nextInt( depth > 4 ? 6 : 8 );
+		try {
+			if ( kind <= 1 ) return new Text( randomString( rng ) );
+			if ( kind == 2 ) return new Comment( randomString( rng ) );
+			if ( kind == 3 ) return new CDATA( randomString( rng ) );
+			if ( kind == 4 ) {
+				String target = new String[] { "a", TRAX_DISABLE_ESCAPING, TRAX_ENABLE_ESCAPING }[rng.nextInt( 3 )];
+				return ( rng.nextBoolean() ? new ProcessingInstruction( target, randomString( rng ) ) : new ProcessingInstruction( target ) );
+			}
+			if ( kind == 5 ) return new EntityRef( rng.nextBoolean() ? "amp" : "foo" );
+		}
+		catch ( IllegalDataException e ) {
+			// Such as "--" in a comment.
+			return new Text( "z" );
+		}
+		return randomElement( rng, depth );
+	}
+
+	private static Namespace randomNamespace( Random rng ) {
+		int kind = rng.nextInt( 6 );
+		if ( kind == 0 ) return Namespace.NO_NAMESPACE;
+		if ( kind == 1 ) return Namespace.getNamespace( "u"+ rng.nextInt( 3 ) );
+		return Namespace.getNamespace( "p"+ rng.nextInt( 3 ), "u"+ rng.nextInt( 3 ) );
+	}
+
+	private static String randomString( Random rng ) {
+		StringBuilder buf = new StringBuilder();
+		int count = rng.nextInt( 5 );
+		for ( int i=0; i < count; i++ ) {
+			buf.append( STRINGS[rng.nextInt( STRINGS.length )] );
+		}
+		if ( rng.nextInt( 50 ) == 0 ) {
+			// Long enough to drain the buffer.
+			for ( int i=0; i < 3000; i++ ) {
+				buf.append( STRINGS[rng.nextInt( 12 )] );
+			}
+		}
+		return buf.toString();
+	}
+
+	private byte[] readResource( String name ) throws IOException {
+		InputStream is = null;
+		try {
+			is = getClass().getResourceAsStream( "serializer/"+ name );
+			if ( is == null ) throw new IOException( "Missing fixture: "+ name );
+
+			return IOUtils.toByteArray( is );
+		}
+		finally {
+			try {if ( is != null ) is.close();}
+			catch ( IOException e ) {}
+		}
+	}
+
+
+
+	/**
+	 * Text that skips JDOM's checks, to hold an unpaired surrogate.
+	 */
+	private static class UncheckedText extends Text {
+		public UncheckedText( String value ) {
+			super();
+			this.value = value;
+		}
+	}
+}